@@ -11,6 +11,7 @@ import de.mmth.tamm.db.AttachmentTable;
 import de.mmth.tamm.db.ClientTable;
 import de.mmth.tamm.db.DBConnect;
 import de.mmth.tamm.db.DBTable;
+import de.mmth.tamm.db.HistoryTable;
 import de.mmth.tamm.db.LockTable;
 import de.mmth.tamm.db.RoleAssignmentTable;
 import de.mmth.tamm.db.RoleTable;
@@ -18,6 +19,8 @@ import de.mmth.tamm.db.TaskTable;
 import de.mmth.tamm.db.UserTable;
 import de.mmth.tamm.progress.SendMail;
 import de.mmth.tamm.utils.FileUtils;
+import de.mmth.tamm.utils.HistoryArchive;
+import de.mmth.tamm.utils.IdGenerator;
 import de.mmth.tamm.utils.InvalidAccessCache;
 import de.mmth.tamm.utils.KeepAliveCache;
 import de.mmth.tamm.utils.LimitSentMails;
@@ -26,17 +29,18 @@ import de.mmth.tamm.utils.Placeholder;
 import de.mmth.tamm.utils.RequestCache;
 import de.mmth.tamm.utils.TemplateCache;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.nio.file.Files;
 import java.sql.SQLException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.prefs.Preferences;
-import org.postgresql.copy.CopyManager;
-import org.postgresql.core.BaseConnection;
 
 /**
  *
@@ -47,6 +51,7 @@ public class ApplicationData {
   protected static final String FILE_UPLOAD_BASE = "uploadbase";
   protected static final String LOG_DIR = "loggerdirectory";
   private static final String DB_URL = "dburl";
+  private static final String CONST_REPLICA_URL = "replicaurl";
   private static final String DB_NAME = "dbname";
   private static final String DB_PASSWORD = "dbpassword";
   private static final String MAIL_HOST = "mailhost";
@@ -58,6 +63,14 @@ public class ApplicationData {
   private static final String CONST_MAILS_PER_DAY = "mailsperday";
   private static final String CONST_LOGIN_RETRY = "loginretry";
   private static final String CONST_PWD_REQ_HOURS = "pwdreqvaildhours";
+  private static final String CONST_DB_POOL_MIN = "dbpoolmin";
+  private static final String CONST_DB_POOL_MAX = "dbpoolmax";
+  private static final String CONST_HISTORY_ARCHIVE_DAYS = "historyarchivedays";
+  private static final String CONST_BACKUP_COMPRESSION = "backupcompression";
+  private static final String CONST_BACKUP_FULL_DAYS = "backupfulldays";
+  private static final String CONST_BACKUP_BINARY = "backupbinary";
+  private static final String CONST_NODE_ID = "nodeid";
+  private static final String CONST_SLOW_QUERY_MILLIS = "slowquerymillis";
   
   private static final long DECAY_INTERVAL = 600000;
   private static final int CLEAR_MAIL_COUNTER_PERIOD = 1000 * 60 * 60 * 24; // one day
@@ -72,7 +85,7 @@ public class ApplicationData {
   public DBConnect db;
   public UserTable users;
   public TaskTable tasks;
-  public TaskTable history;
+  public HistoryTable history;
   public ClientTable clients;
   public LockTable locks;
   public RoleTable roles;
@@ -86,6 +99,8 @@ public class ApplicationData {
   public Map<String, ClientData> clientNames;
   public File rootPath;
   public File backupbase;
+  public BackupJob backupJob;
+  public RestoreJob restoreJob;
 
   public AttachmentTable attachments;
   public SendMail mailer = null;
@@ -96,7 +111,6 @@ public class ApplicationData {
   
   public Placeholder placeholder = new Placeholder();
   public TaskReport taskReport;
-  public CopyManager copyManager;
   private File restorebase;
   
   /**
@@ -112,6 +126,7 @@ public class ApplicationData {
     
     var prefs = Preferences.userRoot().node("Tamm");
     adminData.dburl = prefs.get(DB_URL, "");
+    adminData.replicaurl = prefs.get(CONST_REPLICA_URL, "");
     adminData.name = prefs.get(DB_NAME, "");
     adminData.password = prefs.get(DB_PASSWORD, "");
     adminData.uploadbase = prefs.get(FILE_UPLOAD_BASE, "/var/TaMM/files");
@@ -125,6 +140,17 @@ public class ApplicationData {
     adminData.mailsperdomainperday = prefs.getInt(CONST_MAILS_PER_DOMAIN, 100);
     adminData.loginretry = prefs.getInt(CONST_LOGIN_RETRY, 3);
     adminData.pwdreqvaildhours = prefs.getInt(CONST_PWD_REQ_HOURS, 24);
+    adminData.dbpoolmin = prefs.getInt(CONST_DB_POOL_MIN, DBConnect.DEFAULT_POOL_MIN);
+    adminData.dbpoolmax = prefs.getInt(CONST_DB_POOL_MAX, DBConnect.DEFAULT_POOL_MAX);
+    adminData.historyarchivedays = prefs.getInt(CONST_HISTORY_ARCHIVE_DAYS, 0);
+    adminData.backupcompression = prefs.getInt(CONST_BACKUP_COMPRESSION, 6);
+    adminData.backupfulldays = prefs.getInt(CONST_BACKUP_FULL_DAYS, 7);
+    adminData.backupbinary = prefs.getBoolean(CONST_BACKUP_BINARY, false);
+    adminData.nodeid = prefs.getInt(CONST_NODE_ID, -1);
+    adminData.slowquerymillis = prefs.getInt(CONST_SLOW_QUERY_MILLIS, 0);
+    if (adminData.dbpoolmax < 1) {
+      adminData.dbpoolmax = DBConnect.DEFAULT_POOL_MAX;
+    }
     
     var obf = prepareObfuscator();
     adminData.password = obf.decrypt(obfuscatorKey, hostName, adminData.password);
@@ -132,22 +158,26 @@ public class ApplicationData {
     obfuscatorKey = "";
     
     if (!adminData.dburl.isBlank() && !adminData.name.isBlank() && !adminData.password.isBlank()) {
-      DBConnect con = new DBConnect(adminData.dburl, schemaName, adminData.name, adminData.password);
+      DBConnect con = new DBConnect(adminData.dburl, adminData.replicaurl, schemaName, adminData.name, adminData.password, 
+              adminData.dbpoolmin, adminData.dbpoolmax);
       if (con.isValid()) {
         db = con;
+        db.getSlowQueryLog().setThreshold(adminData.slowquerymillis);
         
         users = new UserTable(db, "userlist");
         tasks = new TaskTable(db, "tasklist");
-        history = new TaskTable(db, "taskhistory");
+        history = new HistoryTable(db, "taskhistory");
+        history.setArchive(new HistoryArchive(new File(adminData.uploadbase, "archive")));
         clients = new ClientTable(db, "clientlist");
         locks = new LockTable(db, "locklist");
         attachments = new AttachmentTable(db, "attachments");
         roles = new RoleTable(db, "roleslist");
         assignments = new RoleAssignmentTable(db, "roleassignments");
+        tasks.setAssignments(assignments);
+        tasks.setIdGenerator(new IdGenerator(getNodeId()));
         mailCounter = new LimitSentMails(adminData.mailsperday, adminData.mailsperdomainperday, CLEAR_MAIL_COUNTER_PERIOD);
         accessCache = new InvalidAccessCache(adminData.loginretry, DECAY_INTERVAL);
         taskReport = new TaskReport(adminData.uploadbase);
-        prepareCopyManager();
         
         if (!adminData.mailadminname.isBlank() && !adminData.mailadminpwd.isBlank() && !adminData.mailhost.isBlank()) {
           mailer = new SendMail(adminData.mailhost, adminData.mailadminname, adminData.mailadminpwd);
@@ -181,17 +211,36 @@ public class ApplicationData {
   }
   
   /**
-   * Prepares the CopyManager for the backup function.
-   * If this fails, only a warning in the log will be seen,
-   * the application will not be stopped. Up to discussion...
+   * Returns the configured node id of this instance. Without
+   * configuration the id is assigned by a database sequence.
+   * Only if this fails, the id is derived from the host name,
+   * which may collide in a cluster.
+   * 
+   * @return 
    */
-  private void prepareCopyManager() {
+  private int getNodeId() {
+    if ((adminData.nodeid >= 0) && (adminData.nodeid <= IdGenerator.MAX_NODE_ID)) {
+      logger.info("Use configured node id " + adminData.nodeid);
+      return adminData.nodeid;
+    }
+    
     try {
-      copyManager = new CopyManager((BaseConnection)db.getConnection());
+      int nodeId = db.assignNodeId(IdGenerator.MAX_NODE_ID);
+      logger.info("No node id configured, node id " + nodeId + " assigned by the database.");
+      return nodeId;
     } catch (SQLException ex) {
-      logger.warn("Cannot prepare CopyManager, no backup available.", ex);
+      logger.warn("Cannot assign node id.", ex);
     }
     
+    try {
+      int nodeId = IdGenerator.deriveNodeId(InetAddress.getLocalHost().getHostName());
+      logger.warn("Node id " + nodeId + " derived from the host name, it is not unique. "
+              + "Configure a node id for each instance if more than one instance is running.");
+      return nodeId;
+    } catch (UnknownHostException ex) {
+      logger.warn("No node id configured and no host name available, use node id 0.");
+      return 0;
+    }
   }
   
   /**
@@ -315,6 +364,7 @@ public class ApplicationData {
     
     var prefs = Preferences.userRoot().node("Tamm");
     prefs.put(DB_URL, data.dburl);
+    prefs.put(CONST_REPLICA_URL, (data.replicaurl == null) ? "" : data.replicaurl);
     prefs.put(DB_NAME, data.name);
     prefs.put(DB_PASSWORD, data.password);
     prefs.put(FILE_UPLOAD_BASE, data.uploadbase);
@@ -328,6 +378,18 @@ public class ApplicationData {
     prefs.putInt(CONST_MAILS_PER_DOMAIN, data.mailsperdomainperday);
     prefs.putInt(CONST_LOGIN_RETRY, data.loginretry);
     prefs.putInt(CONST_PWD_REQ_HOURS, data.pwdreqvaildhours);
+    prefs.putInt(CONST_DB_POOL_MIN, data.dbpoolmin);
+    prefs.putInt(CONST_DB_POOL_MAX, data.dbpoolmax);
+    prefs.putInt(CONST_HISTORY_ARCHIVE_DAYS, data.historyarchivedays);
+    prefs.putInt(CONST_BACKUP_COMPRESSION, data.backupcompression);
+    prefs.putInt(CONST_BACKUP_FULL_DAYS, data.backupfulldays);
+    prefs.putBoolean(CONST_BACKUP_BINARY, data.backupbinary);
+    prefs.putInt(CONST_NODE_ID, data.nodeid);
+    prefs.putInt(CONST_SLOW_QUERY_MILLIS, data.slowquerymillis);
+    
+    if (db != null) {
+      db.getSlowQueryLog().setThreshold(data.slowquerymillis);
+    }
   }
 
   void setSchema(String name) {
@@ -342,16 +404,24 @@ public class ApplicationData {
    * 
    * After successful restore it should be removed manually.
    * For retries just remove the additional extension.
+   * 
+   * The files are processed ordered by name, so a full backup
+   * and its incremental backups are replayed in their order.
    */
   public void checkRestore() {
     if (restorebase.exists()) {
       File[] entries = restorebase.listFiles();
       if (entries != null) {
+        Arrays.sort(entries);
+        String lastRestored = null;
         for (var file: entries) {
           if (file.isFile() && FileUtils.hasExtension(file.getName(), "zip")) {
             try {
-              doRestore(file);
+              if (!doRestore(file, lastRestored)) {
+                continue;
+              }
               
+              lastRestored = file.getName();
               var renamedFile = new File(file.getParentFile(), file.getName() + ".processed");
               file.renameTo(renamedFile);
             } catch(IOException ex) {
@@ -363,34 +433,74 @@ public class ApplicationData {
     }
   }
   
+  /**
+   * Returns all database tables.
+   * 
+   * @return 
+   */
+  public DBTable[] getTables() {
+    return new DBTable[] {users, tasks, history, clients, locks, assignments, attachments, roles};
+  }
+  
   /**
    * Tries to restore the given file into the database.
    * 
-   * Each table has its own data file. On successful
-   * restore operation the file will be deleted. If
+   * Each table has its own data file, the tables are
+   * restored in parallel. On successful restore
+   * operation the file will be deleted. If
    * all tables are restored successfully the unzip
    * directory will be deleted. Otherwise it remains
    * with the files of the not successfull restored
    * tables.
    * 
+   * An incremental backup is only applied directly after
+   * the backup it is based on.
+   * 
    * @param sourceData
+   * @param lastRestored name of the backup restored before, may be null
+   * @return false if the backup does not follow the last restored one
    * @throws IOException 
    */
-  private void doRestore(File sourceData) throws IOException {
+  private boolean doRestore(File sourceData, String lastRestored) throws IOException {
     File unzipDir = FileUtils.unzipIntoDirectory(sourceData);
     if (unzipDir != null && unzipDir.exists()) {
-      DBTable[] tables = {users, tasks, history, clients, locks, assignments, attachments, roles};
-      for (var table: tables) {
-        var file = table.restore(copyManager, unzipDir);
-        if (file != null) {
-          logger.debug("Table " + file.getName() + " restored, delete file.");
-          file.delete();
-        } else {
-          logger.warn("Table " + table.getTableName() + " not restored, keep file.");
+      var manifest = new Properties();
+      var manifestFile = new File(unzipDir, BackupJob.MANIFEST);
+      if (manifestFile.exists()) {
+        try (var is = new FileInputStream(manifestFile)) {
+          manifest.load(is);
         }
       }
       
+      boolean incremental = BackupJob.TYPE_INCREMENTAL.equals(manifest.getProperty(BackupJob.TYPE));
+      if (incremental && !manifest.getProperty(BackupJob.BASE, "").equals(lastRestored)) {
+        logger.warn("Incremental backup " + sourceData.getName() + " is based on " 
+                + manifest.getProperty(BackupJob.BASE) + ", not on " + lastRestored + ". Skipped.");
+        var files = unzipDir.listFiles();
+        if (files != null) {
+          for (var file: files) {
+            file.delete();
+          }
+        }
+        unzipDir.delete();
+        return false;
+      }
+      
+      try {
+        restoreJob = new RestoreJob(this, unzipDir, incremental);
+        restoreJob.run();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        logger.warn("Restore interrupted.");
+      }
+      
+      manifestFile.delete();
+      for (var table: getTables()) {
+        new File(unzipDir, table.getTableName() + DBTable.KEYS_EXT).delete();
+      }
       unzipDir.delete();
     }
+    
+    return true;
   }
 }
@@ -12,8 +12,12 @@ import org.apache.logging.log4j.Logger;
  */
 public class BackgroundWorker extends Thread {
   private static final Logger logger = TammLogger.prepareLogger(BackgroundWorker.class);
+  private static final long PARTITION_CHECK_INTERVAL = 3600000;
+  private static final long ARCHIVE_INTERVAL = 24 * 3600000;
 
   private final ApplicationData application;
+  private long lastPartitionCheck = java.lang.System.currentTimeMillis();
+  private long lastArchive = 0;
   
   /**
    * Constructor with dependency injection of the application object.
@@ -43,6 +47,28 @@ public class BackgroundWorker extends Thread {
         application.mailCounter.cleanup();
       }
       
+      if (application.db != null) {
+        application.db.maintain();
+      }
+      
+      if (application.locks != null) {
+        application.locks.flushLockCounts();
+      }
+      
+      if (application.users != null) {
+        application.users.flushLoginDates();
+      }
+      
+      if ((application.history != null) && (java.lang.System.currentTimeMillis() - lastPartitionCheck > PARTITION_CHECK_INTERVAL)) {
+        lastPartitionCheck = java.lang.System.currentTimeMillis();
+        application.history.maintainPartitions();
+      }
+      
+      if ((application.history != null) && (java.lang.System.currentTimeMillis() - lastArchive > ARCHIVE_INTERVAL)) {
+        lastArchive = java.lang.System.currentTimeMillis();
+        archiveHistory();
+      }
+      
       try {
         Thread.sleep(10000);
       } catch (InterruptedException ex) {
@@ -52,4 +78,18 @@ public class BackgroundWorker extends Thread {
     }
     logger.info("Background worker stopped.");
   }
+  
+  /**
+   * Moves old task history records into the archive.
+   */
+  private void archiveHistory() {
+    try {
+      int count = application.history.archiveHistory(application.adminData.historyarchivedays);
+      if (count > 0) {
+        logger.info("Task history records archived: " + count);
+      }
+    } catch (TammError ex) {
+      logger.warn("Task history archive run failed.", ex);
+    }
+  }
 }
@@ -0,0 +1,476 @@
+/*
+ * (c) 2024 by Matthias Thiele
+ * GNU General Public License v3.0
+ */
+package de.mmth.tamm;
+
+import de.mmth.tamm.data.BackupJobData;
+import de.mmth.tamm.db.DBTable;
+import de.mmth.tamm.utils.DateUtils;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.apache.logging.log4j.Logger;
+import org.postgresql.copy.CopyManager;
+import org.postgresql.core.BaseConnection;
+
+/**
+ * Creates a database backup in the background.
+ * 
+ * The job opens a REPEATABLE READ transaction and exports its
+ * snapshot. The tables are copied in parallel on further
+ * connections which import this snapshot, so all tables show
+ * the same consistent state while the application keeps
+ * working. The COPY output of each table is piped directly
+ * into its own entry of the ZIP file, the entries are written
+ * in turn, no temporary files are used. With a pool too small
+ * for worker connections, the tables are copied one by one on
+ * the connection of the job.
+ * 
+ * An incremental backup only contains the rows changed since
+ * the previous backup of the chain, tables without change
+ * tracking are copied completely. The manifest entry of each
+ * ZIP file names the previous backup, so a restore can replay
+ * the chain. A full backup is done if the last full backup is
+ * older than the configured number of days.
+ * 
+ * @author matthias
+ */
+public class BackupJob extends Thread {
+  private static final Logger logger = TammLogger.prepareLogger(BackupJob.class);
+  private static final int COPY_BUFFER_SIZE = 65536;
+  private static final int PIPE_SIZE = 4 * COPY_BUFFER_SIZE;
+  private static final int COPY_THREADS = 3;
+  private static final String BEGIN_SNAPSHOT = "SET TRANSACTION ISOLATION LEVEL REPEATABLE READ, READ ONLY";
+  private static final String EXPORT_SNAPSHOT = "SELECT pg_export_snapshot()";
+  private static final String READ_WATERMARK = "SELECT (extract(epoch from now()) * 1000)::bigint";
+  private static final String CHAIN_FILE = "backup.chain";
+  // lastchanged is set before the commit, so the next backup starts a bit earlier.
+  private static final long WATERMARK_OVERLAP = 5 * 60 * 1000;
+  private static final long DAY = 24 * 60 * 60 * 1000;
+  
+  public static final String MANIFEST = "backup.properties";
+  public static final String TYPE = "type";
+  public static final String TYPE_FULL = "full";
+  public static final String TYPE_INCREMENTAL = "incremental";
+  public static final String BASE = "base";
+  public static final String WATERMARK = "watermark";
+  private static final String SINCE = "since";
+  private static final String LAST_BACKUP = "lastbackup";
+  private static final String LAST_FULL = "lastfull";
+  
+  /**
+   * Writes the content of one ZIP entry.
+   */
+  @FunctionalInterface
+  private interface EntryWriter {
+    void write(CopyManager manager, OutputStream os) throws SQLException, IOException;
+  }
+  
+  /**
+   * One entry of the ZIP file.
+   * 
+   * @param name file name within the ZIP file
+   * @param isTable false for the key list of a table
+   * @param writer 
+   */
+  private record BackupEntry(String name, boolean isTable, EntryWriter writer) {}
+  
+  /**
+   * Pipe which wakes the reader on each write, the
+   * writes are buffered in chunks by the caller.
+   */
+  private static class PipeSink extends PipedOutputStream {
+    PipeSink(PipedInputStream pipe) throws IOException {
+      super(pipe);
+    }
+    
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      super.write(b, off, len);
+      flush();
+    }
+  }
+  
+  private final ApplicationData application;
+  private final BackupJobData status = new BackupJobData();
+  private final boolean incremental;
+  
+  /**
+   * Constructor of a full backup.
+   * 
+   * @param application 
+   */
+  public BackupJob(ApplicationData application) {
+    this(application, false);
+  }
+  
+  /**
+   * Constructor with dependency injection of the application object.
+   * 
+   * @param application 
+   * @param incremental true: only copy the changes since the previous backup
+   */
+  public BackupJob(ApplicationData application, boolean incremental) {
+    this.application = application;
+    this.incremental = incremental;
+    this.setName("TaMM Backup Job");
+    status.id = UUID.randomUUID().toString();
+    status.state = "running";
+    status.tablesTotal = application.getTables().length;
+    status.message = "";
+  }
+  
+  /**
+   * Returns a copy of the current job status.
+   * 
+   * @return 
+   */
+  public synchronized BackupJobData getStatus() {
+    var result = new BackupJobData();
+    result.id = status.id;
+    result.state = status.state;
+    result.tablesDone = status.tablesDone;
+    result.tablesTotal = status.tablesTotal;
+    result.fileName = status.fileName;
+    result.message = status.message;
+    result.type = status.type;
+    return result;
+  }
+  
+  /**
+   * Returns if the job is still running.
+   * 
+   * @return 
+   */
+  public synchronized boolean isRunning() {
+    return status.state.equals("running");
+  }
+  
+  /**
+   * Copies all tables into the ZIP file.
+   * 
+   * The file is renamed to its final name when complete,
+   * so an incomplete backup is never offered for download.
+   */
+  @Override
+  public void run() {
+    var guid = "Backup." + DateUtils.formatS(null) + "-" + UUID.randomUUID().toString();
+    var zipFile = new File(application.backupbase, guid + ".zip");
+    var tempFile = new File(application.backupbase, guid + ".zip.tmp");
+    
+    try {
+      var chain = readChain();
+      var manifest = new Properties();
+      long since = -1;
+      if (incremental && isChainValid(chain)) {
+        since = Long.parseLong(chain.getProperty(WATERMARK)) - WATERMARK_OVERLAP;
+        manifest.setProperty(BASE, chain.getProperty(LAST_BACKUP));
+      }
+      
+      try (var os = new BufferedOutputStream(new FileOutputStream(tempFile), COPY_BUFFER_SIZE)) {
+        writeBackup(os, since, manifest);
+      }
+      
+      Files.move(tempFile.toPath(), zipFile.toPath());
+      writeChain(chain, manifest, zipFile.getName());
+      finish("done", zipFile.getName(), "");
+      logger.info("Backup finished: " + guid + ", " + manifest.getProperty(TYPE));
+    } catch (SQLException | IOException ex) {
+      logger.warn("Error creating backup.", ex);
+      finish("error", null, "Error creating backup.");
+    } finally {
+      tempFile.delete();
+    }
+  }
+  
+  /**
+   * Writes the ZIP file of a full backup into the given stream.
+   * 
+   * Can also be called without starting the job thread to
+   * stream the backup directly to the client.
+   * 
+   * @param os
+   * @throws SQLException
+   * @throws IOException 
+   */
+  public void writeBackup(OutputStream os) throws SQLException, IOException {
+    writeBackup(os, -1, new Properties());
+  }
+  
+  /**
+   * Writes the ZIP file of all tables into the given stream.
+   * 
+   * @param os
+   * @param since full backup if negative, otherwise copy the changes after this time
+   * @param manifest receives the backup type and watermark
+   * @throws SQLException
+   * @throws IOException 
+   */
+  private void writeBackup(OutputStream os, long since, Properties manifest) throws SQLException, IOException {
+    try (var dbc = application.db.getConnection(); var stmt = dbc.createStatement()) {
+      dbc.setAutoCommit(false);
+      stmt.execute(BEGIN_SNAPSHOT);
+      var rows = stmt.executeQuery(READ_WATERMARK);
+      rows.next();
+      manifest.setProperty(WATERMARK, Long.toString(rows.getLong(1)));
+      manifest.setProperty(TYPE, (since < 0) ? TYPE_FULL : TYPE_INCREMENTAL);
+      if (since >= 0) {
+        manifest.setProperty(SINCE, Long.toString(since));
+      }
+      setType(manifest.getProperty(TYPE));
+      
+      var zip = new ZipOutputStream(os);
+      zip.setLevel(getCompressionLevel());
+      var entries = listEntries(since);
+      // the job connection is held, each worker needs another one.
+      int workers = Math.min(COPY_THREADS, application.adminData.dbpoolmax / 2);
+      if (workers > 0) {
+        rows = stmt.executeQuery(EXPORT_SNAPSHOT);
+        rows.next();
+        copyParallel(zip, entries, rows.getString(1), workers);
+      } else {
+        var copyManager = new CopyManager(dbc.unwrap(BaseConnection.class));
+        for (var entry: entries) {
+          zip.putNextEntry(new ZipEntry(entry.name()));
+          entry.writer().write(copyManager, zip);
+          zip.closeEntry();
+          entryDone(entry);
+        }
+      }
+      
+      zip.putNextEntry(new ZipEntry(MANIFEST));
+      manifest.store(zip, "TaMM backup");
+      zip.closeEntry();
+      
+      // finish the ZIP file without closing the callers stream.
+      zip.finish();
+      zip.flush();
+    }
+  }
+  
+  /**
+   * Returns the ZIP entries of all tables.
+   * 
+   * @param since full backup if negative, otherwise copy the changes after this time
+   * @return 
+   */
+  private List<BackupEntry> listEntries(long since) {
+    var binary = application.adminData.backupbinary;
+    List<BackupEntry> entries = new ArrayList<>();
+    for (var table: application.getTables()) {
+      var name = table.getTableName() + (binary ? DBTable.BINARY_EXT : DBTable.CSV_EXT);
+      if ((since >= 0) && table.isIncremental()) {
+        entries.add(new BackupEntry(name, true, (manager, os) -> table.backupChanges(manager, os, since, binary)));
+      } else {
+        entries.add(new BackupEntry(name, true, (manager, os) -> table.backup(manager, os, binary)));
+      }
+      
+      if ((since >= 0) && table.hasKeyList()) {
+        entries.add(new BackupEntry(table.getTableName() + DBTable.KEYS_EXT, false, table::backupKeys));
+      }
+    }
+    
+    return entries;
+  }
+  
+  /**
+   * Copies the entries in parallel within the exported snapshot.
+   * 
+   * Each entry is written by a worker into its own pipe. The
+   * pipes are drained into the ZIP file in the order of the
+   * entries, so the workers of the following entries copy ahead
+   * until their pipe is full.
+   * 
+   * @param zip
+   * @param entries
+   * @param snapshot id of the exported snapshot
+   * @param workers number of worker connections
+   * @throws SQLException
+   * @throws IOException 
+   */
+  private void copyParallel(ZipOutputStream zip, List<BackupEntry> entries, String snapshot, int workers) throws SQLException, IOException {
+    var executor = Executors.newFixedThreadPool(workers);
+    List<PipedInputStream> pipes = new ArrayList<>();
+    try {
+      List<Future<Void>> results = new ArrayList<>();
+      for (var entry: entries) {
+        var pipe = new PipedInputStream(PIPE_SIZE);
+        var sink = new BufferedOutputStream(new PipeSink(pipe), COPY_BUFFER_SIZE);
+        pipes.add(pipe);
+        results.add(executor.submit(() -> copyEntry(entry, snapshot, sink)));
+      }
+      
+      for (int i = 0; i < entries.size(); i++) {
+        zip.putNextEntry(new ZipEntry(entries.get(i).name()));
+        pipes.get(i).transferTo(zip);
+        zip.closeEntry();
+        waitFor(results.get(i));
+        entryDone(entries.get(i));
+      }
+    } finally {
+      // a worker blocked on its pipe fails when the pipe is closed.
+      for (var pipe: pipes) {
+        pipe.close();
+      }
+      executor.shutdownNow();
+    }
+  }
+  
+  /**
+   * Copies one entry on a worker connection which imports
+   * the snapshot of the job.
+   * 
+   * The sink is closed when done, also on error, so the
+   * reader of the pipe is never blocked.
+   * 
+   * @param entry
+   * @param snapshot
+   * @param sink
+   * @return
+   * @throws SQLException
+   * @throws IOException 
+   */
+  private Void copyEntry(BackupEntry entry, String snapshot, OutputStream sink) throws SQLException, IOException {
+    try (sink; var dbc = application.db.getConnection(); var stmt = dbc.createStatement()) {
+      dbc.setAutoCommit(false);
+      stmt.execute(BEGIN_SNAPSHOT);
+      stmt.execute("SET TRANSACTION SNAPSHOT '" + snapshot + "'");
+      entry.writer().write(new CopyManager(dbc.unwrap(BaseConnection.class)), sink);
+      return null;
+    }
+  }
+  
+  /**
+   * Waits for a worker and passes its error on.
+   * 
+   * @param result
+   * @throws SQLException
+   * @throws IOException 
+   */
+  private static void waitFor(Future<Void> result) throws SQLException, IOException {
+    try {
+      result.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Backup interrupted.");
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof SQLException sqlEx) {
+        throw sqlEx;
+      } else if (ex.getCause() instanceof IOException ioEx) {
+        throw ioEx;
+      }
+      throw new IOException("Backup worker failed.", ex.getCause());
+    }
+  }
+  
+  /**
+   * Reads the state of the backup chain.
+   * 
+   * @return empty if no backup has been done yet
+   * @throws IOException 
+   */
+  private Properties readChain() throws IOException {
+    var chain = new Properties();
+    var chainFile = new File(application.backupbase, CHAIN_FILE);
+    if (chainFile.exists()) {
+      try (var is = new FileInputStream(chainFile)) {
+        chain.load(is);
+      }
+    }
+    
+    return chain;
+  }
+  
+  /**
+   * Checks if an incremental backup can follow the chain.
+   * 
+   * The previous backup must still exist and the last full
+   * backup must not be older than the configured days.
+   * 
+   * @param chain
+   * @return false: a full backup is needed
+   */
+  private boolean isChainValid(Properties chain) {
+    var lastBackup = chain.getProperty(LAST_BACKUP);
+    if ((lastBackup == null) || !new File(application.backupbase, lastBackup).exists()) {
+      return false;
+    }
+    
+    long lastFull = Long.parseLong(chain.getProperty(LAST_FULL, "0"));
+    int fullDays = application.adminData.backupfulldays;
+    return (fullDays <= 0) || (java.lang.System.currentTimeMillis() - lastFull < fullDays * DAY);
+  }
+  
+  /**
+   * Makes the finished backup the last one of the chain.
+   * 
+   * @param chain
+   * @param manifest
+   * @param fileName
+   * @throws IOException 
+   */
+  private void writeChain(Properties chain, Properties manifest, String fileName) throws IOException {
+    chain.setProperty(LAST_BACKUP, fileName);
+    chain.setProperty(WATERMARK, manifest.getProperty(WATERMARK));
+    if (manifest.getProperty(TYPE).equals(TYPE_FULL)) {
+      chain.setProperty(LAST_FULL, Long.toString(java.lang.System.currentTimeMillis()));
+    }
+    
+    var chainFile = new File(application.backupbase, CHAIN_FILE);
+    var tempFile = new File(application.backupbase, CHAIN_FILE + ".tmp");
+    try (var os = new FileOutputStream(tempFile)) {
+      chain.store(os, "TaMM backup chain");
+    }
+    Files.move(tempFile.toPath(), chainFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+  
+  /**
+   * Returns the configured compression level, values out of
+   * range select the default level.
+   * 
+   * @return 
+   */
+  private int getCompressionLevel() {
+    int level = application.adminData.backupcompression;
+    if ((level < Deflater.NO_COMPRESSION) || (level > Deflater.BEST_COMPRESSION)) {
+      return Deflater.DEFAULT_COMPRESSION;
+    }
+    
+    return level;
+  }
+  
+  private synchronized void entryDone(BackupEntry entry) {
+    if (entry.isTable()) {
+      status.tablesDone++;
+    }
+  }
+  
+  private synchronized void setType(String type) {
+    status.type = type;
+  }
+  
+  private synchronized void finish(String state, String fileName, String message) {
+    status.state = state;
+    status.fileName = fileName;
+    status.message = message;
+  }
+}
@@ -6,13 +6,13 @@ package de.mmth.tamm;
 
 import de.mmth.tamm.data.AdminData;
 import de.mmth.tamm.data.ClientData;
+import de.mmth.tamm.data.IndexAdviceData;
 import de.mmth.tamm.data.KeyValue;
 import de.mmth.tamm.data.LockData;
 import de.mmth.tamm.data.RoleAssignmentData;
 import de.mmth.tamm.data.RoleData;
 import de.mmth.tamm.data.SessionData;
 import de.mmth.tamm.utils.DateUtils;
-import de.mmth.tamm.utils.FileUtils;
 import de.mmth.tamm.utils.Placeholder;
 import de.mmth.tamm.utils.RequestCache;
 import de.mmth.tamm.utils.ServletUtils;
@@ -23,11 +23,11 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
 import org.apache.commons.mail.EmailException;
 import org.apache.logging.log4j.Logger;
 
@@ -38,6 +38,9 @@ import org.apache.logging.log4j.Logger;
  */
 public class GetProcessor {
   private static final Logger logger = TammLogger.prepareLogger(GetProcessor.class);
+  static final String BACKUP_STREAM = "stream";
+  private static final String BACKUP_INCREMENTAL = "incremental";
+  private static final String STATS_RESET = "reset";
   
   private final ApplicationData application;
   
@@ -68,6 +71,14 @@ public class GetProcessor {
         processBackup(resultData, session, cmd4);
         break;
         
+      case "backupstatus":
+        processBackupStatus(resultData, session, cmd4);
+        break;
+        
+      case "restorestatus":
+        processRestoreStatus(resultData, session);
+        break;
+        
       case "session":
         processSession(resultData, session);
         break;
@@ -111,11 +122,31 @@ public class GetProcessor {
       case "invitation":
         processInvitation(resultData, session, cmd4);
         break;
+        
+      case "indexadvice":
+        processIndexAdvice(resultData, session);
+        break;
+        
+      case "dbstats":
+        processDbStats(resultData, session, cmd4);
+        break;
+        
+      case "slowqueries":
+        processSlowQueries(resultData, session, cmd4);
+        break;
     }
   }
   
   /**
-   * Create database backup and prepare ZIP file for download.
+   * Starts a database backup job or downloads a finished backup.
+   * 
+   * Without parameter a new backup job is started, unless
+   * another job is still running. The result contains the
+   * job status, progress can be read with backupstatus.
+   * 
+   * Parameter "incremental" starts a backup of the changes since
+   * the previous backup. With parameter "stream" the ZIP file of
+   * a full backup is written directly into the response. 
    * 
    * Uses a directory named "backup" side by side with the
    * files upload directory. 
@@ -128,28 +159,25 @@ public class GetProcessor {
    */
   private void processBackup(OutputStream resultData, SessionData session, String cmd) throws TammError, IOException {
     if (session.user.mainAdmin) {
-      if ((cmd == null) || cmd.isBlank()) {
-        var destinationDir = new File(application.backupbase, "Backup." + DateUtils.formatS(null));
-        destinationDir.mkdir();
-        List<File> files = new ArrayList<>();
-        files.add(application.tasks.backup(application.copyManager, destinationDir));
-        files.add(application.clients.backup(application.copyManager, destinationDir));
-        files.add(application.assignments.backup(application.copyManager, destinationDir));
-        files.add(application.attachments.backup(application.copyManager, destinationDir));
-        files.add(application.history.backup(application.copyManager, destinationDir));
-        files.add(application.locks.backup(application.copyManager, destinationDir));
-        files.add(application.roles.backup(application.copyManager, destinationDir));
-        files.add(application.users.backup(application.copyManager, destinationDir));
-        var guid = "Backup." + DateUtils.formatS(null) + "-" + UUID.randomUUID().toString();
-        FileUtils.zipDirectory(destinationDir, guid);
-        
-        // remove temp files
-        for (var file: files) {
-          file.delete();
+      if ((cmd == null) || cmd.isBlank() || cmd.equals(BACKUP_INCREMENTAL)) {
+        synchronized (application) {
+          if ((application.backupJob == null) || !application.backupJob.isRunning()) {
+            application.backupJob = new BackupJob(application, cmd != null && cmd.equals(BACKUP_INCREMENTAL));
+            application.backupJob.start();
+          }
         }
-        destinationDir.delete();
         
-        ServletUtils.sendResult(resultData, true, "", "", guid + ".zip", session);
+        var status = application.backupJob.getStatus();
+        ServletUtils.sendResult(resultData, true, "", "", status.id, status);
+      } else if (cmd.equals(BACKUP_STREAM)) {
+        // stream the ZIP file directly, nothing is stored on the server.
+        // on error, part of the ZIP file may be sent already, so the
+        // caller aborts the response instead of sending a JSON result.
+        try {
+          new BackupJob(application).writeBackup(resultData);
+        } catch (SQLException ex) {
+          throw new IOException("Error streaming backup.", ex);
+        }
       } else {
         // upload zip File
         var zipFile = new File(application.backupbase, cmd);
@@ -160,6 +188,121 @@ public class GetProcessor {
     }
   }
   
+  /**
+   * Returns the status of the given backup job.
+   * 
+   * @param resultData
+   * @param session
+   * @param jobId
+   * @throws IOException 
+   */
+  private void processBackupStatus(OutputStream resultData, SessionData session, String jobId) throws IOException {
+    var job = application.backupJob;
+    if ((session.user == null) || !session.user.mainAdmin) {
+      ServletUtils.sendResult(resultData, false, "", "", Txt.get(session.lang, "access_denied"), null);
+    } else if ((job == null) || !job.getStatus().id.equals(jobId)) {
+      ServletUtils.sendResult(resultData, false, "", "", "Unknown backup job.", null);
+    } else {
+      var status = job.getStatus();
+      ServletUtils.sendResult(resultData, !status.state.equals("error"), "", "", status.message, status);
+    }
+  }
+  
+  /**
+   * Returns the status of the latest restore job.
+   * 
+   * @param resultData
+   * @param session
+   * @throws IOException 
+   */
+  private void processRestoreStatus(OutputStream resultData, SessionData session) throws IOException {
+    var job = application.restoreJob;
+    if ((session.user == null) || !session.user.mainAdmin) {
+      ServletUtils.sendResult(resultData, false, "", "", Txt.get(session.lang, "access_denied"), null);
+    } else if (job == null) {
+      ServletUtils.sendResult(resultData, false, "", "", "No restore job.", null);
+    } else {
+      var status = job.getStatus();
+      ServletUtils.sendResult(resultData, !status.state.equals("error"), "", "", status.message, status);
+    }
+  }
+  
+  
+  /**
+   * Explains the registered statements of all tables.
+   * 
+   * Used by the system administrator to find queries
+   * running sequential scans.
+   * 
+   * @param resultData
+   * @param session
+   * @throws IOException 
+   */
+  private void processIndexAdvice(OutputStream resultData, SessionData session) throws IOException {
+    if ((session.user == null) || !session.user.mainAdmin) {
+      ServletUtils.sendResult(resultData, false, "", "", Txt.get(session.lang, "access_denied"), null);
+      return;
+    }
+    
+    List<IndexAdviceData> result = new ArrayList<>();
+    for (var table: application.getTables()) {
+      result.addAll(table.adviseIndexes());
+    }
+    
+    ServletUtils.sendResult(resultData, true, "", "", "", result);
+  }
+  
+  /**
+   * Returns the execution statistics of all registered
+   * statements, latencies in microseconds.
+   * 
+   * Parameter "reset" clears the statistics after reading.
+   * 
+   * @param resultData
+   * @param session
+   * @param cmd4
+   * @throws IOException 
+   */
+  private void processDbStats(OutputStream resultData, SessionData session, String cmd4) throws IOException {
+    if ((session.user == null) || !session.user.mainAdmin) {
+      ServletUtils.sendResult(resultData, false, "", "", Txt.get(session.lang, "access_denied"), null);
+      return;
+    }
+    
+    var stats = application.db.getStatementStats();
+    var result = stats.snapshot();
+    if (STATS_RESET.equals(cmd4)) {
+      stats.reset();
+    }
+    
+    ServletUtils.sendResult(resultData, true, "", "", "", result);
+  }
+  
+  /**
+   * Returns the latest statements exceeding the slow
+   * query threshold, with their query plans.
+   * 
+   * Parameter "reset" clears the list after reading.
+   * 
+   * @param resultData
+   * @param session
+   * @param cmd4
+   * @throws IOException 
+   */
+  private void processSlowQueries(OutputStream resultData, SessionData session, String cmd4) throws IOException {
+    if ((session.user == null) || !session.user.mainAdmin) {
+      ServletUtils.sendResult(resultData, false, "", "", Txt.get(session.lang, "access_denied"), null);
+      return;
+    }
+    
+    var slowQueries = application.db.getSlowQueryLog();
+    var result = slowQueries.getEntries();
+    if (STATS_RESET.equals(cmd4)) {
+      slowQueries.clear();
+    }
+    
+    ServletUtils.sendResult(resultData, true, "", "", "", result);
+  }
   
   /**
    * User request to add his mail address to the lock list.
@@ -316,15 +459,14 @@ public class GetProcessor {
    * @throws IOException 
    */
   private void processLockList(OutputStream resultData, SessionData session, String cmd4) throws TammError, IOException {
-    List<LockData> result = null;
-    String message = "";
     if ((session.user == null) || !session.user.mainAdmin) {
-      message = Txt.get(session.lang, "access_denied");
-    } else {
-      result = application.locks.listLocks(cmd4);
+      String message = Txt.get(session.lang, "access_denied");
+      ServletUtils.sendResult(resultData, false, "", "", message, null);
+      return;
     }
     
-    ServletUtils.sendResult(resultData, message.isEmpty(), "", "", message, result);
+    ServletUtils.<LockData>streamResult(resultData, "", "", handler -> 
+        application.locks.streamLocks(cmd4, null, handler));
   }
 
   /**
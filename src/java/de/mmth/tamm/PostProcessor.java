@@ -105,6 +105,10 @@ public class PostProcessor {
           taskProcessor.processFilter(reader, resultData, session);
           break;
           
+        case "readtask":
+          taskProcessor.processReadTask(reader, resultData, session);
+          break;
+          
         case "advancetask":
           taskProcessor.processAdvance(reader, resultData, session);
           break;
@@ -121,6 +125,10 @@ public class PostProcessor {
           processDomainLock(reader, resultData, session);
           break;
           
+        case "locklist":
+          processLockList(reader, resultData, session);
+          break;
+          
         case "saverole":
           processSaveRole(reader, resultData, session);
           break;
@@ -208,8 +216,6 @@ public class PostProcessor {
           application.users.updateLoginDate(session.client.id, user.id, session.loginTime);
           loginValid = true;
           
-          session.myRoles = application.assignments.listRoleAssignments(user.id);
-          
           if (loginData.keep) {
             var cookie = application.keepAlive.addLogin(user.id, application.adminData.keepalivetime * MILLIS_PER_DAY);
             result.data = cookie;
@@ -395,6 +401,29 @@ public class PostProcessor {
     ServletUtils.sendResult(resultData, message.isEmpty(), "", "", message, null);
   }
 
+  /**
+   * Returns one page of locked mail addresses.
+   * 
+   * The filter text may contain SQL wildcard characters.
+   * 
+   * @param reader
+   * @param resultData
+   * @param session
+   * @throws TammError
+   * @throws IOException 
+   */
+  private void processLockList(Reader reader, OutputStream resultData, SessionData session) throws TammError, IOException {
+    if ((session.user == null) || !session.user.mainAdmin) {
+      String message = Txt.get(session.lang, "access_denied");
+      ServletUtils.sendResult(resultData, false, "", "", message, null);
+      return;
+    }
+    
+    FindData findData = new Gson().fromJson(reader, FindData.class);
+    ServletUtils.<LockData>streamResult(resultData, "", "", handler -> 
+        application.locks.streamLocks(findData.filterText, findData, handler));
+  }
+
   /**
    * Update existing role or insert new role.
    * 
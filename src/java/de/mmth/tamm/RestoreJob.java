@@ -0,0 +1,150 @@
+/*
+ * (c) 2024 by Matthias Thiele
+ * GNU General Public License v3.0
+ */
+package de.mmth.tamm;
+
+import de.mmth.tamm.data.BackupJobData;
+import de.mmth.tamm.db.DBTable;
+import java.io.File;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.logging.log4j.Logger;
+import org.postgresql.copy.CopyManager;
+import org.postgresql.core.BaseConnection;
+
+/**
+ * Restores the tables of an unzipped backup.
+ *
+ * The tables are independent of each other, so they are
+ * loaded in parallel, each on its own connection. The
+ * progress is written into the log file and can be read
+ * with getStatus, like the status of a backup job.
+ *
+ * @author matthias
+ */
+public class RestoreJob {
+  private static final Logger logger = TammLogger.prepareLogger(RestoreJob.class);
+  private static final int RESTORE_THREADS = 4;
+
+  private final ApplicationData application;
+  private final File sourceDir;
+  private final boolean incremental;
+  private final BackupJobData status = new BackupJobData();
+
+  /**
+   * Constructor with dependency injection of the application object.
+   *
+   * @param application
+   * @param sourceDir directory with the table files
+   * @param incremental true: apply the changes of an incremental backup
+   */
+  public RestoreJob(ApplicationData application, File sourceDir, boolean incremental) {
+    this.application = application;
+    this.sourceDir = sourceDir;
+    this.incremental = incremental;
+    status.id = UUID.randomUUID().toString();
+    status.state = "running";
+    status.tablesTotal = application.getTables().length;
+    status.fileName = sourceDir.getName();
+    status.message = "";
+    status.type = incremental ? BackupJob.TYPE_INCREMENTAL : BackupJob.TYPE_FULL;
+  }
+  
+  /**
+   * Returns a copy of the current job status.
+   * 
+   * @return 
+   */
+  public synchronized BackupJobData getStatus() {
+    var result = new BackupJobData();
+    result.id = status.id;
+    result.state = status.state;
+    result.tablesDone = status.tablesDone;
+    result.tablesTotal = status.tablesTotal;
+    result.fileName = status.fileName;
+    result.message = status.message;
+    result.type = status.type;
+    return result;
+  }
+
+  /**
+   * Restores all tables and waits until they are done.
+   *
+   * The file of each restored table is deleted, the files
+   * of tables with errors remain in the directory.
+   *
+   * @return number of restored tables
+   * @throws InterruptedException
+   */
+  public int run() throws InterruptedException {
+    var tables = application.getTables();
+    var threads = Math.max(1, Math.min(RESTORE_THREADS, application.adminData.dbpoolmax / 2));
+    var executor = Executors.newFixedThreadPool(threads);
+    long start = java.lang.System.currentTimeMillis();
+    logger.info("Restore of " + tables.length + " tables started with " + threads + " threads.");
+
+    int restored = 0;
+    try {
+      List<Future<Boolean>> results = new ArrayList<>();
+      for (var table: tables) {
+        results.add(executor.submit(() -> restoreTable(table, tables.length)));
+      }
+
+      for (var result: results) {
+        try {
+          if (result.get()) {
+            restored++;
+          }
+        } catch (ExecutionException ex) {
+          logger.warn("Restore error.", ex.getCause());
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    var message = restored + " of " + tables.length + " tables restored in "
+            + (java.lang.System.currentTimeMillis() - start) + " ms.";
+    logger.info("Restore finished, " + message);
+    synchronized (this) {
+      status.state = (restored == tables.length) ? "done" : "error";
+      status.message = message;
+    }
+    return restored;
+  }
+
+  /**
+   * Restores one table on its own connection.
+   *
+   * @param table
+   * @param tablesTotal
+   * @return true if restored
+   * @throws SQLException
+   */
+  private boolean restoreTable(DBTable table, int tablesTotal) throws SQLException {
+    long start = java.lang.System.currentTimeMillis();
+    try (var dbc = application.db.getConnection()) {
+      var copyManager = new CopyManager(dbc.unwrap(BaseConnection.class));
+      var file = incremental ? table.restoreIncremental(dbc, copyManager, sourceDir) : table.restore(dbc, copyManager, sourceDir);
+      if (file == null) {
+        logger.warn("Table " + table.getTableName() + " not restored, keep file.");
+        return false;
+      }
+
+      int done;
+      synchronized (this) {
+        done = ++status.tablesDone;
+      }
+      logger.info("Restore " + done + "/" + tablesTotal + ": table " + table.getTableName()
+              + ", " + file.length() + " bytes in " + (java.lang.System.currentTimeMillis() - start) + " ms.");
+      file.delete();
+      return true;
+    }
+  }
+}
@@ -6,6 +6,7 @@
 package de.mmth.tamm;
 
 import de.mmth.tamm.data.SessionData;
+import de.mmth.tamm.utils.DateUtils;
 import de.mmth.tamm.utils.ServletUtils;
 import de.mmth.tamm.utils.Txt;
 import java.io.IOException;
@@ -58,12 +59,21 @@ public class System extends HttpServlet {
   /**
    * Stops background worker thread.
    * Persists password recovery keys from requestCache.
+   * Writes the buffered lock counters and login dates.
    */
   @Override
   public void destroy() {
     logger.info("Stop background worker.");
     backgroundWorker.interrupt();
     
+    if (application.locks != null) {
+      application.locks.flushLockCounts();
+    }
+    
+    if (application.users != null) {
+      application.users.flushLoginDates();
+    }
+    
     if (application.rootPath != null) {
       File requestCache = new File(application.rootPath, "requestCache.lines");
       requestCache.delete();
@@ -75,6 +85,25 @@ public class System extends HttpServlet {
     }
   }
   
+  /**
+   * Dispatches the request and releases the session
+   * bound to the request thread afterwards.
+   *
+   * @param request servlet request
+   * @param response servlet response
+   * @throws ServletException if a servlet-specific error occurs
+   * @throws IOException if an I/O error occurs
+   */
+  @Override
+  protected void service(HttpServletRequest request, HttpServletResponse response)
+          throws ServletException, IOException {
+    try {
+      super.service(request, response);
+    } finally {
+      ServletUtils.releaseSession(application);
+    }
+  }
+  
   /**
    * Handles the HTTP <code>GET</code> method.
    *
@@ -88,6 +117,7 @@ public class System extends HttpServlet {
           throws ServletException, IOException {
     try (InputStream content = request.getInputStream()) {
       ServletOutputStream out = response.getOutputStream();
+      boolean isBackupStream = false;
       try {
         SessionData sd = ServletUtils.prepareSession(application, request);
 
@@ -114,15 +144,28 @@ public class System extends HttpServlet {
           response.setHeader("Content-Type", "text/html; charset=UTF-8");
         }
         
+        isBackupStream = cmd.equals("backup") && cmd4.equals(GetProcessor.BACKUP_STREAM);
+        if (isBackupStream) {
+          response.setHeader("Content-Type", "application/zip");
+          response.setHeader("Content-Disposition", "attachment; filename=\"Backup." + DateUtils.formatS(null) + ".zip\"");
+        }
+        
         getProcessor.process(sd, cmd, content, out, cmd4);
         ServletUtils.checkLogout(request, cmd, application.keepAlive);
         
         out.flush();
       } catch(TammError te) {
-        ServletUtils.sendResult(out, false, "", "", te.getMessage(), null);
+        if (isBackupStream) {
+          ServletUtils.abortResponse(response);
+        } else {
+          ServletUtils.sendResult(out, false, "", "", te.getMessage(), null);
+        }
       } catch(Throwable ex) {
         // dont leak internal exceptions to browser
         logger.warn("Unexpected error in get processing.", ex);
+        if (isBackupStream) {
+          ServletUtils.abortResponse(response);
+        }
       }
     }
   }
@@ -104,27 +104,57 @@ public class TaskProcessor {
     logger.debug("Search tasklist " + findData.filterText);
     int userId = findData.userId; 
     
-    List<TaskData> searchResult;
     switch (findData.source) {
       case "tasklist":
-        searchResult = application.tasks.listTasks(session.client.id, userId, findData.filterText, findData.withRoleTasks);
+        ServletUtils.<TaskData>streamList(resultData, gson, handler -> 
+            application.tasks.streamTasks(session.client.id, userId, findData.filterText, findData.withRoleTasks, findData, handler));
         break;
     
       case "historylist":
         long taskId = findData.filterText.isBlank() ? -1 : Long.parseLong(findData.filterText); 
-        searchResult = application.history.listTasks(session.client.id, taskId);
+        ServletUtils.<TaskData>streamList(resultData, gson, handler -> 
+            application.history.streamTasks(session.client.id, taskId, findData, handler));
         break;
         
       default:
-        searchResult = new ArrayList<>();
+        try (Writer writer = new OutputStreamWriter(resultData)) {
+          gson.toJson(new ArrayList<TaskData>(), writer);
+        }
         break;
     }
+  }
 
+  
+  /**
+   * Returns the complete task data of the task selected
+   * in the task list.
+   * 
+   * The task list contains only summary rows, description
+   * and interval are read when the task is opened. Only
+   * tasks the user may process are returned.
+   * 
+   * @param reader
+   * @param resultData
+   * @param session
+   * @throws IOException
+   * @throws TammError 
+   */
+  protected void processReadTask(Reader reader, OutputStream resultData, SessionData session) throws IOException, TammError {
+    if (session.user == null) {
+      String msg = Txt.get(session.lang, "missing_login");
+      throw new TammError(msg);
+    }
+    
+    TaskData selectedTask = gson.fromJson(reader, TaskData.class);
+    TaskData taskData = application.tasks.readTask(session.client.id, selectedTask.lId);
+    if (!isMyTask(session, taskData.owner)) {
+      throw new TammError("Not your task.");
+    }
+    
     try (Writer writer = new OutputStreamWriter(resultData)) {
-      gson.toJson(searchResult, writer);
+      gson.toJson(taskData, writer);
     }
   }
-
   
   /**
    * Advance selected task to next date after today.
@@ -187,22 +217,13 @@ public class TaskProcessor {
    * @param session
    * @param owner
    * @return 
+   * @throws TammError
    */
-  private boolean isMyTask(SessionData session, int owner) {
+  private boolean isMyTask(SessionData session, int owner) throws TammError {
     if ((owner == session.user.id) || session.user.mainAdmin) {
       return true;
     }
     
-    if ((session.myRoles != null) && (session.myRoles.roles != null)) {
-      for (int roleId: session.myRoles.roles) {
-        if (roleId == owner) {
-          return true;
-        }
-      }
-    } else {
-      logger.info("User has no roles information: " + session.user.name);
-    }
-    
-    return false;
+    return application.assignments.isEffectiveOwner(session.user.id, owner);
   }
 }
@@ -41,6 +41,25 @@ public class Upload extends HttpServlet {
   private final Gson gson = new GsonBuilder().create();
   private FileProcessor fileProcessor = null;
   
+  /**
+   * Dispatches the request and releases the session
+   * bound to the request thread afterwards.
+   *
+   * @param request servlet request
+   * @param response servlet response
+   * @throws ServletException if a servlet-specific error occurs
+   * @throws IOException if an I/O error occurs
+   */
+  @Override
+  protected void service(HttpServletRequest request, HttpServletResponse response)
+          throws ServletException, IOException {
+    try {
+      super.service(request, response);
+    } finally {
+      ServletUtils.releaseSession(getApplication());
+    }
+  }
+  
   /**
    * Handles the HTTP <code>GET</code> method.
    *
@@ -101,6 +120,8 @@ public class Upload extends HttpServlet {
     
     String message = "";
     List<String> result = new ArrayList<>();
+    List<AttachmentData> attachments = new ArrayList<>();
+    List<Part> parts = new ArrayList<>();
     for (Part part : request.getParts()) {
       String fileName = part.getSubmittedFileName();
       if ((fileName == null) || fileName.isBlank()) {
@@ -119,15 +140,19 @@ public class Upload extends HttpServlet {
       logger.info(attachment.guid + " - " + attachment.fileName);
       
       result.add(attachment.guid);
-      try {
-        application.attachments.writeAttachment(attachment);
-      } catch (TammError ex) {
-        message = "Error writing file attachment.";
+      attachments.add(attachment);
+      parts.add(part);
+    }
+    
+    try {
+      application.attachments.writeAttachments(attachments);
+      for (int i = 0; i < attachments.size(); i++) {
+        File dest = ServletUtils.prepareDestinationPath(application.rootPath, attachments.get(i));
+        parts.get(i).write(dest.getPath());
+        logger.info("File written: " + dest.getPath());
       }
-              
-      File dest = ServletUtils.prepareDestinationPath(application.rootPath, attachment);
-      part.write(dest.getPath());
-      logger.info("File written: " + dest.getPath());
+    } catch (TammError ex) {
+      message = "Error writing file attachment.";
     }
     
     ServletUtils.sendResult(response.getOutputStream(), message.isBlank(), "", "", message, result);
@@ -54,12 +54,12 @@ public class UserProcessor {
     int userId = session.user.id; 
     if (userId == 1) userId = -1; // TODO remove
     int clientId = (session.user.mainAdmin) ? -1 : session.client.id;
-    var searchResult = application.users.listUsers(clientId, userId, findData.filterText, findData.onlyAdmins);
-    for (UserData user: searchResult) {
-      user.pwd = ""; // do not leak user passwords to the outside.
-    }
-    
-    ServletUtils.sendResult(resultData, true, "", "", "", searchResult);
+    final int adminId = userId;
+    ServletUtils.<UserData>streamResult(resultData, "", "", handler -> 
+        application.users.streamUsers(clientId, adminId, findData.filterText, findData.onlyAdmins, findData, user -> {
+          user.pwd = ""; // do not leak user passwords to the outside.
+          handler.handle(user);
+        }));
   }
   
   /**
@@ -12,8 +12,15 @@ package de.mmth.tamm.data;
 public class AdminData {
   // Database access
   public String dburl;
+  /** jdbc url of a streaming replica for read-only queries, empty: none */
+  public String replicaurl;
   public String name;
   public String password;
+  public int dbpoolmin;
+  public int dbpoolmax;
+  public int nodeid;
+  /** slow query log threshold, 0: off (default), logs the parameters and plans of slow statements */
+  public int slowquerymillis;
   
   // Filesystem storage
   public String uploadbase;
@@ -31,4 +38,8 @@ public class AdminData {
   public int mailsperday;
   public int loginretry;
   public int pwdreqvaildhours; 
+  public int historyarchivedays;
+  public int backupcompression;
+  public int backupfulldays;
+  public boolean backupbinary;
 }
@@ -0,0 +1,23 @@
+/*
+ * (c) 2024 by Matthias Thiele
+ * GNU General Public License v3.0
+ */
+package de.mmth.tamm.data;
+
+/**
+ * Progress information of a backup or restore job.
+ * 
+ * @author matthias
+ */
+public class BackupJobData {
+  public String id;
+  /** running, done or error */
+  public String state;
+  public int tablesDone;
+  public int tablesTotal;
+  /** name of the ZIP file, set when done, or the restored directory */
+  public String fileName;
+  public String message;
+  /** full or incremental */
+  public String type;
+}
@@ -15,4 +15,15 @@ public class FindData {
   public int userId;
   public boolean onlyAdmins;
   public boolean withRoleTasks;
+  /** search name and description with ranked full text search */
+  public boolean fullText;
+  /** task list with summary rows, without description and interval */
+  public boolean summary;
+  
+  /** max number of returned rows, 0: complete list */
+  public int pageSize;
+  /** sort keys of the last row of the previous page, null: first page */
+  public String afterKey;
+  public String afterKey2;
+  public long afterId;
 }
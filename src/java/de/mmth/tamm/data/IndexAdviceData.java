@@ -0,0 +1,18 @@
+/*
+ * (c) 2024 by Matthias Thiele
+ * GNU General Public License v3.0
+ */
+package de.mmth.tamm.data;
+
+/**
+ * Query plan summary of a registered statement.
+ * 
+ * @author matthias
+ */
+public class IndexAdviceData {
+  public String tableName;
+  public String statement;
+  public String seqScans;
+  public double totalCost;
+  public String message;
+}
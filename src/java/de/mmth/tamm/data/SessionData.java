@@ -5,6 +5,7 @@
 package de.mmth.tamm.data;
 
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Session data.
@@ -23,5 +24,7 @@ public class SessionData {
 
   // only for system admins, null otherwise  
   public List<KeyValue> clientList;
-  public RoleAssignmentData myRoles;
+  
+  // time of the last database write, keeps reads on the primary database
+  public transient AtomicLong lastWrite = new AtomicLong();
 }
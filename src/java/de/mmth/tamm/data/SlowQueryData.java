@@ -0,0 +1,23 @@
+/*
+ * (c) 2024 by Matthias Thiele
+ * GNU General Public License v3.0
+ */
+package de.mmth.tamm.data;
+
+import java.util.List;
+
+/**
+ * Execution of a statement which exceeded the slow
+ * query threshold, with its query plan.
+ * 
+ * @author matthias
+ */
+public class SlowQueryData {
+  public String time;
+  public String statement;
+  public String sql;
+  /** bound parameters, passwords and mail addresses redacted */
+  public List<String> params;
+  public long micros;
+  public String plan;
+}
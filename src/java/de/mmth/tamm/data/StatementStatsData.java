@@ -0,0 +1,24 @@
+/*
+ * (c) 2024 by Matthias Thiele
+ * GNU General Public License v3.0
+ */
+package de.mmth.tamm.data;
+
+/**
+ * Execution statistics of a registered statement,
+ * latencies in microseconds.
+ * 
+ * @author matthias
+ */
+public class StatementStatsData {
+  public String statement;
+  public long count;
+  public long errors;
+  public long rows;
+  public long totalMillis;
+  public long mean;
+  public long p50;
+  public long p90;
+  public long p99;
+  public long max;
+}
@@ -7,7 +7,6 @@ package de.mmth.tamm.db;
 import de.mmth.tamm.TammError;
 import de.mmth.tamm.TammLogger;
 import de.mmth.tamm.data.AttachmentData;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
@@ -33,8 +32,16 @@ public class AttachmentTable extends DBTable {
     """
     create index if not exists ixattachtaskids on {[tablename]} (lid);
     create index if not exists ixattguid on {[tablename]} (guid);
+    create index if not exists {[tablename]}_client_lid on {[tablename]} (clientid, lid, name);
     """;
   
+  private static final String REMOVE_ATTACHMENT = "removeAttachment";
+  private static final String LIST_ATTACHMENTS = "listAttachments";
+  
+  private final RowMapping<AttachmentData> mapping = createMapping(AttachmentData.class)
+          .alias("lid", "taskId")
+          .alias("name", "fileName");
+  
   /**
    *
    * @param conn
@@ -42,6 +49,9 @@ public class AttachmentTable extends DBTable {
    */
   public AttachmentTable(DBConnect conn, String tableName) {
     super(conn, tableName, TABLE_CONFIG, INDEX_CONFIG);
+    
+    registerStatement(REMOVE_ATTACHMENT, "DELETE FROM " + tableName + " where clientid = ? and guid = ? ");
+    registerQuery(LIST_ATTACHMENTS, "SELECT " + selectNames + " FROM " + tableName + " WHERE clientid = ? and lid = ? ORDER BY name");
   }
   
   /**
@@ -53,21 +63,20 @@ public class AttachmentTable extends DBTable {
    * @throws TammError 
    */
   public void writeAttachment(AttachmentData attachment) throws TammError {
-    String cmd;
-    cmd = "INSERT INTO " + tableName + " (" + insertNames + ") values " + paramPlaceholders;
-    logger.debug("SQL: " + cmd);
-    
+    writeAttachments(List.of(attachment));
+  }
+  
+  /**
+   * Writes a list of attachments in one batch.
+   * 
+   * Either all or none of the attachments are written.
+   * 
+   * @param attachments
+   * @throws TammError 
+   */
+  public void writeAttachments(List<AttachmentData> attachments) throws TammError {
     try {
-      try (var stmt = conn.getConnection().prepareStatement(cmd)) {
-        var col = 1;
-        stmt.setLong(col++, attachment.taskId);
-        stmt.setInt(col++, attachment.clientId);
-        stmt.setString(col++, attachment.fileName);
-        stmt.setString(col++, attachment.url);
-        stmt.setString(col++, attachment.guid);
-
-        stmt.execute();
-      }
+      writeBatch(INSERT, attachments, mapping::bind);
     } catch (SQLException ex) {
       logger.warn("Error writing attachment data.", ex);
       throw new TammError("Error writing attachment data.");
@@ -84,12 +93,8 @@ public class AttachmentTable extends DBTable {
    * @throws TammError 
    */
   public void removeAttachment(AttachmentData attachment) throws TammError {
-    String cmd;
-    cmd = "DELETE FROM " + tableName + " where clientid = ? and guid = ? ";
-    logger.debug("SQL: " + cmd);
-    
     try {
-      try (var stmt = conn.getConnection().prepareStatement(cmd)) {
+      try (var dbc = conn.getConnection(); var stmt = prepare(dbc, REMOVE_ATTACHMENT)) {
         var col = 1;
         stmt.setInt(col++, attachment.clientId);
         stmt.setString(col++, attachment.guid);
@@ -115,18 +120,15 @@ public class AttachmentTable extends DBTable {
   public List<AttachmentData> listAttachments(int clientId, long taskId) throws TammError {
     List<AttachmentData> result = new ArrayList<>();
     
-    var cmd = "SELECT " + this.selectNames + " FROM " + tableName + " WHERE clientid = ? and lid = ? ORDER BY name";
-    logger.debug("SQL: " + cmd);
-    
     try {
-      try (var stmt = conn.getConnection().prepareStatement(cmd)) {
+      try (var dbc = connect(LIST_ATTACHMENTS); var stmt = prepare(dbc, LIST_ATTACHMENTS)) {
         int paramCol = 1;
         stmt.setInt(paramCol++, clientId);
         stmt.setLong(paramCol++, taskId);
 
         var rows = stmt.executeQuery();
         while (rows.next()) {
-          var attachment = getData(rows);
+          var attachment = mapping.map(rows);
           logger.debug("Attachment found: " + attachment.fileName);
           result.add(attachment);
         }
@@ -138,24 +140,4 @@ public class AttachmentTable extends DBTable {
     return result;
   }
   
-  /**
-   * Copies the ResultSet attachment data into an AttachmentData object.
-   * 
-   * @param rows
-   * @return
-   * @throws SQLException 
-   */
-  private AttachmentData getData(ResultSet rows) throws SQLException {
-    var result = new AttachmentData();
-    
-    int col = 1;
-    result.taskId = rows.getLong(col++);
-    result.clientId = rows.getInt(col++);
-    result.fileName = rows.getString(col++);
-    result.url = rows.getString(col++);
-    result.guid = rows.getString(col++);
-    
-    return result;
-  }
-  
 }
@@ -7,7 +7,6 @@ package de.mmth.tamm.db;
 import de.mmth.tamm.TammError;
 import de.mmth.tamm.TammLogger;
 import de.mmth.tamm.data.ClientData;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
@@ -36,6 +35,11 @@ public final class ClientTable extends DBTable {
     create unique index if not exists ixclientids on {[tablename]} (id);
     """;
   
+  private static final String READ_CLIENT = "readClient";
+  private static final String UPDATE_CLIENT = "updateClient";
+  private static final String LIST_CLIENTS = "listClients";
+  private final RowMapping<ClientData> mapping = createMapping(ClientData.class);
+  
   /**
    * Open the clients table and create it if needed.
    * 
@@ -44,6 +48,10 @@ public final class ClientTable extends DBTable {
    */
   public ClientTable(DBConnect conn, String tableName) {
     super(conn, tableName, TABLE_CONFIG, INDEX_CONFIG);
+    
+    registerStatement(READ_CLIENT, "SELECT " + selectNames + " FROM " + tableName + " WHERE id = ?");
+    registerStatement(UPDATE_CLIENT, "UPDATE " + tableName + " SET " + updateNames + " WHERE id = ?");
+    registerStatement(LIST_CLIENTS, "SELECT " + selectNames + " FROM " + tableName + " ORDER BY name");
   }
   
   /**
@@ -77,11 +85,8 @@ public final class ClientTable extends DBTable {
   
   public ClientData readClient(int byId) throws TammError {
     ClientData result = null;
-    var cmd = "SELECT " + this.selectNames + " FROM " + tableName + " WHERE id = ?";
-    logger.debug("SQL: " + cmd);
-    
     try {
-      try (var stmt = conn.getConnection().prepareStatement(cmd)) {
+      try (var dbc = conn.getConnection(); var stmt = prepare(dbc, READ_CLIENT)) {
         stmt.setInt(1, byId);
         
         var clientRows = stmt.executeQuery();
@@ -90,7 +95,7 @@ public final class ClientTable extends DBTable {
           throw new TammError("Client not found.");
         }
         
-        result = getData(clientRows);
+        result = mapping.map(clientRows);
       }
     } catch (SQLException ex) {
       logger.warn("Error reading client data.", ex);
@@ -108,23 +113,14 @@ public final class ClientTable extends DBTable {
    * @throws TammError 
    */
   public void writeClient(ClientData client) throws TammError {
-    String cmd;
-    if (client.id == -1) {
-      cmd = "INSERT INTO " + tableName + " (" + insertNames + ") values " + paramPlaceholders;
-    } else {
-      cmd = "UPDATE " + tableName + " SET " + updateNames + " WHERE id = " + client.id;
-    }
-    logger.debug("SQL: " + cmd);
+    boolean isInsert = client.id == -1;
     
     try {
-      try (var stmt = conn.getConnection().prepareStatement(cmd)) {
-        var col = 1;
-        stmt.setString(col++, client.name);
-        stmt.setString(col++, client.hostName);
-        stmt.setString(col++, client.hostName2);
-        stmt.setString(col++, client.hostName3);
-        stmt.setInt(col++, client.maxDocMB);
-        stmt.setInt(col++, client.maxUser);
+      try (var dbc = conn.getConnection(); var stmt = prepare(dbc, isInsert ? INSERT : UPDATE_CLIENT)) {
+        var col = mapping.bind(stmt, client);
+        if (!isInsert) {
+          stmt.setInt(col, client.id);
+        }
 
         stmt.execute();
       }
@@ -143,14 +139,11 @@ public final class ClientTable extends DBTable {
   public List<ClientData> listClients() throws TammError {
     List<ClientData> result = new ArrayList<>();
     
-    var cmd = "SELECT " + this.selectNames + " FROM " + tableName + " ORDER BY name";
-    logger.debug("SQL: " + cmd);
-    
     try {
-      try (var stmt = conn.getConnection().prepareStatement(cmd)) {
+      try (var dbc = conn.getConnection(); var stmt = prepare(dbc, LIST_CLIENTS)) {
         var clientRows = stmt.executeQuery();
         while (clientRows.next()) {
-          var client = getData(clientRows);
+          var client = mapping.map(clientRows);
           logger.debug("Client found: " + client.name);
           result.add(client);
         }
@@ -162,25 +155,4 @@ public final class ClientTable extends DBTable {
     return result;
   }
   
-  /**
-   * Copies the ResultSet client data into an ClientData object.
-   * 
-   * @param clientRows
-   * @return
-   * @throws SQLException 
-   */
-  private ClientData getData(ResultSet clientRows) throws SQLException {
-    ClientData result = new ClientData();
-    
-    result.id = clientRows.getInt(1);
-    result.name = clientRows.getString(2);
-    result.hostName = clientRows.getString(3);
-    result.hostName2 = clientRows.getString(4);
-    result.hostName3 = clientRows.getString(5);
-    result.maxDocMB = clientRows.getInt(6);
-    result.maxUser = clientRows.getInt(7);
-    
-    return result;
-  }
-  
 }
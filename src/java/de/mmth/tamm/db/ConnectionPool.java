@@ -0,0 +1,393 @@
+/*
+ * (c) 2024 by Matthias Thiele
+ * GNU General Public License v3.0
+ */
+package de.mmth.tamm.db;
+
+import de.mmth.tamm.TammLogger;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Bounded pool of JDBC connections.
+ *
+ * Connections are borrowed with borrow() and given back by
+ * calling close() on the returned handle. The handle is a proxy
+ * of the physical connection, so callers use the usual
+ * try-with-resources pattern.
+ *
+ * Idle connections are validated before reuse if they have not
+ * been used for some time. Broken connections (e.g. after a
+ * database restart) are discarded and replaced by new ones.
+ *
+ * @author matthias
+ */
+public class ConnectionPool {
+  private static final Logger logger = TammLogger.prepareLogger(ConnectionPool.class);
+  private static final long BORROW_TIMEOUT_MILLIS = 10000;
+  private static final long VALIDATION_INTERVAL_MILLIS = 30000;
+  private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+  private final String url;
+  private final Properties connectProperties;
+  private final int minSize;
+  private final int maxSize;
+  private final Semaphore permits;
+  private final ConcurrentLinkedDeque<PooledEntry> idle = new ConcurrentLinkedDeque<>();
+  private final AtomicInteger openCount = new AtomicInteger();
+  private volatile String schemaName;
+  private volatile boolean closed = false;
+
+  /**
+   * Creates an empty pool. Physical connections are
+   * opened on demand or by calling maintain().
+   *
+   * @param url jdbc connection string
+   * @param userName user name
+   * @param password user password
+   * @param minSize number of connections kept open
+   * @param maxSize max number of connections in use at the same time
+   */
+  public ConnectionPool(String url, String userName, String password, int minSize, int maxSize) {
+    this.url = url;
+    this.maxSize = Math.max(1, maxSize);
+    this.minSize = Math.max(0, Math.min(minSize, this.maxSize));
+    this.permits = new Semaphore(this.maxSize, true);
+
+    connectProperties = new Properties();
+    connectProperties.setProperty("user", userName);
+    connectProperties.setProperty("password", password);
+    // use server side prepared statements from the first execution,
+    // the driver keeps them in its per connection statement cache.
+    connectProperties.setProperty("prepareThreshold", "1");
+    // send batched inserts as multi row VALUES statements.
+    connectProperties.setProperty("reWriteBatchedInserts", "true");
+  }
+
+  /**
+   * Sets the schema selected on each new connection.
+   *
+   * @param schemaName
+   */
+  public void setSchema(String schemaName) {
+    this.schemaName = schemaName;
+  }
+
+  /**
+   * Borrows a connection from the pool.
+   *
+   * Waits if all connections are in use. The connection
+   * must be closed by the caller, this gives it back to
+   * the pool.
+   *
+   * @return
+   * @throws SQLException if no connection is available
+   */
+  public Connection borrow() throws SQLException {
+    if (closed) {
+      throw new SQLException("Connection pool closed.");
+    }
+
+    try {
+      if (!permits.tryAcquire(BORROW_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+        logger.warn("Connection pool exhausted, max size " + maxSize);
+        throw new SQLException("No database connection available.");
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while waiting for a database connection.");
+    }
+
+    try {
+      return wrap(takeEntry());
+    } catch (SQLException | RuntimeException ex) {
+      permits.release();
+      throw ex;
+    }
+  }
+
+  /**
+   * Validates the idle connections and opens new ones
+   * up to the minimum pool size.
+   *
+   * Called regularly from the background worker.
+   */
+  public void maintain() {
+    if (closed) {
+      return;
+    }
+
+    long now = System.currentTimeMillis();
+    int count = idle.size();
+    for (int i = 0; i < count; i++) {
+      var entry = idle.pollLast();
+      if (entry == null) {
+        break;
+      }
+
+      if ((now - entry.lastUsed > VALIDATION_INTERVAL_MILLIS) && !isAlive(entry)) {
+        discard(entry);
+      } else {
+        idle.offerFirst(entry);
+      }
+    }
+
+    while (openCount.get() < minSize) {
+      try {
+        idle.offerLast(openEntry());
+      } catch (SQLException ex) {
+        logger.warn("Cannot open pool connection.", ex);
+        break;
+      }
+    }
+  }
+
+  /**
+   * Closes all idle connections. Borrowed connections
+   * will be closed when they are given back.
+   */
+  public void close() {
+    closed = true;
+    PooledEntry entry;
+    while ((entry = idle.pollFirst()) != null) {
+      discard(entry);
+    }
+  }
+
+  /**
+   * Returns the number of open physical connections.
+   * @return
+   */
+  public int getOpenCount() {
+    return openCount.get();
+  }
+
+  /**
+   * Returns the number of currently borrowed connections.
+   * @return
+   */
+  public int getActiveCount() {
+    return maxSize - permits.availablePermits();
+  }
+
+  /**
+   * Returns an idle connection or opens a new one.
+   *
+   * Connections idle for a longer time are validated
+   * first. If the validation fails, the database has
+   * probably been restarted and all idle connections
+   * are dropped.
+   *
+   * @return
+   * @throws SQLException
+   */
+  private PooledEntry takeEntry() throws SQLException {
+    PooledEntry entry;
+    while ((entry = idle.pollFirst()) != null) {
+      if (System.currentTimeMillis() - entry.lastUsed < VALIDATION_INTERVAL_MILLIS) {
+        return entry;
+      }
+
+      if (isAlive(entry)) {
+        return entry;
+      }
+
+      logger.warn("Stale pool connection found, drop all idle connections.");
+      discard(entry);
+      while ((entry = idle.pollFirst()) != null) {
+        discard(entry);
+      }
+    }
+
+    return openEntry();
+  }
+
+  /**
+   * Opens a new physical connection and selects the schema.
+   *
+   * @return
+   * @throws SQLException
+   */
+  private PooledEntry openEntry() throws SQLException {
+    Connection physical;
+    try {
+      physical = DriverManager.getConnection(url, connectProperties);
+    } catch(SQLException ex) {
+      // for some reason the first try always fails in Tomcat.
+      logger.warn("First driver manager connect failed, try again.");
+      physical = DriverManager.getConnection(url, connectProperties);
+    }
+
+    if (schemaName != null) {
+      try (var stmt = physical.createStatement()) {
+        stmt.execute("SET search_path TO " + schemaName);
+      } catch (SQLException ex) {
+        physical.close();
+        throw ex;
+      }
+    }
+
+    openCount.incrementAndGet();
+    logger.debug("Pool connection opened, open connections: " + openCount.get());
+    return new PooledEntry(physical);
+  }
+
+  /**
+   * Checks if the physical connection is still usable.
+   *
+   * @param entry
+   * @return
+   */
+  private boolean isAlive(PooledEntry entry) {
+    try {
+      return entry.physical.isValid(VALIDATION_TIMEOUT_SECONDS);
+    } catch (SQLException ex) {
+      return false;
+    }
+  }
+
+  /**
+   * Closes the physical connection of the entry.
+   *
+   * @param entry
+   */
+  private void discard(PooledEntry entry) {
+    openCount.decrementAndGet();
+    try {
+      entry.physical.close();
+    } catch (SQLException ex) {
+      logger.debug("Error closing pool connection.", ex);
+    }
+  }
+
+  /**
+   * Takes back a borrowed connection.
+   *
+   * Open transactions are rolled back. Broken connections
+   * are closed instead of being reused.
+   *
+   * @param entry
+   */
+  private void giveBack(PooledEntry entry) {
+    try {
+      boolean reusable = !closed && !entry.broken && !entry.physical.isClosed();
+      if (reusable && !entry.physical.getAutoCommit()) {
+        entry.physical.rollback();
+        entry.physical.setAutoCommit(true);
+      }
+
+      if (reusable) {
+        entry.lastUsed = System.currentTimeMillis();
+        idle.offerFirst(entry);
+      } else {
+        discard(entry);
+      }
+    } catch (SQLException ex) {
+      logger.warn("Cannot reset pool connection, discard it.", ex);
+      discard(entry);
+    } finally {
+      permits.release();
+    }
+  }
+
+  /**
+   * Creates the connection handle given to the caller.
+   *
+   * @param entry
+   * @return
+   */
+  private Connection wrap(PooledEntry entry) {
+    var handler = new PooledHandler(entry);
+    return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {Connection.class}, handler);
+  }
+
+  /**
+   * Physical connection and its pool state.
+   */
+  private static class PooledEntry {
+    final Connection physical;
+    volatile long lastUsed;
+    volatile boolean broken = false;
+
+    PooledEntry(Connection physical) {
+      this.physical = physical;
+      this.lastUsed = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Forwards all calls to the physical connection, close()
+   * gives the connection back to the pool.
+   */
+  private class PooledHandler implements InvocationHandler {
+    private final PooledEntry entry;
+    private boolean returned = false;
+
+    PooledHandler(PooledEntry entry) {
+      this.entry = entry;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      switch (method.getName()) {
+        case "close":
+          if (!returned) {
+            returned = true;
+            giveBack(entry);
+          }
+          return null;
+
+        case "isClosed":
+          return returned || entry.physical.isClosed();
+
+        case "equals":
+          return proxy == args[0];
+
+        case "hashCode":
+          return System.identityHashCode(proxy);
+
+        case "toString":
+          return "Pooled " + entry.physical;
+      }
+
+      if (returned) {
+        throw new SQLException("Connection has already been given back to the pool.");
+      }
+
+      try {
+        return method.invoke(entry.physical, args);
+      } catch (InvocationTargetException ex) {
+        var cause = ex.getCause();
+        if (cause instanceof SQLException sqlEx) {
+          checkBroken(sqlEx);
+        }
+        throw cause;
+      }
+    }
+
+    /**
+     * Connection errors (SQL state class 08) and server
+     * shutdown (57P) mark the connection as broken.
+     *
+     * @param ex
+     */
+    private void checkBroken(SQLException ex) {
+      var state = ex.getSQLState();
+      if ((state != null) && (state.startsWith("08") || state.startsWith("57P"))) {
+        logger.warn("Pool connection broken: " + state);
+        entry.broken = true;
+      }
+    }
+  }
+}
@@ -6,24 +6,42 @@
 package de.mmth.tamm.db;
 
 import de.mmth.tamm.TammLogger;
-import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.logging.log4j.Logger;
 
 /**
+ * Connection pool of the database.
+ * 
+ * With a replica url, read-only queries can be sent to
+ * a streaming replica. After a write, the reads of the
+ * same session stay on the primary for a short time, so
+ * the session sees its own changes despite replication lag.
  *
  * @author matthias
  */
 public class DBConnect {
   
   private static final Logger logger = TammLogger.prepareLogger(DBConnect.class);
-  private Connection conn;
-  private String dbName;
+  public static final int DEFAULT_POOL_MIN = 2;
+  public static final int DEFAULT_POOL_MAX = 10;
+  public static final long READ_YOUR_WRITES_MILLIS = 10000;
+  private static final String NODE_ID_SEQUENCE = "nodeids";
+  
+  private final ConnectionPool pool;
+  private ConnectionPool replicaPool;
+  private final ThreadLocal<AtomicLong> sessionWrites = new ThreadLocal<>();
+  private final String dbName;
   private boolean isValid;
+  private SchemaInfo schemaInfo;
+  private boolean schemaLoaded = false;
+  private final SlowQueryLog slowQueries = new SlowQueryLog(this);
+  private final StatementStats statementStats = new StatementStats(slowQueries);
   
   /**
-   * Creates a connection to the given database.
+   * Creates a connection to the given database using
+   * the default connection pool size.
    * 
    * @param url jdbc connection string
    * @param dbName schema name/ database name
@@ -31,44 +49,89 @@ public class DBConnect {
    * @param password user password
    */
   public DBConnect(String url, String dbName, String userName, String password) {
+    this(url, dbName, userName, password, DEFAULT_POOL_MIN, DEFAULT_POOL_MAX);
+  }
+  
+  /**
+   * Creates a connection pool to the given database.
+   * 
+   * @param url jdbc connection string
+   * @param dbName schema name/ database name
+   * @param userName user name
+   * @param password user password
+   * @param poolMin number of connections kept open
+   * @param poolMax max number of concurrently used connections
+   */
+  public DBConnect(String url, String dbName, String userName, String password, int poolMin, int poolMax) {
+    this(url, "", dbName, userName, password, poolMin, poolMax);
+  }
+  
+  /**
+   * Creates a connection pool to the given database and
+   * an optional pool to its streaming replica.
+   * 
+   * @param url jdbc connection string
+   * @param replicaUrl jdbc connection string of the replica, empty: no replica
+   * @param dbName schema name/ database name
+   * @param userName user name
+   * @param password user password
+   * @param poolMin number of connections kept open
+   * @param poolMax max number of concurrently used connections
+   */
+  public DBConnect(String url, String replicaUrl, String dbName, String userName, String password, int poolMin, int poolMax) {
     isValid = false;
+    logger.info("Start connecting to database " + dbName);
     try {
-      logger.info("Start connecting to database " + dbName);
-      try {
-        Class.forName("org.postgresql.Driver");
-      } catch (ClassNotFoundException ex) {
-        logger.warn("Cannot load postgres driver.", ex);
-      }
-      
-      try {
-        conn = DriverManager.getConnection(url, userName, password);
-      } catch(SQLException ex2) {
-        // for some reason the first try always fails in Tomcat.
-        logger.warn("First driver manager connect failed, try again.");
-        conn = DriverManager.getConnection(url, userName, password);        
-      }
-      this.dbName = dbName;
-      
-      if (conn != null) {
-        logger.info("Connected");
-        checkCreateDB(dbName);
-      }
+      Class.forName("org.postgresql.Driver");
+    } catch (ClassNotFoundException ex) {
+      logger.warn("Cannot load postgres driver.", ex);
+    }
+
+    this.dbName = dbName;
+    pool = new ConnectionPool(url, userName, password, poolMin, poolMax);
+    try (Connection conn = pool.borrow()) {
+      logger.info("Connected");
+      checkCreateDB(conn, dbName);
     } catch (SQLException ex) {
       logger.warn("Error connecting database.", ex);
       isValid = false;
-    }    
+    }
+    
+    if (isValid) {
+      pool.setSchema(dbName);
+      pool.maintain();
+      if ((replicaUrl != null) && !replicaUrl.isBlank()) {
+        logger.info("Use read replica for queries.");
+        replicaPool = new ConnectionPool(replicaUrl, userName, password, poolMin, poolMax);
+        replicaPool.setSchema(dbName);
+        replicaPool.maintain();
+      }
+    } else {
+      pool.close();
+    }
+  }
+  
+  /**
+   * Creates a connection with the given pools, used by tests
+   * of the query routing.
+   * 
+   * @param pool connections to the primary
+   * @param replicaPool connections to the replica, null: no replica
+   */
+  DBConnect(ConnectionPool pool, ConnectionPool replicaPool) {
+    this.pool = pool;
+    this.replicaPool = replicaPool;
+    this.dbName = "";
+    isValid = true;
   }
   
   /**
-   * Closes the database connection.
+   * Closes all database connections.
    */
   public void close() {
-    if (conn != null) {
-      try {
-        conn.close();
-      } catch (SQLException ex) {
-        logger.warn("Error closing db connection.", ex);
-      }
+    pool.close();
+    if (replicaPool != null) {
+      replicaPool.close();
     }
   }
   
@@ -82,11 +145,136 @@ public class DBConnect {
   }
   
   /**
-   * Returns the JDBC Connection handle.
+   * Borrows a JDBC Connection handle from the pool.
+   * 
+   * The handle must be closed after use, this returns
+   * the connection to the pool.
+   * 
+   * @return 
+   * @throws java.sql.SQLException 
+   */
+  public Connection getConnection() throws SQLException {
+    return pool.borrow();
+  }
+  
+  /**
+   * Borrows a connection handle for read-only queries.
+   * 
+   * The handle comes from the replica, if there is one and the
+   * session of the current thread did not write recently.
+   * Threads without session always read from the primary.
+   * If the replica is not reachable, the primary is used.
+   * 
+   * @return
+   * @throws SQLException 
+   */
+  public Connection getReadConnection() throws SQLException {
+    var lastWrite = sessionWrites.get();
+    if ((replicaPool == null) || (lastWrite == null) 
+            || (System.currentTimeMillis() - lastWrite.get() < READ_YOUR_WRITES_MILLIS)) {
+      return getConnection();
+    }
+    
+    try {
+      return replicaPool.borrow();
+    } catch (SQLException ex) {
+      logger.warn("Cannot connect read replica, use primary.", ex);
+      return getConnection();
+    }
+  }
+  
+  /**
+   * Binds the write marker of a session to the current thread.
+   * 
+   * Must be released with null at the end of the request,
+   * the threads of the servlet container are reused.
+   * 
+   * @param lastWrite time of the last write of the session, null: no session
+   */
+  public void bindSession(AtomicLong lastWrite) {
+    if (lastWrite == null) {
+      sessionWrites.remove();
+    } else {
+      sessionWrites.set(lastWrite);
+    }
+  }
+  
+  /**
+   * Notes a write of the session bound to the current thread.
+   */
+  void markWrite() {
+    var lastWrite = sessionWrites.get();
+    if (lastWrite != null) {
+      lastWrite.set(System.currentTimeMillis());
+    }
+  }
+  
+  /**
+   * Returns the catalog snapshot, read on first use.
+   * 
+   * @return null if the catalog cannot be read
+   */
+  synchronized SchemaInfo getSchemaInfo() {
+    if (!schemaLoaded) {
+      schemaLoaded = true;
+      try (var dbc = getConnection()) {
+        schemaInfo = SchemaInfo.load(dbc);
+      } catch (SQLException ex) {
+        logger.warn("Cannot read schema catalog.", ex);
+      }
+    }
+    
+    return schemaInfo;
+  }
+  
+  /**
+   * Returns the execution statistics of the registered statements.
+   * 
+   * @return 
+   */
+  public StatementStats getStatementStats() {
+    return statementStats;
+  }
+  
+  /**
+   * Returns the log of the slow statements.
+   * 
    * @return 
    */
-  public Connection getConnection() {
-    return conn;
+  public SlowQueryLog getSlowQueryLog() {
+    return slowQueries;
+  }
+  
+  /**
+   * Assigns a node id to this application instance.
+   * 
+   * Each call draws the next value of a database sequence,
+   * so instances started one after the other get different
+   * ids. An id is only reused after max + 1 further starts.
+   * 
+   * @param maxNodeId largest node id
+   * @return 0 to maxNodeId
+   * @throws SQLException 
+   */
+  public int assignNodeId(int maxNodeId) throws SQLException {
+    try (var dbc = getConnection(); var stmt = dbc.createStatement()) {
+      stmt.execute("CREATE SEQUENCE IF NOT EXISTS " + NODE_ID_SEQUENCE);
+      var rows = stmt.executeQuery("SELECT nextval('" + NODE_ID_SEQUENCE + "')");
+      rows.next();
+      return (int)Math.floorMod(rows.getLong(1) - 1, (long)maxNodeId + 1);
+    }
+  }
+  
+  /**
+   * Validates idle connections and reopens missing ones.
+   */
+  public void maintain() {
+    if (isValid) {
+      pool.maintain();
+      if (replicaPool != null) {
+        replicaPool.maintain();
+      }
+    }
   }
   
   /**
@@ -99,7 +287,7 @@ public class DBConnect {
   public boolean dropDB() {
     String dropCmd = "DROP SCHEMA " + dbName + " CASCADE";
     try {
-      try (java.sql.PreparedStatement dropSchema = conn.prepareStatement(dropCmd)) {
+      try (Connection conn = pool.borrow(); java.sql.PreparedStatement dropSchema = conn.prepareStatement(dropCmd)) {
         dropSchema.execute();
         logger.info("Database dropped: " + dbName);
         return true;
@@ -114,9 +302,10 @@ public class DBConnect {
   /**
    * Checks if a database with the given name exists and creates it if needed.
    * 
+   * @param conn
    * @param dbName 
    */
-  private void checkCreateDB(String dbName) {
+  private void checkCreateDB(Connection conn, String dbName) {
     String listCmd = "SELECT schema_name FROM information_schema.schemata where schema_name = ?;";
     String createCmd = "CREATE SCHEMA " + dbName;
     String selectCmd = "SET search_path TO " + dbName;
@@ -5,16 +5,43 @@
 
 package de.mmth.tamm.db;
 
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import de.mmth.tamm.TammLogger;
+import de.mmth.tamm.data.FindData;
+import de.mmth.tamm.data.IndexAdviceData;
+import de.mmth.tamm.utils.DateUtils;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Types;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.List;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
 import org.apache.logging.log4j.Logger;
 import org.postgresql.copy.CopyManager;
 
@@ -28,8 +55,62 @@ import org.postgresql.copy.CopyManager;
  */
 public class DBTable {
   private static final Logger logger = TammLogger.prepareLogger(DBTable.class);
+  protected static final String INSERT = "insert";
+  protected static final String ROW_COUNT = "rowCount";
+  private static final int BATCH_SIZE = 500;
+  private static final int FETCH_SIZE = 200;
+  private static final int CONVERSION_BATCH_SIZE = 5000;
+  static final String VERSION_TABLE = "schemaversions";
+  private static final String ISO_DATE_PATTERN = "'^\\d{4}-\\d{2}-\\d{2}'";
+  private static final DateTimeFormatter PARTITION_SUFFIX = DateTimeFormatter.ofPattern("yyyyMM");
+  private static final String INVALID_OBJECT_DEFINITION = "42P17";
+  private static final Pattern INDEX_STATEMENT = Pattern.compile(
+          "(?i)\\b(create\\s+(?:unique\\s+)?index\\s+if\\s+not\\s+exists|drop\\s+index\\s+if\\s+exists)\\s+(\\w+)");
+  // each database has its own schema, catalog queries must not see the tables of other schemas.
+  private static final String IN_CURRENT_SCHEMA = "JOIN pg_catalog.pg_namespace n ON n.oid = c.relnamespace AND n.nspname = current_schema()";
+  public static final String CSV_EXT = ".sql";
+  public static final String BINARY_EXT = ".bin";
+  public static final String KEYS_EXT = ".keys";
+  
+  /**
+   * Sets the statement parameters of a single row.
+   * 
+   * @param <T> type of the row data
+   */
+  @FunctionalInterface
+  public interface RowBinder<T> {
+    void bind(PreparedStatement stmt, T row) throws SQLException;
+  }
+  
+  /**
+   * Copies the current row of a ResultSet into a data object.
+   * 
+   * @param <T> type of the row data
+   */
+  @FunctionalInterface
+  public interface RowMapper<T> {
+    T map(ResultSet rows) throws SQLException;
+  }
+  
+  /**
+   * Receives the rows of a query one by one.
+   * 
+   * @param <T> type of the row data
+   */
+  @FunctionalInterface
+  public interface RowHandler<T> {
+    void handle(T row) throws IOException;
+  }
+  
   protected boolean isNewTable = false;
   protected String tableName;
+  protected String partitionKey;
+  protected String changeColumn;
+  protected String keyColumns;
+  protected boolean syncDeletes = false;
+  private final String indexConfig;
+  private final String columnConfig;
+  private int schemaErrors = 0;
   
   protected String insertNames;
   protected String selectNames;
@@ -37,6 +118,9 @@ public class DBTable {
   protected String paramPlaceholders;
   
   final DBConnect conn;
+  private final Map<String, String> statements = new ConcurrentHashMap<>();
+  private final Set<String> queries = ConcurrentHashMap.newKeySet();
+  private final List<String> queryVariants = new ArrayList<>();
   
   /**
    * Opens the given database table.
@@ -50,34 +134,497 @@ public class DBTable {
    * @param postprocessing 
    */
   public DBTable(DBConnect conn, String tableName, String columns, String postprocessing) {
+    this(conn, tableName, columns, postprocessing, "");
+  }
+  
+  /**
+   * Opens the given database table and updates the schema.
+   * 
+   * Each migration line contains the schema version, the
+   * column name and the new column type. Column type changes
+   * of existing tables are done with an online conversion.
+   * New tables are created with the final column types and
+   * start with the latest version.
+   * 
+   * @param conn
+   * @param tableName 
+   * @param columns 
+   * @param postprocessing 
+   * @param migrations 
+   */
+  public DBTable(DBConnect conn, String tableName, String columns, String postprocessing, String migrations) {
+    this(conn, tableName, columns, postprocessing, migrations, "");
+  }
+  
+  /**
+   * Opens the given database table, partitioned by month.
+   * 
+   * New tables are created as range partitioned tables with the
+   * given timestamp column as partition key. Existing unpartitioned
+   * tables are converted, the old table becomes the partition of
+   * all existing rows.
+   * 
+   * The catalog information is taken from the schema snapshot of
+   * the connection. If the schema fingerprint of the definition
+   * is unchanged since the last successful verification and all
+   * columns and indexes exist, the verification is skipped.
+   * 
+   * @param conn
+   * @param tableName 
+   * @param columns 
+   * @param postprocessing 
+   * @param migrations 
+   * @param partitionKey empty: unpartitioned table
+   */
+  public DBTable(DBConnect conn, String tableName, String columns, String postprocessing, String migrations, String partitionKey) {
     this.conn = conn;
     this.tableName = tableName;
+    this.partitionKey = partitionKey;
+    this.indexConfig = postprocessing;
+    this.columnConfig = columns;
     
-    String checkCmd = "SELECT relname FROM pg_catalog.pg_class WHERE relname = '" + tableName + "' AND relkind = 'r'";
+    var schema = conn.getSchemaInfo();
+    var known = (schema == null) ? null : schema.take(tableName);
+    var fingerprint = fingerprint(columns, postprocessing, migrations, partitionKey);
+    if ((known != null) && isVerified(known, fingerprint, columns)) {
+      logger.info("Schema of " + tableName + " unchanged, skip verification.");
+      buildColumns(columns, known.columns);
+    } else {
+      verifySchema(columns, postprocessing, migrations, known, fingerprint);
+    }
+    
+    registerStatement(INSERT, "INSERT INTO " + tableName + " (" + insertNames + ") values " + paramPlaceholders);
+    registerStatement(ROW_COUNT, "SELECT COUNT(*) FROM " + tableName);
+  }
+  
+  /**
+   * Creates the row mapping of the data class from the
+   * column definition of this table.
+   * 
+   * @param <T>
+   * @param type
+   * @return 
+   */
+  protected <T> RowMapping<T> createMapping(Class<T> type) {
+    return new RowMapping<>(type, columnConfig);
+  }
+  
+  /**
+   * Creates the table if needed, adds missing columns, runs the
+   * migrations and creates the indexes. The fingerprint is stored
+   * if all steps were successful.
+   * 
+   * @param columns
+   * @param postprocessing
+   * @param migrations
+   * @param known catalog information of the table, null if unknown
+   * @param fingerprint 
+   */
+  private void verifySchema(String columns, String postprocessing, String migrations, SchemaInfo.TableInfo known, String fingerprint) {
+    String checkCmd = "SELECT relkind FROM pg_catalog.pg_class c " + IN_CURRENT_SCHEMA + " WHERE relname = '" + tableName + "' AND relkind in ('r', 'p')";
     String createCmd = "CREATE TABLE " + tableName + "()";
+    if (!partitionKey.isEmpty()) {
+      createCmd = "CREATE TABLE " + tableName + " (" + partitionKey + " " + columnType(columns, partitionKey) 
+              + ") PARTITION BY RANGE (" + partitionKey + ")";
+    }
     logger.info("Check table cmd: " + checkCmd);
     
     try {
-      try (java.sql.PreparedStatement tableInfo = conn.getConnection().prepareStatement(checkCmd)) {
-        var result = tableInfo.executeQuery();
-        if (!result.next()) {
+      boolean isPlainTable = false;
+      try (var dbc = conn.getConnection()) {
+        String kind = (known != null) ? known.kind : readTableKind(dbc, checkCmd);
+        if (kind != null) {
+          isPlainTable = kind.equals("r");
+        } else {
           // table does not exist, create it now
           logger.warn("Table does not exist, create now: " + createCmd);
-          try (java.sql.PreparedStatement createStmt = conn.getConnection().prepareStatement(createCmd)) {
+          try (java.sql.PreparedStatement createStmt = dbc.prepareStatement(createCmd)) {
             createStmt.execute();
             isNewTable = true;
           }
         }
       }
       
-      buildColumns(columns);
-      buildIndexes(postprocessing);
+      buildColumns(columns, ((known != null) && !isNewTable) ? known.columns : getColumnNames());
+      boolean changed = migrate(migrations);
+      if (isPlainTable && !partitionKey.isEmpty()) {
+        convertToPartitioned();
+        changed = true;
+      }
+      // migrations and conversions drop indexes, the snapshot is outdated then.
+      buildIndexes(postprocessing, ((known != null) && !changed) ? known.indexes : null);
       
+      if (schemaErrors == 0) {
+        writeFingerprint(fingerprint);
+      }
     } catch (SQLException ex) {
       logger.warn("Error opening table.", ex);
+      schemaErrors++;
+    }
+  }
+  
+  /**
+   * Registers a named SQL statement of this table.
+   * 
+   * The statement text is built once, so the JDBC driver
+   * can reuse the server side prepared statement of each
+   * connection instead of parsing and planning it again.
+   * 
+   * @param name
+   * @param sql 
+   */
+  protected final void registerStatement(String name, String sql) {
+    statements.put(name, sql);
+    logger.debug("Statement " + tableName + "." + name + ": " + sql);
+  }
+  
+  /**
+   * Registers a named read-only SQL statement of this table.
+   * 
+   * Queries may be executed on the read replica.
+   * 
+   * @param name
+   * @param sql 
+   */
+  protected final void registerQuery(String name, String sql) {
+    registerStatement(name, sql);
+    queries.add(name);
+  }
+  
+  /**
+   * Marks all statement variants with the given name prefix
+   * as read-only queries.
+   * 
+   * @param prefix 
+   */
+  protected final void registerQueryVariants(String prefix) {
+    queryVariants.add(prefix);
+  }
+  
+  /**
+   * Indicates if the named statement is a read-only query.
+   * 
+   * @param name
+   * @return 
+   */
+  final boolean isQuery(String name) {
+    return queries.contains(name) || queryVariants.stream().anyMatch(name::startsWith);
+  }
+  
+  /**
+   * Borrows a connection to execute the named statement.
+   * 
+   * Read-only queries get a connection to the read replica,
+   * all other statements a connection to the primary.
+   * 
+   * @param name
+   * @return
+   * @throws SQLException 
+   */
+  protected Connection connect(String name) throws SQLException {
+    return isQuery(name) ? conn.getReadConnection() : conn.getConnection();
+  }
+  
+  /**
+   * Prepares a registered statement on the given connection.
+   * 
+   * The executions of the statement are recorded in the
+   * statement statistics of the connection.
+   * 
+   * @param dbc
+   * @param name
+   * @return
+   * @throws SQLException 
+   */
+  protected PreparedStatement prepare(Connection dbc, String name) throws SQLException {
+    String sql = statements.get(name);
+    if (sql == null) {
+      throw new SQLException("Unknown statement " + tableName + "." + name);
+    }
+    
+    logger.debug("SQL " + name + ": " + sql);
+    if (!sql.stripLeading().regionMatches(true, 0, "SELECT", 0, 6)) {
+      conn.markWrite();
+    }
+    return conn.getStatementStats().wrap(tableName + "." + name, sql, dbc.prepareStatement(sql));
+  }
+  
+  /**
+   * Prepares a statement with a variable structure.
+   * 
+   * Each variant is built and registered on first use
+   * under its own name and reused afterwards.
+   * 
+   * @param dbc
+   * @param name name of the variant
+   * @param builder creates the SQL text of the variant
+   * @return
+   * @throws SQLException 
+   */
+  protected PreparedStatement prepare(Connection dbc, String name, Supplier<String> builder) throws SQLException {
+    statements.computeIfAbsent(name, key -> builder.get());
+    return prepare(dbc, name);
+  }
+  
+  /**
+   * Writes all rows with a registered statement in one transaction.
+   * 
+   * The rows are sent as JDBC batches, the driver rewrites
+   * batched inserts into multi-row VALUES statements. If
+   * one row fails, no row will be written.
+   * 
+   * @param <T>
+   * @param name name of the registered statement
+   * @param rows
+   * @param binder sets the parameters of each row
+   * @return number of written rows
+   * @throws SQLException 
+   */
+  protected <T> int writeBatch(String name, Collection<T> rows, RowBinder<T> binder) throws SQLException {
+    if (rows.isEmpty()) {
+      return 0;
+    }
+    
+    try (var dbc = conn.getConnection()) {
+      dbc.setAutoCommit(false);
+      int count = writeBatch(dbc, name, rows, binder);
+      dbc.commit();
+      return count;
     }
   }
   
+  /**
+   * Writes all rows with a registered statement on the given connection.
+   * 
+   * Transaction handling is done by the caller, so the batch
+   * can be combined with other statements.
+   * 
+   * @param <T>
+   * @param dbc
+   * @param name name of the registered statement
+   * @param rows
+   * @param binder sets the parameters of each row
+   * @return number of written rows
+   * @throws SQLException 
+   */
+  protected <T> int writeBatch(Connection dbc, String name, Collection<T> rows, RowBinder<T> binder) throws SQLException {
+    int count = 0;
+    try (var stmt = prepare(dbc, name)) {
+      int pending = 0;
+      for (T row: rows) {
+        binder.bind(stmt, row);
+        stmt.addBatch();
+        if (++pending == BATCH_SIZE) {
+          count += executeBatch(stmt);
+          pending = 0;
+        }
+      }
+      
+      if (pending > 0) {
+        count += executeBatch(stmt);
+      }
+    }
+    
+    logger.debug("Batch " + tableName + "." + name + " wrote " + count + " rows.");
+    return count;
+  }
+  
+  /**
+   * Executes the pending batch and sums up the update counts.
+   * 
+   * Rewritten inserts report SUCCESS_NO_INFO, these are
+   * counted as one row.
+   * 
+   * @param stmt
+   * @return
+   * @throws SQLException 
+   */
+  private int executeBatch(PreparedStatement stmt) throws SQLException {
+    int count = 0;
+    for (int result: stmt.executeBatch()) {
+      count += (result == java.sql.Statement.SUCCESS_NO_INFO) ? 1 : result;
+    }
+    
+    return count;
+  }
+  
+  /**
+   * Executes the query and passes each row to the handler.
+   * 
+   * The rows are fetched from the server in blocks of
+   * FETCH_SIZE rows while the handler consumes them, so
+   * the complete result is never held in memory. The
+   * driver only uses a cursor outside of autocommit mode,
+   * the pool rolls back the read transaction when the
+   * connection is given back.
+   * 
+   * @param <T>
+   * @param dbc
+   * @param stmt
+   * @param mapper creates the data object of a row
+   * @param handler
+   * @return number of rows
+   * @throws SQLException
+   * @throws IOException 
+   */
+  protected <T> int readRows(Connection dbc, PreparedStatement stmt, RowMapper<T> mapper, RowHandler<T> handler) throws SQLException, IOException {
+    dbc.setAutoCommit(false);
+    stmt.setFetchSize(FETCH_SIZE);
+    
+    int count = 0;
+    try (var rows = stmt.executeQuery()) {
+      while (rows.next()) {
+        handler.handle(mapper.map(rows));
+        count++;
+      }
+    }
+    
+    logger.debug("Read " + count + " rows from " + tableName);
+    return count;
+  }
+  
+  /**
+   * Explains the query plans of all registered statements.
+   * 
+   * Each statement is prepared with a generic plan, as used
+   * by the driver for reused prepared statements, and explained
+   * without executing it. The result lists all sequential scans
+   * of the plans.
+   * 
+   * @return 
+   */
+  public List<IndexAdviceData> adviseIndexes() {
+    List<IndexAdviceData> result = new ArrayList<>();
+    
+    try (var dbc = conn.getConnection()) {
+      dbc.setAutoCommit(false);
+      try (var stmt = dbc.createStatement()) {
+        stmt.execute("SET LOCAL plan_cache_mode = force_generic_plan");
+      }
+      
+      for (var statement: new TreeMap<>(statements).entrySet()) {
+        if (statement.getValue().trim().toUpperCase().startsWith("INSERT")) {
+          continue;
+        }
+        
+        result.add(explainStatement(dbc, statement.getKey(), statement.getValue()));
+      }
+      
+      dbc.rollback();
+    } catch (SQLException ex) {
+      logger.warn("Error explaining statements of " + tableName, ex);
+    }
+    
+    return result;
+  }
+  
+  /**
+   * Explains the generic plan of a single statement.
+   * 
+   * @param dbc
+   * @param name
+   * @param sql
+   * @return 
+   */
+  private IndexAdviceData explainStatement(Connection dbc, String name, String sql) {
+    var advice = new IndexAdviceData();
+    advice.tableName = tableName;
+    advice.statement = name;
+    advice.seqScans = "";
+    advice.message = "";
+    
+    // replace JDBC placeholders by numbered parameters.
+    var prepared = new StringBuilder();
+    var nulls = new StringBuilder();
+    int paramCount = 0;
+    boolean inLiteral = false;
+    for (char ch: sql.toCharArray()) {
+      if (ch == '\'') {
+        inLiteral = !inLiteral;
+      }
+      
+      if ((ch == '?') && !inLiteral) {
+        paramCount++;
+        prepared.append('$').append(paramCount);
+        nulls.append((paramCount > 1) ? ", NULL" : "NULL");
+      } else {
+        prepared.append(ch);
+      }
+    }
+    
+    String execute = "EXECUTE tamm_advice" + ((paramCount > 0) ? "(" + nulls + ")" : "");
+    Savepoint savepoint = null;
+    boolean isPrepared = false;
+    try (var stmt = dbc.createStatement()) {
+      try {
+        savepoint = dbc.setSavepoint();
+        stmt.execute("PREPARE tamm_advice AS " + prepared);
+        isPrepared = true;
+        try (var rows = stmt.executeQuery("EXPLAIN (FORMAT JSON) " + execute)) {
+          if (rows.next()) {
+            var plan = new JsonParser().parse(rows.getString(1)).getAsJsonArray().get(0).getAsJsonObject().getAsJsonObject("Plan");
+            advice.totalCost = plan.get("Total Cost").getAsDouble();
+            var scans = new ArrayList<String>();
+            collectSeqScans(plan, scans);
+            advice.seqScans = String.join(", ", scans);
+          }
+        }
+      } catch (SQLException | RuntimeException ex) {
+        advice.message = ex.getMessage();
+        if (savepoint != null) {
+          dbc.rollback(savepoint);
+        }
+      } finally {
+        // prepared statements are not transactional, the rollback keeps them.
+        if (isPrepared) {
+          stmt.execute("DEALLOCATE tamm_advice");
+        }
+      }
+    } catch (SQLException ex) {
+      logger.warn("Cannot clean up index advice of " + name, ex);
+    }
+    
+    return advice;
+  }
+  
+  /**
+   * Collects the relation names of all sequential scans of a plan.
+   * 
+   * @param plan
+   * @param scans 
+   */
+  private static void collectSeqScans(JsonObject plan, List<String> scans) {
+    if ("Seq Scan".equals(plan.get("Node Type").getAsString())) {
+      scans.add(plan.get("Relation Name").getAsString());
+    }
+    
+    if (plan.has("Plans")) {
+      for (var child: plan.getAsJsonArray("Plans")) {
+        collectSeqScans(child.getAsJsonObject(), scans);
+      }
+    }
+  }
+  
+  /**
+   * Checks if the list request continues after a previous page.
+   * 
+   * @param page paging information, may be null
+   * @return 
+   */
+  protected static boolean hasCursor(FindData page) {
+    return (page != null) && (page.afterKey != null);
+  }
+  
+  /**
+   * Checks if the list request is limited to one page.
+   * 
+   * @param page paging information, may be null
+   * @return 
+   */
+  protected static boolean hasLimit(FindData page) {
+    return (page != null) && (page.pageSize > 0);
+  }
+  
   /**
    * Indicates that the table has been created.
    * 
@@ -106,12 +653,10 @@ public class DBTable {
    * @return  
    */
   public File backup(CopyManager manager, File destinationDir) {
-    File destFile = new File(destinationDir, tableName + ".sql");
+    File destFile = new File(destinationDir, tableName + CSV_EXT);
     try {
       try (OutputStream os = new FileOutputStream(destFile)) {
-        var cmd = "COPY " + tableName + " TO STDOUT CSV";
-        logger.debug("SQL: " + cmd);
-        manager.copyOut(cmd, os);
+        backup(manager, os, false);
         return destFile;
       }
     } catch (IOException | SQLException ex) {
@@ -120,21 +665,98 @@ public class DBTable {
     }
   }
   
+  /**
+   * Writes the table content into the given stream.
+   * 
+   * The stream is not closed, so the caller can write
+   * several tables into one ZIP file.
+   * 
+   * @param manager
+   * @param os
+   * @param binary true: postgres binary format, false: CSV
+   * @throws SQLException
+   * @throws IOException 
+   */
+  public void backup(CopyManager manager, OutputStream os, boolean binary) throws SQLException, IOException {
+    // partitioned tables can only be copied by a query.
+    var cmd = "COPY (SELECT " + selectNames + " FROM " + tableName + ") TO STDOUT" + copyFormat(binary);
+    logger.debug("SQL: " + cmd);
+    manager.copyOut(cmd, os);
+  }
+  
+  /**
+   * Enables incremental backups of this table.
+   * 
+   * Tables without incremental backup are always copied
+   * completely.
+   * 
+   * @param changeColumn timestamp column of the last change
+   * @param keyColumns columns identifying a row
+   * @param syncDeletes true: rows deleted since the last backup are removed on restore
+   */
+  protected void setIncremental(String changeColumn, String keyColumns, boolean syncDeletes) {
+    this.changeColumn = changeColumn;
+    this.keyColumns = keyColumns;
+    this.syncDeletes = syncDeletes;
+  }
+  
+  /**
+   * Returns true if the table supports incremental backups.
+   * 
+   * @return 
+   */
+  public boolean isIncremental() {
+    return changeColumn != null;
+  }
+  
+  /**
+   * Returns true if an incremental backup contains the key list
+   * of all rows, used to find the rows deleted in the meantime.
+   * 
+   * @return 
+   */
+  public boolean hasKeyList() {
+    return isIncremental() && syncDeletes;
+  }
+  
+  /**
+   * Writes the rows changed after the given time into the stream.
+   * 
+   * @param manager
+   * @param os
+   * @param since epoch milliseconds
+   * @param binary true: postgres binary format, false: CSV
+   * @throws SQLException
+   * @throws IOException 
+   */
+  public void backupChanges(CopyManager manager, OutputStream os, long since, boolean binary) throws SQLException, IOException {
+    var cmd = "COPY (SELECT " + selectNames + " FROM " + tableName 
+            + " WHERE " + changeColumn + " > to_timestamp(" + since + " / 1000.0)) TO STDOUT" + copyFormat(binary);
+    logger.debug("SQL: " + cmd);
+    manager.copyOut(cmd, os);
+  }
+  
+  /**
+   * Writes the key columns of all rows as CSV into the stream.
+   * 
+   * @param manager
+   * @param os
+   * @throws SQLException
+   * @throws IOException 
+   */
+  public void backupKeys(CopyManager manager, OutputStream os) throws SQLException, IOException {
+    var cmd = "COPY (SELECT " + keyColumns + " FROM " + tableName + ") TO STDOUT CSV";
+    logger.debug("SQL: " + cmd);
+    manager.copyOut(cmd, os);
+  }
+  
   /**
    * Returns the number of rows.
    * @return 
    */
   public long getRowCount() {
-    try {
-      var cmd = "SELECT COUNT(*) FROM " + tableName;
-      try (java.sql.PreparedStatement tableInfo = conn.getConnection().prepareStatement(cmd)) {
-        var result = tableInfo.executeQuery();
-        if (result.next()) {
-          long count = result.getLong(1);
-          logger.debug("Table " + tableName + " has " + count + " rows.");
-          return count;
-        }
-      }
+    try (var dbc = conn.getConnection()) {
+      return getRowCount(dbc);
     } catch (SQLException ex) {
       logger.warn("Error reading row count.", ex);
     }
@@ -143,40 +765,232 @@ public class DBTable {
   }
   
   /**
-   * Restores the table from the given directory.
-   * 
-   * If the directory contains a file with the table
-   * name then perform the copyIn operation.
+   * Returns the number of rows, read on the given connection.
+   * 
+   * @param dbc
+   * @return
+   * @throws SQLException 
+   */
+  private long getRowCount(Connection dbc) throws SQLException {
+    try (var tableInfo = prepare(dbc, ROW_COUNT)) {
+      var result = tableInfo.executeQuery();
+      if (result.next()) {
+        long count = result.getLong(1);
+        logger.debug("Table " + tableName + " has " + count + " rows.");
+        return count;
+      }
+    }
+    
+    return -1;
+  }
+  
+  /**
+   * Restores the table from the given directory.
+   * 
+   * If the directory contains a file with the table
+   * name then perform the copyIn operation. The indexes
+   * are dropped before and rebuilt after loading, this
+   * is much faster than updating them row by row.
+   * 
+   * All steps run on the given connection, so a restore
+   * job needs only one pool connection per table.
+   * 
+   * @param dbc connection of the copy manager
+   * @param manager
+   * @param sourceDir
+   * @return 
+   */
+  public File restore(Connection dbc, CopyManager manager, File sourceDir) {
+    long rowCount;
+    try {
+      rowCount = getRowCount(dbc);
+    } catch (SQLException ex) {
+      logger.warn("Error reading row count.", ex);
+      return null;
+    }
+    
+    if (tableName.equals("clientlist") && rowCount == 1) {
+      rowCount = 0;
+    }
+    
+    if (rowCount != 0) {
+      logger.warn("Can only restore into an empty table.");
+      return null;
+    }
+    
+    File sourceFile = getBackupFile(sourceDir);
+    if (sourceFile.exists()) {
+      try {
+        dropIndexes(dbc);
+        copyIn(manager, tableName, selectNames, sourceFile);
+        return sourceFile;
+      } catch(IOException | SQLException ex) {
+        logger.warn("Error reading table backup file: " + sourceFile.getPath(), ex);
+      } finally {
+        buildIndexes(dbc, indexConfig, null);
+        analyze(dbc);
+      }
+    } 
+    return null;
+  }
+  
+  /**
+   * Returns the backup file of this table in the given directory,
+   * binary format is preferred.
+   * 
+   * @param sourceDir
+   * @return 
+   */
+  private File getBackupFile(File sourceDir) {
+    var binaryFile = new File(sourceDir, tableName + BINARY_EXT);
+    return binaryFile.exists() ? binaryFile : new File(sourceDir, tableName + CSV_EXT);
+  }
+  
+  /**
+   * Returns the format option of a COPY command.
+   * 
+   * @param binary
+   * @return 
+   */
+  private static String copyFormat(boolean binary) {
+    return binary ? " (FORMAT binary)" : " CSV";
+  }
+  
+  /**
+   * Drops all indexes of the table before a bulk load.
+   * 
+   * @param dbc
+   * @throws SQLException 
+   */
+  private void dropIndexes(Connection dbc) throws SQLException {
+    try (var stmt = dbc.createStatement()) {
+      List<String> indexes = new ArrayList<>();
+      var rows = stmt.executeQuery("SELECT indexname FROM pg_indexes WHERE schemaname = current_schema() AND tablename = '" + tableName + "'");
+      while (rows.next()) {
+        indexes.add(rows.getString(1));
+      }
+      
+      for (var index: indexes) {
+        logger.debug("Drop index " + index + " for restore.");
+        stmt.execute("DROP INDEX IF EXISTS " + index);
+      }
+    }
+  }
+  
+  /**
+   * Updates the planner statistics after a bulk load.
+   * 
+   * @param dbc
+   */
+  private void analyze(Connection dbc) {
+    try (var stmt = dbc.createStatement()) {
+      stmt.execute("ANALYZE " + tableName);
+    } catch (SQLException ex) {
+      logger.warn("Cannot analyze table " + tableName, ex);
+    }
+  }
+  
+  /**
+   * Applies an incremental backup from the given directory.
+   * 
+   * Tables without incremental backup are replaced completely.
+   * Otherwise the changed rows are loaded into a temporary table
+   * and replace the rows with the same key. If the backup has a
+   * key list, all rows missing in this list are removed. The
+   * changes are applied in one transaction.
+   * 
+   * @param dbc
+   * @param manager
+   * @param sourceDir
+   * @return the restored file, null on error
+   */
+  public File restoreIncremental(Connection dbc, CopyManager manager, File sourceDir) {
+    File sourceFile = getBackupFile(sourceDir);
+    if (!sourceFile.exists()) {
+      return null;
+    }
+    
+    File keyFile = new File(sourceDir, tableName + KEYS_EXT);
+    try {
+      dbc.setAutoCommit(false);
+      try (var stmt = dbc.createStatement()) {
+        if (!isIncremental()) {
+          stmt.executeUpdate("DELETE FROM " + tableName);
+          copyIn(manager, tableName, selectNames, sourceFile);
+        } else {
+          var changes = tableName + "_changes";
+          stmt.execute("CREATE TEMP TABLE " + changes + " (LIKE " + tableName + ") ON COMMIT DROP");
+          copyIn(manager, changes, selectNames, sourceFile);
+          stmt.executeUpdate("DELETE FROM " + tableName + " t USING " + changes + " c WHERE " + keyMatch("t", "c"));
+          stmt.executeUpdate("INSERT INTO " + tableName + " (" + selectNames + ") SELECT " + selectNames + " FROM " + changes);
+          
+          if (hasKeyList() && keyFile.exists()) {
+            var keys = tableName + "_keys";
+            stmt.execute("CREATE TEMP TABLE " + keys + " ON COMMIT DROP AS SELECT " + keyColumns + " FROM " + tableName + " WITH NO DATA");
+            copyIn(manager, keys, keyColumns, keyFile);
+            int count = stmt.executeUpdate("DELETE FROM " + tableName + " t WHERE NOT EXISTS (SELECT 1 FROM " + keys + " k WHERE " + keyMatch("t", "k") + ")");
+            logger.debug("Table " + tableName + ": " + count + " deleted rows removed.");
+          }
+        }
+      }
+      
+      dbc.commit();
+      return sourceFile;
+    } catch (IOException | SQLException ex) {
+      logger.warn("Error reading incremental backup file: " + sourceFile.getPath(), ex);
+      try {
+        dbc.rollback();
+      } catch (SQLException rollbackEx) {
+        logger.warn("Rollback failed.", rollbackEx);
+      }
+      return null;
+    } finally {
+      try {
+        dbc.setAutoCommit(true);
+      } catch (SQLException ex) {
+        logger.warn("Cannot reset auto commit.", ex);
+      }
+    }
+  }
+  
+  /**
+   * Copies a backup file into the given table, the format
+   * is selected by the file extension.
    * 
    * @param manager
-   * @param sourceDir
-   * @return 
+   * @param target
+   * @param columns
+   * @param sourceFile
+   * @throws SQLException
+   * @throws IOException 
    */
-  public File restore(CopyManager manager, File sourceDir) {
-    long rowCount = getRowCount();
-    if (tableName.equals("clientlist") && rowCount == 1) {
-      rowCount = 0;
+  private void copyIn(CopyManager manager, String target, String columns, File sourceFile) throws SQLException, IOException {
+    try (InputStream is = new FileInputStream(sourceFile)) {
+      var cmd = "COPY " + target + " (" + columns + ") FROM STDIN" + copyFormat(sourceFile.getName().endsWith(BINARY_EXT));
+      logger.debug("SQL: " + cmd);
+      manager.copyIn(cmd, is);
     }
-    
-    if (rowCount != 0) {
-      logger.warn("Can only restore into an empty table.");
-      return null;
+  }
+  
+  /**
+   * Returns the condition comparing the key columns of two tables.
+   * 
+   * @param left alias of the first table
+   * @param right alias of the second table
+   * @return 
+   */
+  private String keyMatch(String left, String right) {
+    var condition = new StringBuilder();
+    for (var key: keyColumns.split(",")) {
+      if (condition.length() > 0) {
+        condition.append(" AND ");
+      }
+      
+      key = key.trim();
+      condition.append(left).append('.').append(key).append(" = ").append(right).append('.').append(key);
     }
     
-    File sourceFile = new File(sourceDir, tableName + ".sql");
-    if (sourceFile.exists()) {
-      try {
-        try (InputStream is = new FileInputStream(sourceFile)) {
-          var cmd = "COPY " + tableName + " FROM STDIN CSV";
-          logger.debug("SQL: " + cmd);
-          manager.copyIn(cmd, is);
-        }
-        return sourceFile;
-      } catch(IOException | SQLException ex) {
-        logger.warn("Error reading table backup file: " + sourceFile.getPath(), ex);
-      }
-    } 
-    return null;
+    return condition.toString();
   }
   
   /**
@@ -186,14 +1000,14 @@ public class DBTable {
    * column types will not be recognized.
    * 
    * @param columns table definition
+   * @param nameSet existing column names
    */
-  private void buildColumns(String columns) {
+  private void buildColumns(String columns, Set<String> nameSet) {
     var selectList = new StringBuilder();
     var insertList = new StringBuilder();
     var updateList = new StringBuilder();
     var paramList = new StringBuilder();
     
-    var nameSet = getColumnNames();
     String[] cols = columns.split("\\R");
     for (String col: cols) {
       String[] parts = col.trim().split(" ");
@@ -257,6 +1071,45 @@ public class DBTable {
    * @param parts column definition
    */
   private void addColumn(String name, String type, String value) {
+    String cmd = "ALTER TABLE " + tableName + " ADD COLUMN " + name + " " + sqlType(type, value);
+    logger.info("Add column cmd: " + cmd);
+    
+    try {
+      try (var dbc = conn.getConnection(); java.sql.Statement stmt = dbc.createStatement()) {
+        stmt.execute(cmd);
+      }
+    } catch (SQLException ex) {
+      logger.warn("Cannot add column.", ex);
+      schemaErrors++;
+    }
+  }
+  
+  /**
+   * Returns the SQL type of the named column of a table definition.
+   * 
+   * @param columns table definition
+   * @param name
+   * @return 
+   */
+  private static String columnType(String columns, String name) {
+    for (String col: columns.split("\\R")) {
+      String[] parts = col.trim().split(" ");
+      if (parts[0].equals(name)) {
+        return sqlType(parts[1], (parts.length > 2) ? parts[2] : "");
+      }
+    }
+    
+    throw new IllegalArgumentException("Unknown column " + name);
+  }
+  
+  /**
+   * Returns the SQL type of a column definition.
+   * 
+   * @param type
+   * @param value
+   * @return 
+   */
+  private static String sqlType(String type, String value) {
     String sqlType = "";
     switch (type) {
       case "I":
@@ -280,20 +1133,517 @@ public class DBTable {
       case "L":
         sqlType = "BIGINT";
         break;
+        
+      case "T":
+        sqlType = "TIMESTAMP WITH TIME ZONE";
+        break;
+        
+      case "D":
+        sqlType = "DATE";
+        break;
     }
     
-    String cmd = "ALTER TABLE " + tableName + " ADD COLUMN " + name + " " + sqlType;
-    logger.info("Add column cmd: " + cmd);
+    return sqlType;
+  }
+  
+  /**
+   * Runs all migrations newer than the current schema version.
+   * 
+   * The version is kept in the schemaversions table. An advisory
+   * lock prevents two application instances from migrating the
+   * same table at the same time.
+   * 
+   * @param migrations lines of "version column type"
+   * @return true if a column has been converted
+   */
+  private boolean migrate(String migrations) {
+    if (migrations.isBlank()) {
+      return false;
+    }
+    
+    boolean converted = false;    
+    var steps = migrations.strip().split("\\R");
+    int latest = Integer.parseInt(steps[steps.length - 1].trim().split(" ")[0]);
+    
+    try (var lockConnection = conn.getConnection()) {
+      try (var stmt = lockConnection.createStatement()) {
+        stmt.execute("CREATE TABLE IF NOT EXISTS " + VERSION_TABLE + " (tablename VARCHAR(100) PRIMARY KEY, version INTEGER NOT NULL)");
+        stmt.execute("SELECT pg_advisory_lock(hashtext('" + tableName + "'))");
+      }
+      
+      try {
+        int version = isNewTable ? latest : readVersion(lockConnection);
+        for (String step: steps) {
+          String[] parts = step.trim().split(" ");
+          int stepVersion = Integer.parseInt(parts[0]);
+          if (stepVersion > version) {
+            logger.info("Migrate " + tableName + " to version " + stepVersion + ": " + step.trim());
+            convertColumn(parts[1], parts[2], (parts.length > 3) ? parts[3] : "");
+            converted = true;
+          }
+        }
+        
+        writeVersion(lockConnection, latest);
+      } finally {
+        try (var stmt = lockConnection.createStatement()) {
+          stmt.execute("SELECT pg_advisory_unlock(hashtext('" + tableName + "'))");
+        }
+      }
+    } catch (SQLException ex) {
+      logger.warn("Error migrating table " + tableName, ex);
+      schemaErrors++;
+    }
+    
+    return converted;
+  }
+  
+  /**
+   * Converts an existing table into a partitioned table.
+   * 
+   * The old table is renamed and attached as the partition of
+   * all rows up to the end of its last month. Rows without a
+   * partition key value are moved into the default partition.
+   * The old indexes are dropped, the indexes of the partitioned
+   * table are created on all partitions afterwards.
+   */
+  private void convertToPartitioned() {
+    String legacy = tableName + "_legacy";
+    logger.info("Convert " + tableName + " into a partitioned table.");
+    
+    try (var dbc = conn.getConnection(); var stmt = dbc.createStatement()) {
+      stmt.execute("SELECT pg_advisory_lock(hashtext('" + tableName + "'))");
+      try {
+        dbc.setAutoCommit(false);
+        stmt.execute("LOCK TABLE " + tableName + " IN ACCESS EXCLUSIVE MODE");
+        try (var rows = stmt.executeQuery("SELECT relkind FROM pg_catalog.pg_class c " + IN_CURRENT_SCHEMA + " WHERE relname = '" + tableName + "' AND relkind = 'p'")) {
+          if (rows.next()) {
+            logger.info("Table " + tableName + " already converted by another instance.");
+            return;
+          }
+        }
+        
+        var indexes = new ArrayList<String>();
+        try (var rows = stmt.executeQuery("SELECT indexname FROM pg_indexes WHERE schemaname = current_schema() AND tablename = '" + tableName + "'")) {
+          while (rows.next()) {
+            indexes.add(rows.getString(1));
+          }
+        }
+        
+        for (var index: indexes) {
+          stmt.execute("DROP INDEX " + index);
+        }
+        
+        stmt.execute("ALTER TABLE " + tableName + " RENAME TO " + legacy);
+        stmt.execute("CREATE TABLE " + tableName + " (LIKE " + legacy + " INCLUDING DEFAULTS) PARTITION BY RANGE (" + partitionKey + ")");
+        stmt.execute("CREATE TABLE " + tableName + "_default PARTITION OF " + tableName + " DEFAULT");
+        stmt.execute("INSERT INTO " + tableName + "_default SELECT * FROM " + legacy + " WHERE " + partitionKey + " IS NULL");
+        stmt.execute("DELETE FROM " + legacy + " WHERE " + partitionKey + " IS NULL");
+        
+        String upperBound;
+        try (var rows = stmt.executeQuery("SELECT date_trunc('month', coalesce(max(" + partitionKey + "), now())) + interval '1 month' FROM " + legacy)) {
+          rows.next();
+          upperBound = rows.getString(1);
+        }
+        
+        stmt.execute("ALTER TABLE " + tableName + " ATTACH PARTITION " + legacy + " FOR VALUES FROM (MINVALUE) TO ('" + upperBound + "')");
+        dbc.commit();
+        logger.info("Table " + tableName + " partitioned, existing rows up to " + upperBound + " kept in " + legacy);
+      } finally {
+        dbc.rollback();
+        dbc.setAutoCommit(true);
+        stmt.execute("SELECT pg_advisory_unlock(hashtext('" + tableName + "'))");
+      }
+    } catch (SQLException ex) {
+      logger.warn("Error converting table " + tableName + " into a partitioned table.", ex);
+      schemaErrors++;
+    }
+  }
+  
+  /**
+   * Creates the monthly partitions from the current month
+   * up to the given number of months ahead.
+   * 
+   * Months already covered by another partition (e.g. the
+   * partition of a converted table) are skipped.
+   * 
+   * @param monthsAhead 
+   */
+  public void createPartitions(int monthsAhead) {
+    if (partitionKey.isEmpty()) {
+      return;
+    }
     
+    var month = LocalDate.now().withDayOfMonth(1);
+    try (var dbc = conn.getConnection(); var stmt = dbc.createStatement()) {
+      stmt.execute("CREATE TABLE IF NOT EXISTS " + tableName + "_default PARTITION OF " + tableName + " DEFAULT");
+      for (int i = 0; i <= monthsAhead; i++) {
+        var from = month.plusMonths(i);
+        var cmd = "CREATE TABLE IF NOT EXISTS " + tableName + "_p" + from.format(PARTITION_SUFFIX) + " PARTITION OF " + tableName
+                + " FOR VALUES FROM ('" + from + "') TO ('" + from.plusMonths(1) + "')";
+        try {
+          stmt.execute(cmd);
+        } catch (SQLException ex) {
+          if (INVALID_OBJECT_DEFINITION.equals(ex.getSQLState())) {
+            logger.debug("Month " + from + " already covered by a partition of " + tableName);
+          } else {
+            logger.warn("Cannot create partition: " + cmd, ex);
+          }
+        }
+      }
+    } catch (SQLException ex) {
+      logger.warn("Cannot create partitions of " + tableName, ex);
+    }
+  }
+  
+  /**
+   * Reads the kind of the table from the catalog.
+   * 
+   * @param dbc
+   * @param checkCmd
+   * @return r: plain table, p: partitioned table, null: table does not exist
+   * @throws SQLException 
+   */
+  private static String readTableKind(Connection dbc, String checkCmd) throws SQLException {
+    try (java.sql.PreparedStatement tableInfo = dbc.prepareStatement(checkCmd)) {
+      var result = tableInfo.executeQuery();
+      return result.next() ? result.getString(1) : null;
+    }
+  }
+  
+  /**
+   * Returns the fingerprint of the table definition.
+   * 
+   * @param columns
+   * @param postprocessing
+   * @param migrations
+   * @param partitionKey
+   * @return SHA-256 as hex string
+   */
+  private String fingerprint(String columns, String postprocessing, String migrations, String partitionKey) {
     try {
-      try (java.sql.Statement stmt = conn.getConnection().createStatement()) {
-        stmt.execute(cmd);
+      var digest = MessageDigest.getInstance("SHA-256");
+      var definition = String.join("\n", tableName, columns, postprocessing, migrations, partitionKey);
+      return HexFormat.of().formatHex(digest.digest(definition.getBytes(StandardCharsets.UTF_8)));
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException("SHA-256 not available.", ex);
+    }
+  }
+  
+  /**
+   * Checks if the table matches the verified definition.
+   * 
+   * @param known catalog information of the table
+   * @param fingerprint fingerprint of the current definition
+   * @param columns table definition
+   * @return 
+   */
+  private boolean isVerified(SchemaInfo.TableInfo known, String fingerprint, String columns) {
+    if (!known.exists() || !fingerprint.equals(known.fingerprint)) {
+      return false;
+    }
+    
+    if (!known.kind.equals(partitionKey.isEmpty() ? "r" : "p")) {
+      return false;
+    }
+    
+    for (String col: columns.split("\\R")) {
+      if (!known.columns.contains(col.trim().split(" ")[0])) {
+        return false;
+      }
+    }
+    
+    var matcher = INDEX_STATEMENT.matcher(indexConfig.replace("{[tablename]}", tableName));
+    while (matcher.find()) {
+      if (matcher.group(1).toLowerCase().startsWith("create") && !known.indexes.contains(matcher.group(2).toLowerCase())) {
+        return false;
       }
+    }
+    
+    return true;
+  }
+  
+  /**
+   * Checks if an index statement would not change anything.
+   * 
+   * @param cmd
+   * @param existing names of the existing indexes
+   * @return true: creates an existing or drops a missing index
+   */
+  private static boolean isIndexUnchanged(String cmd, Set<String> existing) {
+    var matcher = INDEX_STATEMENT.matcher(cmd);
+    if (!matcher.find()) {
+      return false;
+    }
+    
+    boolean exists = existing.contains(matcher.group(2).toLowerCase());
+    return matcher.group(1).toLowerCase().startsWith("create") ? exists : !exists;
+  }
+  
+  /**
+   * Stores the fingerprint of the verified table definition.
+   * 
+   * @param fingerprint 
+   */
+  private void writeFingerprint(String fingerprint) {
+    var cmd = "INSERT INTO " + VERSION_TABLE + " (tablename, version, fingerprint) VALUES (?, 0, ?) "
+            + "ON CONFLICT (tablename) DO UPDATE SET fingerprint = EXCLUDED.fingerprint";
+    try (var dbc = conn.getConnection(); var stmt = dbc.prepareStatement(cmd)) {
+      stmt.setString(1, tableName);
+      stmt.setString(2, fingerprint);
+      stmt.execute();
     } catch (SQLException ex) {
-      logger.warn("Cannot add column.", ex);
+      logger.warn("Cannot write schema fingerprint of " + tableName, ex);
+    }
+  }
+  
+  /**
+   * Reads the schema version of this table, 0 if unknown.
+   * 
+   * @param dbc
+   * @return
+   * @throws SQLException 
+   */
+  private int readVersion(Connection dbc) throws SQLException {
+    try (var stmt = dbc.prepareStatement("SELECT version FROM " + VERSION_TABLE + " WHERE tablename = ?")) {
+      stmt.setString(1, tableName);
+      var result = stmt.executeQuery();
+      return result.next() ? result.getInt(1) : 0;
+    }
+  }
+  
+  /**
+   * Stores the schema version of this table.
+   * 
+   * @param dbc
+   * @param version
+   * @throws SQLException 
+   */
+  private void writeVersion(Connection dbc, int version) throws SQLException {
+    var cmd = "INSERT INTO " + VERSION_TABLE + " (tablename, version) VALUES (?, ?) "
+            + "ON CONFLICT (tablename) DO UPDATE SET version = EXCLUDED.version";
+    try (var stmt = dbc.prepareStatement(cmd)) {
+      stmt.setString(1, tableName);
+      stmt.setInt(2, version);
+      stmt.execute();
+    }
+  }
+  
+  /**
+   * Changes the type of a VARCHAR date column while the table stays in use.
+   * 
+   * A shadow column with the new type is added and kept up to
+   * date by a trigger. Existing rows are converted in small
+   * batches, each in its own transaction. Besides ISO values,
+   * the legacy formats yyyyMMddHHmmss and yyyyMMdd are converted.
+   * Finally the old column is dropped and the shadow column
+   * takes its name. An interrupted conversion continues on the
+   * next start.
+   * 
+   * If any non-empty value cannot be converted, the old column
+   * is kept and the trigger, the functions and the shadow column
+   * are removed again. The migration is retried on the next start.
+   * 
+   * @param name column name
+   * @param type new column type (T or D)
+   * @param value type parameter
+   * @throws SQLException 
+   */
+  private void convertColumn(String name, String type, String value) throws SQLException {
+    String newType = sqlType(type, value);
+    if (newType.equalsIgnoreCase(getColumnType(name))) {
+      logger.info("Column " + tableName + "." + name + " already converted.");
+      return;
+    }
+    
+    String shadow = name + "__new";
+    String trigger = tableName + "_" + name + "_sync";
+    String function = tableName + "_" + name + "_value";
+    String conversion;
+    switch (type) {
+      case "T":
+        conversion = "IF v ~ " + ISO_DATE_PATTERN + " THEN RETURN v::timestamptz; END IF; "
+                + "IF v ~ '^\\d{14}$' THEN RETURN to_timestamp(v, 'YYYYMMDDHH24MISS'); END IF; "
+                + "IF v ~ '^\\d{8}' THEN RETURN to_timestamp(substr(v, 1, 8), 'YYYYMMDD'); END IF; ";
+        break;
+        
+      case "D":
+        conversion = "IF v ~ " + ISO_DATE_PATTERN + " THEN RETURN substr(v, 1, 10)::date; END IF; "
+                + "IF v ~ '^\\d{8}' THEN RETURN to_date(substr(v, 1, 8), 'YYYYMMDD'); END IF; ";
+        break;
+        
+      default:
+        throw new SQLException("Unsupported column conversion to " + newType);
+    }
+    
+    try (var dbc = conn.getConnection(); var stmt = dbc.createStatement()) {
+      boolean done = false;
+      try {
+        // invalid values like 2024-02-30 result in null instead of an error.
+        stmt.execute("CREATE OR REPLACE FUNCTION " + function + "(v text) RETURNS " + newType + " AS $$ BEGIN " 
+                + conversion + "RETURN NULL; EXCEPTION WHEN others THEN RETURN NULL; END $$ LANGUAGE plpgsql STABLE");
+        stmt.execute("ALTER TABLE " + tableName + " ADD COLUMN IF NOT EXISTS " + shadow + " " + newType);
+        stmt.execute("CREATE OR REPLACE FUNCTION " + trigger + "() RETURNS trigger AS $$ BEGIN NEW." + shadow + " := " 
+                + function + "(NEW." + name + "); RETURN NEW; END $$ LANGUAGE plpgsql");
+        stmt.execute("DROP TRIGGER IF EXISTS " + trigger + " ON " + tableName);
+        stmt.execute("CREATE TRIGGER " + trigger + " BEFORE INSERT OR UPDATE ON " + tableName 
+                + " FOR EACH ROW EXECUTE FUNCTION " + trigger + "()");
+        
+        var batch = "UPDATE " + tableName + " SET " + shadow + " = " + function + "(" + name + ")"
+                + " WHERE ctid = ANY(ARRAY(SELECT ctid FROM " + tableName + " WHERE " + shadow + " IS NULL AND " 
+                + function + "(" + name + ") IS NOT NULL LIMIT " + CONVERSION_BATCH_SIZE + "))";
+        int count;
+        int total = 0;
+        do {
+          count = stmt.executeUpdate(batch);
+          total += count;
+          logger.debug("Converted " + total + " rows of " + tableName + "." + name);
+        } while (count > 0);
+        
+        var rows = stmt.executeQuery("SELECT count(*) FROM " + tableName + " WHERE " + shadow + " IS NULL AND btrim(" + name + ") <> ''");
+        rows.next();
+        long failed = rows.getLong(1);
+        if (failed > 0) {
+          throw new SQLException(failed + " values of " + tableName + "." + name + " cannot be converted to " + newType 
+                  + ", the column is kept. Correct the values, the conversion is retried on the next start.");
+        }
+        
+        dbc.setAutoCommit(false);
+        stmt.execute("LOCK TABLE " + tableName + " IN ACCESS EXCLUSIVE MODE");
+        stmt.execute("DROP TRIGGER " + trigger + " ON " + tableName);
+        stmt.execute("DROP FUNCTION " + trigger + "()");
+        stmt.execute("DROP FUNCTION " + function + "(text)");
+        stmt.execute("ALTER TABLE " + tableName + " DROP COLUMN " + name);
+        stmt.execute("ALTER TABLE " + tableName + " RENAME COLUMN " + shadow + " TO " + name);
+        dbc.commit();
+        done = true;
+        logger.info("Column " + tableName + "." + name + " converted to " + newType + ", " + total + " rows.");
+      } finally {
+        if (!done) {
+          removeConversion(dbc, shadow, trigger, function);
+        }
+      }
     }
   }
   
+  /**
+   * Removes the trigger, the functions and the shadow column
+   * of a failed column conversion.
+   * 
+   * @param dbc
+   * @param shadow
+   * @param trigger
+   * @param function 
+   */
+  private void removeConversion(Connection dbc, String shadow, String trigger, String function) {
+    try {
+      if (!dbc.getAutoCommit()) {
+        dbc.rollback();
+        dbc.setAutoCommit(true);
+      }
+      
+      try (var stmt = dbc.createStatement()) {
+        stmt.execute("DROP TRIGGER IF EXISTS " + trigger + " ON " + tableName);
+        stmt.execute("DROP FUNCTION IF EXISTS " + trigger + "()");
+        stmt.execute("DROP FUNCTION IF EXISTS " + function + "(text)");
+        stmt.execute("ALTER TABLE " + tableName + " DROP COLUMN IF EXISTS " + shadow);
+      }
+    } catch (SQLException ex) {
+      logger.warn("Cannot remove the conversion of " + tableName + "." + shadow, ex);
+    }
+  }
+  
+  /**
+   * Returns the SQL type of an existing column.
+   * 
+   * @param name
+   * @return type or empty string if the column does not exist.
+   * @throws SQLException 
+   */
+  private String getColumnType(String name) throws SQLException {
+    var cmd = "SELECT format_type(atttypid, atttypmod) FROM pg_attribute "
+            + "WHERE attrelid = ?::regclass AND attname = ? AND NOT attisdropped";
+    try (var dbc = conn.getConnection(); var stmt = dbc.prepareStatement(cmd)) {
+      stmt.setString(1, tableName);
+      stmt.setString(2, name);
+      var result = stmt.executeQuery();
+      return result.next() ? result.getString(1) : "";
+    }
+  }
+  
+  /**
+   * Sets a TIMESTAMP WITH TIME ZONE parameter from an ISO string.
+   * 
+   * The string is interpreted in the local time zone. Empty
+   * strings are stored as null.
+   * 
+   * @param stmt
+   * @param col
+   * @param isoDateTime
+   * @throws SQLException 
+   */
+  protected static void setTimestamp(PreparedStatement stmt, int col, String isoDateTime) throws SQLException {
+    if ((isoDateTime == null) || isoDateTime.isBlank()) {
+      stmt.setNull(col, Types.TIMESTAMP_WITH_TIMEZONE);
+      return;
+    }
+    
+    try {
+      stmt.setObject(col, DateUtils.fromIsoTime(isoDateTime).toOffsetDateTime());
+    } catch (DateTimeException | NumberFormatException ex) {
+      throw new SQLException("Invalid date time: " + isoDateTime, ex);
+    }
+  }
+  
+  /**
+   * Reads a TIMESTAMP WITH TIME ZONE column as local ISO string.
+   * 
+   * @param rows
+   * @param col
+   * @return
+   * @throws SQLException 
+   */
+  protected static String getTimestamp(ResultSet rows, int col) throws SQLException {
+    var value = rows.getObject(col, OffsetDateTime.class);
+    return (value == null) ? null : DateUtils.formatZ(value.atZoneSameInstant(ZoneId.systemDefault()));
+  }
+  
+  /**
+   * Sets a DATE parameter from an ISO string.
+   * 
+   * A time part of the string is ignored. Empty strings
+   * are stored as null.
+   * 
+   * @param stmt
+   * @param col
+   * @param isoDate
+   * @throws SQLException 
+   */
+  protected static void setDate(PreparedStatement stmt, int col, String isoDate) throws SQLException {
+    if ((isoDate == null) || isoDate.isBlank()) {
+      stmt.setNull(col, Types.DATE);
+      return;
+    }
+    
+    try {
+      stmt.setObject(col, DateUtils.fromIso(isoDate.substring(0, Math.min(10, isoDate.length()))));
+    } catch (DateTimeException | NumberFormatException ex) {
+      throw new SQLException("Invalid date: " + isoDate, ex);
+    }
+  }
+  
+  /**
+   * Reads a DATE column as ISO string.
+   * 
+   * @param rows
+   * @param col
+   * @return
+   * @throws SQLException 
+   */
+  protected static String getDate(ResultSet rows, int col) throws SQLException {
+    var value = rows.getObject(col, LocalDate.class);
+    return (value == null) ? null : DateUtils.formatL(value);
+  }
+  
   /**
    * Returns a set with all existing column names.
    * 
@@ -303,7 +1653,7 @@ public class DBTable {
     var result = new HashSet<String>();
     String cmd = "SELECT * from " + tableName + " LIMIT 1";
     try {
-      try (java.sql.Statement stmt = conn.getConnection().createStatement()) {
+      try (var dbc = conn.getConnection(); java.sql.Statement stmt = dbc.createStatement()) {
         var data = stmt.executeQuery(cmd);
         var md = data.getMetaData();
         for (int i = 1; i <= md.getColumnCount(); i++) {
@@ -320,9 +1670,34 @@ public class DBTable {
   /**
    * Create indexes from the given index information.
    * 
+   * Statements creating an existing index or dropping a
+   * missing one are skipped.
+   * 
+   * @param postprocessing 
+   * @param existing names of the existing indexes, null if unknown
+   */
+  private void buildIndexes(String postprocessing, Set<String> existing) {
+    try (var dbc = conn.getConnection()) {
+      buildIndexes(dbc, postprocessing, existing);
+    } catch (SQLException ex) {
+      logger.warn("Cannot add indexes.", ex);
+      schemaErrors++;
+    }
+  }
+  
+  /**
+   * Create indexes from the given index information
+   * on the given connection.
+   * 
+   * Each statement is executed on its own, so a failing
+   * statement (e.g. a missing extension) does not prevent
+   * the remaining indexes from being created.
+   * 
+   * @param dbc
    * @param postprocessing 
+   * @param existing names of the existing indexes, null if unknown
    */
-  private void buildIndexes(String postprocessing) {
+  private void buildIndexes(Connection dbc, String postprocessing, Set<String> existing) {
     if (postprocessing.isEmpty()) {
       logger.debug("No index information supplied, nothing to do.");
       return;
@@ -331,12 +1706,22 @@ public class DBTable {
     postprocessing = postprocessing.replace("{[tablename]}", tableName);
     logger.info("buildIndexes cmd: " + postprocessing);
     
-    try {
-      try (java.sql.Statement stmt = conn.getConnection().createStatement()) {
-        stmt.execute(postprocessing);
+    try (java.sql.Statement stmt = dbc.createStatement()) {
+      for (String cmd: postprocessing.split(";")) {
+        if (cmd.isBlank() || ((existing != null) && isIndexUnchanged(cmd, existing))) {
+          continue;
+        }
+        
+        try {
+          stmt.execute(cmd.trim());
+        } catch (SQLException ex) {
+          logger.warn("Cannot execute index command: " + cmd.trim(), ex);
+          schemaErrors++;
+        }
       }
     } catch (SQLException ex) {
       logger.warn("Cannot add indexes.", ex);
+      schemaErrors++;
     }
   }
 }
@@ -0,0 +1,189 @@
+/*
+ * (c) 2024 by Matthias Thiele
+ * GNU General Public License v3.0
+ */
+package de.mmth.tamm.db;
+
+import de.mmth.tamm.TammError;
+import de.mmth.tamm.TammLogger;
+import de.mmth.tamm.data.FindData;
+import de.mmth.tamm.data.TaskData;
+import de.mmth.tamm.utils.DateUtils;
+import de.mmth.tamm.utils.HistoryArchive;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Task history table, partitioned by month of lastchanged.
+ * 
+ * Each advance of a task writes a history record, so this
+ * table grows unbounded. The monthly partitions keep the
+ * indexes small and allow the history queries to skip
+ * old partitions.
+ * 
+ * Records older than the archive age are moved into the
+ * history archive. The history of a single task is merged
+ * from the table and the archive.
+ * 
+ * @author matthias
+ */
+public class HistoryTable extends TaskTable {
+  private static final Logger logger = TammLogger.prepareLogger(HistoryTable.class);
+  private static final int PARTITIONS_AHEAD = 3;
+  
+  protected static final String HISTORY_INDEX_CONFIG = 
+    """
+    drop index if exists {[tablename]}_client_lid;
+    drop index if exists {[tablename]}_client_changed;
+    create index if not exists {[tablename]}_client_lid_key on {[tablename]} (clientid, lid, coalesce(lastchanged, '-infinity'::timestamptz) desc, coalesce(createdate, '-infinity'::timestamptz) desc);
+    create index if not exists {[tablename]}_client_changed_key on {[tablename]} (clientid, coalesce(lastchanged, '-infinity'::timestamptz) desc, coalesce(createdate, '-infinity'::timestamptz) desc, lid desc);
+    """;
+  
+  private static final String ARCHIVE = "archiveHistory";
+  
+  // newest entries first, same order as the history queries.
+  private static final Comparator<TaskData> HISTORY_ORDER = Comparator
+          .comparingLong((TaskData task) -> sortTime(task.lastChanged))
+          .thenComparingLong(task -> sortTime(task.createDate))
+          .thenComparingLong(task -> task.lId)
+          .reversed();
+  
+  private HistoryArchive archive;
+  
+  public HistoryTable(DBConnect conn, String tableName) {
+    super(conn, tableName, HISTORY_INDEX_CONFIG, "lastchanged");
+    
+    registerStatement(ARCHIVE, "WITH moved AS (DELETE FROM " + tableName + " WHERE lastchanged < ? RETURNING " + selectNames + ") "
+            + "SELECT " + selectNames + " FROM moved ORDER BY clientid, lid, lastchanged desc, createdate desc");
+    // history rows never change, archived rows must not be restored.
+    setIncremental("lastchanged", "lid, lastchanged", false);
+    maintainPartitions();
+  }
+  
+  /**
+   * Sets the archive of old history records.
+   * 
+   * @param archive null: no archive
+   */
+  public void setArchive(HistoryArchive archive) {
+    this.archive = archive;
+  }
+  
+  /**
+   * Creates the partitions of the next months.
+   * 
+   * Called regularly from the background worker.
+   */
+  public final void maintainPartitions() {
+    createPartitions(PARTITIONS_AHEAD);
+  }
+  
+  /**
+   * Moves all records older than the given number of days
+   * into a new archive segment.
+   * 
+   * The records are deleted in the same transaction which
+   * reads them, the transaction is committed after the
+   * segment has been written completely.
+   * 
+   * @param ageDays 0: no archiving
+   * @return number of archived records
+   * @throws TammError 
+   */
+  public int archiveHistory(int ageDays) throws TammError {
+    if ((archive == null) || (ageDays <= 0)) {
+      return 0;
+    }
+    
+    var cutoff = DateUtils.formatZ(ZonedDateTime.now().minusDays(ageDays));
+    try (var dbc = conn.getConnection(); var stmt = prepare(dbc, ARCHIVE); var segment = archive.createSegment()) {
+      setTimestamp(stmt, 1, cutoff);
+      readRows(dbc, stmt, mapping::map, segment::append);
+      if (segment.getCount() == 0) {
+        return 0;
+      }
+      
+      segment.commit();
+      dbc.commit();
+      return segment.getCount();
+    } catch (SQLException | IOException ex) {
+      logger.warn("Error archiving task history.", ex);
+      throw new TammError("Error archiving task history.");
+    }
+  }
+  
+  /**
+   * Merges the archived records into the history of a single task.
+   * 
+   * Both sources are ordered the same way, so the page is
+   * filled with the newest records of both. Records found
+   * in both (e.g. after an interrupted archive run) are
+   * returned once.
+   * 
+   * @param clientId
+   * @param taskId
+   * @param page
+   * @param handler
+   * @throws SQLException
+   * @throws IOException 
+   */
+  @Override
+  protected void queryHistory(int clientId, long taskId, FindData page, RowHandler<TaskData> handler) throws SQLException, IOException {
+    if ((archive == null) || (taskId <= 0)) {
+      super.queryHistory(clientId, taskId, page, handler);
+      return;
+    }
+    
+    List<TaskData> rows = new ArrayList<>();
+    super.queryHistory(clientId, taskId, page, rows::add);
+    
+    TaskData cursor = null;
+    if (hasCursor(page)) {
+      cursor = new TaskData();
+      cursor.lastChanged = page.afterKey;
+      cursor.createDate = page.afterKey2;
+      cursor.lId = page.afterId;
+    }
+    
+    for (var task: archive.readTask(clientId, taskId)) {
+      if ((cursor == null) || (HISTORY_ORDER.compare(task, cursor) > 0)) {
+        rows.add(task);
+      }
+    }
+    
+    rows.sort(HISTORY_ORDER);
+    int limit = hasLimit(page) ? page.pageSize : HISTORY_LIMIT;
+    TaskData previous = null;
+    for (var task: rows) {
+      if (limit == 0) {
+        break;
+      }
+      
+      if ((previous == null) || (HISTORY_ORDER.compare(previous, task) != 0)) {
+        handler.handle(task);
+        limit--;
+      }
+      previous = task;
+    }
+  }
+  
+  /**
+   * Returns the sort value of a date time string, 
+   * missing values are sorted last.
+   * 
+   * @param isoDateTime
+   * @return 
+   */
+  private static long sortTime(String isoDateTime) {
+    if ((isoDateTime == null) || isoDateTime.isEmpty()) {
+      return Long.MIN_VALUE;
+    }
+    
+    return DateUtils.fromIsoTime(isoDateTime).toInstant().toEpochMilli();
+  }
+}
@@ -6,15 +6,26 @@ package de.mmth.tamm.db;
 
 import de.mmth.tamm.TammError;
 import de.mmth.tamm.TammLogger;
+import de.mmth.tamm.data.FindData;
 import de.mmth.tamm.data.LockData;
-import java.sql.ResultSet;
+import de.mmth.tamm.utils.LockIndex;
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
 import org.apache.logging.log4j.Logger;
+import org.postgresql.copy.CopyManager;
 
 /**
- *
+ * Lock list of mail addresses and domains.
+ * 
+ * Lock checks use an in-memory index of the list, which
+ * is reloaded regularly to see changes of other instances.
+ * Lock counter increments are collected in the index and
+ * written by flushLockCounts.
+ * 
  * @author matthias
  */
 public class LockTable extends DBTable {
@@ -23,47 +34,74 @@ public class LockTable extends DBTable {
   protected static final String TABLE_CONFIG = 
     """
     mailaddress V 250
-    lockdate V 20
+    lockdate T
     lockip V 30
     lockcounter I
     """;
   
   protected static final String INDEX_CONFIG = 
     """
-    create index if not exists ixlockmail on {[tablename]} (mailaddress);
+    drop index if exists ixlockmail;
+    drop index if exists {[tablename]}_mail_date;
+    create index if not exists {[tablename]}_mail_datekey on {[tablename]} (mailaddress, coalesce(lockdate, 'infinity'::timestamptz));
     """;
   
+  protected static final String MIGRATION_CONFIG = 
+    """
+    1 lockdate T
+    """;
+  
+  private static final String INCREMENT_COUNT = "incrementLockCount";
+  private static final String CHECK_LOCK = "checkLock";
+  private static final String REMOVE_LOCK = "removeLock";
+  private static final String LIST_ADDRESSES = "listLockAddresses";
+  private static final long INDEX_RELOAD_INTERVAL = 5 * 60000;
+  
+  // locks without date are sorted last, must match the index.
+  private static final String DATE_KEY = "coalesce(lockdate, 'infinity'::timestamptz)";
+  
+  private final LockIndex index = new LockIndex();
+  private volatile long indexLoaded = 0;
+  private final RowMapping<LockData> mapping = createMapping(LockData.class);
+  
   /**
    *
    * @param conn
    * @param tableName
    */
   public LockTable(DBConnect conn, String tableName) {
-    super(conn, tableName, TABLE_CONFIG, INDEX_CONFIG);
+    super(conn, tableName, TABLE_CONFIG, INDEX_CONFIG, MIGRATION_CONFIG);
+    
+    registerStatement(INCREMENT_COUNT, "UPDATE " + tableName + " SET lockcounter = lockcounter + ? WHERE mailaddress = ?");
+    registerStatement(CHECK_LOCK, "SELECT lockdate FROM " + tableName + " WHERE mailaddress = ? LIMIT 1");
+    registerStatement(LIST_ADDRESSES, "SELECT mailaddress FROM " + tableName);
+    registerStatement(REMOVE_LOCK, "DELETE FROM " + tableName + " where mailaddress = ? and lockdate = ? ");
+    registerQueryVariants("listLocks");
   }
   
   /**
    * Write mail lock data into database.
    * 
    * Only insert, there is no update for locks.
+   * Synchronized with loadIndex, so a reload of the
+   * index cannot miss the new entry.
    * 
    * @param lock information
    * @throws TammError 
    */
-  public void writeLock(LockData lock) throws TammError {
-    String cmd = "INSERT INTO " + tableName + " (" + insertNames + ") values " + paramPlaceholders;
-    logger.debug("SQL: " + cmd);
-    
+  public synchronized void writeLock(LockData lock) throws TammError {
     try {
-      try (var stmt = conn.getConnection().prepareStatement(cmd)) {
+      try (var dbc = conn.getConnection(); var stmt = prepare(dbc, INSERT)) {
         var col = 1;
         stmt.setString(col++, lock.mailAddress.toLowerCase());
-        stmt.setString(col++, lock.lockDate);
+        setTimestamp(stmt, col++, lock.lockDate);
         stmt.setString(col++, lock.lockIP);
         stmt.setInt(col++, 0);
 
         stmt.execute();
       }
+      
+      index.add(lock.mailAddress);
     } catch (SQLException ex) {
       logger.warn("Error writing lock data.", ex);
       throw new TammError("Error writing lock data.");
@@ -74,20 +112,32 @@ public class LockTable extends DBTable {
    * Increment the lock counter every time someone tries
    * to use a locked address.
    * 
+   * The increment is buffered, see flushLockCounts.
+   * 
    * @param mailAddress
-   * @throws TammError 
    */
-  public void incrementLockCount(String mailAddress) throws TammError {
-    String cmd = "UPDATE " + tableName + " SET lockcounter = lockcounter + 1 WHERE mailaddress = ?";
-    logger.debug("SQL: " + cmd);
+  public void incrementLockCount(String mailAddress) {
+    index.countHit(mailAddress.toLowerCase());
+  }
+  
+  /**
+   * Writes the buffered lock counter increments
+   * into the database.
+   * 
+   * Called regularly from the background worker.
+   */
+  public void flushLockCounts() {
+    var hits = index.drainHits();
+    if (hits.isEmpty()) {
+      return;
+    }
     
     try {
-      try (var stmt = conn.getConnection().prepareStatement(cmd)) {
+      writeBatch(INCREMENT_COUNT, hits.entrySet(), (stmt, hit) -> {
         var col = 1;
-        stmt.setString(col++, mailAddress.toLowerCase());
-
-        stmt.execute();
-      }
+        stmt.setInt(col++, hit.getValue());
+        stmt.setString(col++, hit.getKey());
+      });
     } catch (SQLException ex) {
       logger.warn("Error incrementing lock data.", ex);
     }
@@ -101,28 +151,147 @@ public class LockTable extends DBTable {
    * @throws TammError 
    */
   public List<LockData> listLocks(String filter) throws TammError {
+    return listLocks(filter, null);
+  }
+  
+  /**
+   * Returns one page of matching locks.
+   * 
+   * The list is ordered by mailaddress and lockdate, missing dates
+   * last. The next page starts after the mailaddress (afterKey) and lockdate
+   * (afterKey2) of the last row of the previous page.
+   * 
+   * @param filter match mailaddress
+   * @param page optional null: complete list
+   * @return
+   * @throws TammError 
+   */
+  public List<LockData> listLocks(String filter, FindData page) throws TammError {
     List<LockData> result = new ArrayList<>();
+    try {
+      queryLocks(filter, page, result::add);
+    } catch (SQLException | IOException ex) {
+      logger.warn("Error reading lock list.", ex);
+      throw new TammError("Error reading lock list.");
+    }
+    return result;
+  }
+  
+  /**
+   * Passes one page of matching locks to the handler.
+   * 
+   * Same as listLocks but without collecting the rows.
+   * 
+   * @param filter match mailaddress
+   * @param page optional null: complete list
+   * @param handler
+   * @throws TammError
+   * @throws IOException 
+   */
+  public void streamLocks(String filter, FindData page, RowHandler<LockData> handler) throws TammError, IOException {
+    try {
+      queryLocks(filter, page, handler);
+    } catch (SQLException ex) {
+      logger.warn("Error reading lock list.", ex);
+      throw new TammError("Error reading lock list.");
+    }
+  }
+  
+  /**
+   * Executes the lock list query.
+   * 
+   * @param filter
+   * @param page
+   * @param handler
+   * @throws SQLException
+   * @throws IOException 
+   */
+  private void queryLocks(String filter, FindData page, RowHandler<LockData> handler) throws SQLException, IOException {
+    boolean hasCursor = hasCursor(page);
+    boolean hasLimit = hasLimit(page);
     
-    var cmd = "SELECT " + this.selectNames + " FROM " + tableName + " WHERE mailaddress ILIKE ? ORDER BY mailaddress";
-    logger.debug("SQL: " + cmd);
+    var variant = "listLocks" + (hasCursor ? "S" : "") + (hasLimit ? "L" : "");
+    try (var dbc = connect(variant); var stmt = prepare(dbc, variant, () -> buildListCmd(hasCursor, hasLimit))) {
+      int paramCol = 1;
+      stmt.setString(paramCol++, filter);
+      if (hasCursor) {
+        stmt.setString(paramCol++, page.afterKey);
+        setTimestamp(stmt, paramCol++, page.afterKey2);
+      }
+      
+      if (hasLimit) {
+        stmt.setInt(paramCol++, page.pageSize);
+      }
+
+      readRows(dbc, stmt, mapping::map, handler);
+    }
+  }
+  
+  /**
+   * Builds the SQL text of a lock list query variant.
+   * 
+   * @param hasCursor
+   * @param hasLimit
+   * @return 
+   */
+  private String buildListCmd(boolean hasCursor, boolean hasLimit) {
+    var cmd = "SELECT " + this.selectNames + " FROM " + tableName + " WHERE mailaddress ILIKE ? ";
+    if (hasCursor) {
+      cmd += " AND (mailaddress, " + DATE_KEY + ") > (?, coalesce(CAST(? AS timestamptz), 'infinity'::timestamptz)) ";
+    }
+    
+    cmd += " ORDER BY mailaddress, " + DATE_KEY;
+    if (hasLimit) {
+      cmd += " LIMIT ?";
+    }
     
+    return cmd;
+  }
+  
+  /**
+   * Returns the lock entry of the given address.
+   * 
+   * Checks the address and its domain, including the
+   * parent domains.
+   * 
+   * @param mailAddress
+   * @return lock entry or null if not locked
+   * @throws TammError 
+   */
+  public String findLock(String mailAddress) throws TammError {
+    if (System.currentTimeMillis() - indexLoaded > INDEX_RELOAD_INTERVAL) {
+      loadIndex();
+    }
+    
+    return index.findLock(mailAddress);
+  }
+  
+  /**
+   * Reads all lock entries into the lock index.
+   * 
+   * @throws TammError 
+   */
+  private synchronized void loadIndex() throws TammError {
+    if (System.currentTimeMillis() - indexLoaded <= INDEX_RELOAD_INTERVAL) {
+      return;
+    }
+    
+    var entries = new ArrayList<String>();
     try {
-      try (var stmt = conn.getConnection().prepareStatement(cmd)) {
-        int paramCol = 1;
-        stmt.setString(paramCol++, filter);
-
+      try (var dbc = conn.getConnection(); var stmt = prepare(dbc, LIST_ADDRESSES)) {
         var rows = stmt.executeQuery();
         while (rows.next()) {
-          var lock = getData(rows);
-          logger.debug("Lock found: " + lock.mailAddress);
-          result.add(lock);
+          entries.add(rows.getString(1));
         }
       }
     } catch (SQLException ex) {
       logger.warn("Error reading lock list.", ex);
       throw new TammError("Error reading lock list.");
     }
-    return result;
+    
+    index.replaceAll(entries);
+    indexLoaded = System.currentTimeMillis();
+    logger.debug("Lock index loaded with " + entries.size() + " entries.");
   }
   
   /**
@@ -135,11 +304,8 @@ public class LockTable extends DBTable {
   public boolean checkLock(String mailAddress) throws TammError {
     boolean result = false;
     
-    var cmd = "SELECT lockdate FROM " + tableName + " WHERE mailaddress = ? LIMIT 1";
-    logger.debug("SQL: " + cmd);
-    
     try {
-      try (var stmt = conn.getConnection().prepareStatement(cmd)) {
+      try (var dbc = conn.getConnection(); var stmt = prepare(dbc, CHECK_LOCK)) {
         int paramCol = 1;
         stmt.setString(paramCol++, mailAddress);
 
@@ -156,22 +322,21 @@ public class LockTable extends DBTable {
   
   /**
    * Removes the give lock from the lock table.
+   * Synchronized with loadIndex like writeLock.
    * 
    * @param lock
    * @throws TammError 
    */
-  public void removeLock(LockData lock) throws TammError {
-    String cmd;
-    cmd = "DELETE FROM " + tableName + " where mailaddress = ? and lockdate = ? ";
-    logger.debug("SQL: " + cmd);
-    
+  public synchronized void removeLock(LockData lock) throws TammError {
     try {
-      try (var stmt = conn.getConnection().prepareStatement(cmd)) {
+      try (var dbc = conn.getConnection(); var stmt = prepare(dbc, REMOVE_LOCK)) {
         var col = 1;
         stmt.setString(col++, lock.mailAddress);
-        stmt.setString(col++, lock.lockDate);
+        setTimestamp(stmt, col++, lock.lockDate);
 
-        stmt.execute();
+        if (stmt.executeUpdate() > 0) {
+          index.remove(lock.mailAddress);
+        }
       }
     } catch (SQLException ex) {
       logger.warn("Error deleting lock entry.", ex);
@@ -179,23 +344,12 @@ public class LockTable extends DBTable {
     }
   }
   
-  /**
-   * Reads the current sql row and copies it to the LockData return object.
-   * 
-   * @param rows
-   * @return
-   * @throws SQLException 
-   */
-  private LockData getData(ResultSet rows) throws SQLException {
-    var result = new LockData();
-    
-    int col = 1;
-    result.mailAddress = rows.getString(col++);
-    result.lockDate = rows.getString(col++);
-    result.lockIP = rows.getString(col++);
-    result.lockCounter = rows.getInt(col++);
-    
-    return result;
+  @Override
+  public File restore(Connection dbc, CopyManager manager, File sourceDir) {
+    try {
+      return super.restore(dbc, manager, sourceDir);
+    } finally {
+      indexLoaded = 0;
+    }
   }
-  
 }
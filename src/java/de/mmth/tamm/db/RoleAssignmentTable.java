@@ -7,14 +7,26 @@ package de.mmth.tamm.db;
 import de.mmth.tamm.TammError;
 import de.mmth.tamm.TammLogger;
 import de.mmth.tamm.data.RoleAssignmentData;
+import java.io.File;
+import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.postgresql.copy.CopyManager;
 import org.apache.logging.log4j.Logger;
 
 /**
  * Contains the list of roles assigned to an user.
  * 
+ * The effective owners of an user (user id and role ids)
+ * are cached in memory. Each change of the assignments
+ * invalidates the cache, changes of other instances are
+ * seen after the time to live of the entries.
+ * 
  * @author matthias
  */
 public class RoleAssignmentTable extends DBTable {
@@ -28,11 +40,33 @@ public class RoleAssignmentTable extends DBTable {
   
   protected static final String INDEX_CONFIG = 
     """
-    create index if not exists ixroleuserids on {[tablename]} (userid);
+    drop index if exists ixroleuserids;
+    create index if not exists {[tablename]}_user_role on {[tablename]} (userid, roleid);
+    create index if not exists {[tablename]}_role on {[tablename]} (roleid);
     """;
   
+  private static final String CLEAR_OF_USER = "clearUserAssignments";
+  private static final String CLEAR_OF_ROLE = "clearRoleAssignments";
+  private static final String LIST_OF_USER = "listRoleAssignments";
+  
+  // the owners decide the access to tasks, keep changes of other instances short.
+  private static final long OWNER_TIME_TO_LIVE = 60000;
+  
+  private final Map<Integer, CachedOwners> ownerCache = new ConcurrentHashMap<>();
+  private final AtomicLong generation = new AtomicLong();
+  
+  /**
+   * Cached owners with their expiration time.
+   */
+  private record CachedOwners(int[] owners, long expiration) {
+  }
+  
   public RoleAssignmentTable(DBConnect conn, String tableName) {
     super(conn, tableName, TABLE_CONFIG, INDEX_CONFIG);
+    
+    registerStatement(CLEAR_OF_USER, "DELETE FROM " + tableName + " WHERE userid = ? ");
+    registerStatement(CLEAR_OF_ROLE, "DELETE FROM " + tableName + " WHERE roleid = ? ");
+    registerStatement(LIST_OF_USER, "SELECT " + selectNames + " FROM " + tableName + " WHERE userid = ? ");
   }
   
   /**
@@ -43,12 +77,8 @@ public class RoleAssignmentTable extends DBTable {
    * @throws TammError 
    */
   public void clearRoleAssignments(int id, boolean userOrRole) throws TammError {
-    String cmd;
-    cmd = "DELETE FROM " + tableName + " WHERE " + ((userOrRole) ? "userid" : "roleid") + " = ? ";
-    logger.debug("SQL: " + cmd);
-    
     try {
-      try (var stmt = conn.getConnection().prepareStatement(cmd)) {
+      try (var dbc = conn.getConnection(); var stmt = prepare(dbc, userOrRole ? CLEAR_OF_USER : CLEAR_OF_ROLE)) {
         var col = 1;
         stmt.setInt(col++, id);
 
@@ -57,39 +87,48 @@ public class RoleAssignmentTable extends DBTable {
     } catch (SQLException ex) {
       logger.warn("Error deleting role assignment data.", ex);
       throw new TammError("Error deleting role assignment data.");
+    } finally {
+      if (userOrRole) {
+        invalidateOwners(id);
+      } else {
+        invalidateOwners();
+      }
     }
-    
   }
   
   /**
    * Writes the role assignments of an user into the database.
    * 
    * There is no update, just inserts.
-   * All existing roles will be removed before the new roles will be written.
+   * All existing roles will be removed before the new roles will be written,
+   * both in one transaction.
    * 
    * @param roles
    * @throws TammError 
    */
   public void writeRoleAssignments(RoleAssignmentData roles) throws TammError {
-    clearRoleAssignments(roles.user, true);
-    
-    String cmd = "INSERT INTO " + tableName + " (" + insertNames + ") values " + paramPlaceholders;
-    logger.debug("SQL: " + cmd);
-    
     try {
-      try (var stmt = conn.getConnection().prepareStatement(cmd)) {
-        for (var roleid: roles.roles) {
+      try (var dbc = conn.getConnection()) {
+        dbc.setAutoCommit(false);
+        try (var stmt = prepare(dbc, CLEAR_OF_USER)) {
+          stmt.setInt(1, roles.user);
+          stmt.execute();
+        }
+        
+        var roleIds = Arrays.stream(roles.roles).boxed().toList();
+        writeBatch(dbc, INSERT, roleIds, (stmt, roleid) -> {
           var col = 1;
-
           stmt.setInt(col++, roles.user);
           stmt.setInt(col++, roleid);
-
-          stmt.execute();
-        }
+        });
+        
+        dbc.commit();
       }
     } catch (SQLException ex) {
       logger.warn("Error writing role assignment data.", ex);
       throw new TammError("Error writing role assignment data.");
+    } finally {
+      invalidateOwners(roles.user);
     }
   }
   
@@ -103,11 +142,8 @@ public class RoleAssignmentTable extends DBTable {
   public RoleAssignmentData listRoleAssignments(int userId) throws TammError {
     List<Integer> roleList = new ArrayList<>();
     
-    var cmd = "SELECT " + this.selectNames + " FROM " + tableName + " WHERE userid = ? ";    
-    logger.debug("SQL: " + cmd);
-    
     try {
-      try (var stmt = conn.getConnection().prepareStatement(cmd)) {
+      try (var dbc = conn.getConnection(); var stmt = prepare(dbc, LIST_OF_USER)) {
         stmt.setInt(1, userId);
         
         var rows = stmt.executeQuery();
@@ -127,4 +163,81 @@ public class RoleAssignmentTable extends DBTable {
     
     return result;
   }
+  
+  /**
+   * Returns the effective owners of the given user.
+   * 
+   * The first entry is the user id, followed by the
+   * ids of all assigned roles. The result is cached
+   * until the role assignments change or the entry expires.
+   * 
+   * @param userId
+   * @return
+   * @throws TammError 
+   */
+  public int[] getEffectiveOwners(int userId) throws TammError {
+    var cached = ownerCache.get(userId);
+    if ((cached != null) && (cached.expiration() >= System.currentTimeMillis())) {
+      return cached.owners();
+    }
+    
+    // a concurrent change during the read must not leave stale data in the cache.
+    long readGeneration = generation.get();
+    var roles = listRoleAssignments(userId).roles;
+    var owners = new int[roles.length + 1];
+    owners[0] = userId;
+    System.arraycopy(roles, 0, owners, 1, roles.length);
+    
+    if (generation.get() == readGeneration) {
+      ownerCache.put(userId, new CachedOwners(owners, System.currentTimeMillis() + OWNER_TIME_TO_LIVE));
+    }
+    
+    return owners;
+  }
+  
+  /**
+   * Checks if the owner is the given user or one of his roles.
+   * 
+   * @param userId
+   * @param owner
+   * @return
+   * @throws TammError 
+   */
+  public boolean isEffectiveOwner(int userId, int owner) throws TammError {
+    for (int id: getEffectiveOwners(userId)) {
+      if (id == owner) {
+        return true;
+      }
+    }
+    
+    return false;
+  }
+  
+  /**
+   * Removes the cached owners of the given user.
+   * 
+   * @param userId 
+   */
+  public void invalidateOwners(int userId) {
+    generation.incrementAndGet();
+    ownerCache.remove(userId);
+  }
+  
+  /**
+   * Removes all cached owners, used if a role
+   * has been changed or removed.
+   */
+  public void invalidateOwners() {
+    generation.incrementAndGet();
+    ownerCache.clear();
+  }
+  
+  @Override
+  public File restore(Connection dbc, CopyManager manager, File sourceDir) {
+    try {
+      return super.restore(dbc, manager, sourceDir);
+    } finally {
+      invalidateOwners();
+    }
+  }
 }
@@ -7,7 +7,6 @@ package de.mmth.tamm.db;
 import de.mmth.tamm.TammError;
 import de.mmth.tamm.TammLogger;
 import de.mmth.tamm.data.RoleData;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
@@ -31,10 +30,26 @@ public class RoleTable extends DBTable {
   protected static final String INDEX_CONFIG = 
     """
     create unique index if not exists ixroleids on {[tablename]} (clientid, id);
+    create index if not exists {[tablename]}_client_owner_name on {[tablename]} (clientid, owner, name);
     """;
 
+  private static final String UPDATE_ROLE = "updateRole";
+  private static final String LAST_ID = "lastId";
+  private static final String LIST_ROLES = "listRoles";
+  private static final String LIST_ROLES_OF_OWNER = "listRolesOfOwner";
+  private static final String REMOVE_ROLE = "removeRole";
+  private static final String ROLE_CLIENT = "getRoleClient";
+  private final RowMapping<RoleData> mapping = createMapping(RoleData.class);
+
   public RoleTable(DBConnect conn, String tableName) {
     super(conn, tableName, TABLE_CONFIG, INDEX_CONFIG);
+    
+    registerStatement(UPDATE_ROLE, "UPDATE " + tableName + " SET " + updateNames + " WHERE id = ?");
+    registerStatement(LAST_ID, "SELECT LASTVAL()");
+    registerStatement(LIST_ROLES, "SELECT " + selectNames + " FROM " + tableName + " WHERE clientid = ? ORDER BY name");
+    registerStatement(LIST_ROLES_OF_OWNER, "SELECT " + selectNames + " FROM " + tableName + " WHERE clientid = ? AND owner = ? ORDER BY name");
+    registerStatement(REMOVE_ROLE, "DELETE FROM " + tableName + " where clientid = ? and id = ? ");
+    registerStatement(ROLE_CLIENT, "SELECT clientid FROM " + tableName + " WHERE id = ? ");
   }
   
   /**
@@ -48,30 +63,21 @@ public class RoleTable extends DBTable {
    */
   public int writeRole(RoleData role) throws TammError {
     int roleId = role.id;
-    String cmd;
-    if (role.id == -1) {
-      cmd = "INSERT INTO " + tableName + " (" + insertNames + ") values " + paramPlaceholders;
-    } else {
-      cmd = "UPDATE " + tableName + " SET " + updateNames + " WHERE id = " + role.id;
-    }
-    logger.debug("SQL: " + cmd);
+    boolean isInsert = role.id == -1;
     
-    try {
-      try (var stmt = conn.getConnection().prepareStatement(cmd)) {
-        var col = 1;
-        if (role.id != -1) {
-          stmt.setInt(col++, role.id);
+    try (var dbc = conn.getConnection()) {
+      try (var stmt = prepare(dbc, isInsert ? INSERT : UPDATE_ROLE)) {
+        var col = mapping.bind(stmt, role);
+        if (!isInsert) {
+          stmt.setInt(col, role.id);
         }
-        
-        stmt.setInt(col++, role.clientId);
-        stmt.setString(col++, role.name);
-        stmt.setInt(col++, role.owner);
 
         stmt.execute();
       }
       
-      if (roleId == -1) {
-        try (var stmt = conn.getConnection().prepareStatement("SELECT LASTVAL()")) {
+      if (isInsert) {
+        // LASTVAL is session based, use the same connection as the insert.
+        try (var stmt = prepare(dbc, LAST_ID)) {
           var result = stmt.executeQuery();
           result.next();
           roleId = result.getInt(1);
@@ -96,16 +102,8 @@ public class RoleTable extends DBTable {
   public List<RoleData> listRoles(int clientId, int owner) throws TammError {
     List<RoleData> result = new ArrayList<>();
     
-    var cmd = "SELECT " + this.selectNames + " FROM " + tableName + " WHERE clientid = ? ";
-    if (owner != -1) {
-      cmd += " AND owner = ? ";
-    }
-    
-    cmd += " ORDER BY name";
-    logger.debug("SQL: " + cmd);
-    
     try {
-      try (var stmt = conn.getConnection().prepareStatement(cmd)) {
+      try (var dbc = conn.getConnection(); var stmt = prepare(dbc, (owner != -1) ? LIST_ROLES_OF_OWNER : LIST_ROLES)) {
         stmt.setInt(1, clientId);
         if (owner != -1) {
           stmt.setInt(2, owner);
@@ -113,7 +111,7 @@ public class RoleTable extends DBTable {
         
         var rows = stmt.executeQuery();
         while (rows.next()) {
-          var role = getData(rows);
+          var role = mapping.map(rows);
           logger.debug("Role found: " + role.name);
           result.add(role);
         }
@@ -134,12 +132,8 @@ public class RoleTable extends DBTable {
    * @throws TammError 
    */
   public void removeRole(int clientId, int roleId) throws TammError {
-    String cmd;
-    cmd = "DELETE FROM " + tableName + " where clientid = ? and id = ? ";
-    logger.debug("SQL: " + cmd);
-    
     try {
-      try (var stmt = conn.getConnection().prepareStatement(cmd)) {
+      try (var dbc = conn.getConnection(); var stmt = prepare(dbc, REMOVE_ROLE)) {
         var col = 1;
         stmt.setInt(col++, clientId);
         stmt.setInt(col++, roleId);
@@ -162,11 +156,8 @@ public class RoleTable extends DBTable {
   public int getRoleClient(int roleId) throws TammError {
     int result = -1;
     
-    var cmd = "SELECT clientid FROM " + tableName + " WHERE id = ? ";
-    logger.debug("SQL: " + cmd);
-    
     try {
-      try (var stmt = conn.getConnection().prepareStatement(cmd)) {
+      try (var dbc = conn.getConnection(); var stmt = prepare(dbc, ROLE_CLIENT)) {
         stmt.setInt(1, roleId);
         
         var rows = stmt.executeQuery();
@@ -183,23 +174,4 @@ public class RoleTable extends DBTable {
     return result;
   }
   
-  
-  /**
-   * Copies the ResultSet role data into an RoleData object.
-   * 
-   * @param rows
-   * @return
-   * @throws SQLException 
-   */
-  private RoleData getData(ResultSet rows) throws SQLException {
-    RoleData result = new RoleData();
-    
-    result.id = rows.getInt(1);
-    result.clientId = rows.getInt(2);
-    result.name = rows.getString(3);
-    result.owner = rows.getInt(4);
-    
-    return result;
-  }
-  
 }
@@ -0,0 +1,358 @@
+/*
+ * (c) 2024 by Matthias Thiele
+ * GNU General Public License v3.0
+ */
+package de.mmth.tamm.db;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.ObjIntConsumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * Maps the rows of a table to the objects of a data class.
+ *
+ * The mapping is compiled once from the column definition of
+ * the table. Each column is bound to the public field with the
+ * same name (ignoring case) or to the field given by an alias.
+ * The fields are accessed by method handles without boxing.
+ * Columns without a matching field need a custom accessor.
+ *
+ * map() reads the columns in definition order, like the
+ * select list of the table. bind() sets the parameters of
+ * the insert and update statements, generated id columns
+ * are skipped.
+ *
+ * A projection maps only some of the columns, for list
+ * queries that do not need the complete rows.
+ *
+ * @param <T> data class
+ * @author matthias
+ */
+public class RowMapping<T> {
+  private static final MethodHandles.Lookup LOOKUP = MethodHandles.publicLookup();
+
+  private final Class<T> type;
+  private final MethodHandle constructor;
+  private final Map<String, Field> fields = new HashMap<>();
+  private final List<Column> columns = new ArrayList<>();
+
+  /**
+   * Reads and writes one column of a row.
+   */
+  private abstract static class Column {
+    final String name;
+    final String sqlType;
+    final boolean generated;
+
+    Column(String name, String sqlType, boolean generated) {
+      this.name = name;
+      this.sqlType = sqlType;
+      this.generated = generated;
+    }
+
+    abstract void bind(PreparedStatement stmt, int col, Object row) throws SQLException;
+
+    abstract void read(ResultSet rows, int col, Object row) throws SQLException;
+  }
+
+  /**
+   * Column bound to a public field of the data class.
+   */
+  private static final class FieldColumn extends Column {
+    final MethodHandle getter;
+    final MethodHandle setter;
+
+    FieldColumn(String name, String sqlType, boolean generated, Field field) {
+      super(name, sqlType, generated);
+      var fieldType = field.getType();
+      if (fieldType != expectedType(sqlType)) {
+        throw new IllegalArgumentException("Column " + name + " does not match field " + field.getName());
+      }
+
+      try {
+        getter = LOOKUP.unreflectGetter(field).asType(MethodType.methodType(fieldType, Object.class));
+        setter = LOOKUP.unreflectSetter(field).asType(MethodType.methodType(void.class, Object.class, fieldType));
+      } catch (IllegalAccessException ex) {
+        throw new IllegalArgumentException("Field " + field.getName() + " not accessible.", ex);
+      }
+    }
+
+    @Override
+    void bind(PreparedStatement stmt, int col, Object row) throws SQLException {
+      try {
+        switch (sqlType) {
+          case "I" -> stmt.setInt(col, (int) getter.invokeExact(row));
+          case "L" -> stmt.setLong(col, (long) getter.invokeExact(row));
+          case "B" -> stmt.setBoolean(col, (boolean) getter.invokeExact(row));
+          case "T" -> DBTable.setTimestamp(stmt, col, (String) getter.invokeExact(row));
+          case "D" -> DBTable.setDate(stmt, col, (String) getter.invokeExact(row));
+          default -> stmt.setString(col, (String) getter.invokeExact(row));
+        }
+      } catch (SQLException | RuntimeException ex) {
+        throw ex;
+      } catch (Throwable ex) {
+        throw new IllegalStateException("Cannot read field of column " + name, ex);
+      }
+    }
+
+    @Override
+    void read(ResultSet rows, int col, Object row) throws SQLException {
+      try {
+        switch (sqlType) {
+          case "I" -> setter.invokeExact(row, rows.getInt(col));
+          case "L" -> setter.invokeExact(row, rows.getLong(col));
+          case "B" -> setter.invokeExact(row, rows.getBoolean(col));
+          case "T" -> setter.invokeExact(row, DBTable.getTimestamp(rows, col));
+          case "D" -> setter.invokeExact(row, DBTable.getDate(rows, col));
+          default -> setter.invokeExact(row, rows.getString(col));
+        }
+      } catch (SQLException | RuntimeException ex) {
+        throw ex;
+      } catch (Throwable ex) {
+        throw new IllegalStateException("Cannot write field of column " + name, ex);
+      }
+    }
+  }
+
+  /**
+   * Creates the mapping of the data class to the table columns.
+   *
+   * @param type data class with a public no-arg constructor
+   * @param columnConfig column definition of the table
+   */
+  public RowMapping(Class<T> type, String columnConfig) {
+    this.type = type;
+    try {
+      constructor = LOOKUP.findConstructor(type, MethodType.methodType(void.class)).asType(MethodType.methodType(Object.class));
+    } catch (NoSuchMethodException | IllegalAccessException ex) {
+      throw new IllegalArgumentException("No public constructor of " + type.getName(), ex);
+    }
+
+    for (var field: type.getFields()) {
+      if (!Modifier.isStatic(field.getModifiers()) && !Modifier.isFinal(field.getModifiers())) {
+        fields.put(field.getName().toLowerCase(), field);
+      }
+    }
+
+    for (String col: columnConfig.split("\\R")) {
+      if (col.isBlank()) {
+        continue;
+      }
+
+      String[] parts = col.trim().split(" ");
+      boolean generated = parts[1].equals("I") && (parts.length > 2) && parts[2].startsWith("G");
+      var field = fields.get(parts[0]);
+      columns.add((field == null) ? new Unmapped(parts[0], parts[1], generated) : new FieldColumn(parts[0], parts[1], generated, field));
+    }
+  }
+
+  /**
+   * Creates a projection of this mapping.
+   *
+   * @param other
+   * @param names
+   */
+  private RowMapping(RowMapping<T> other, String names) {
+    this.type = other.type;
+    this.constructor = other.constructor;
+    this.fields.putAll(other.fields);
+    for (String name: names.split(",")) {
+      columns.add(other.findColumn(name.trim()));
+    }
+  }
+
+  /**
+   * Returns the mapping of the given columns, the fields
+   * of all other columns keep their default values.
+   *
+   * @param names comma separated column names, in select order
+   * @return
+   */
+  public RowMapping<T> project(String names) {
+    return new RowMapping<>(this, names);
+  }
+
+  /**
+   * Returns the select list of the mapped columns.
+   *
+   * @return
+   */
+  public String getSelectNames() {
+    var result = new StringBuilder();
+    for (var column: columns) {
+      if (!result.isEmpty()) {
+        result.append(",");
+      }
+      result.append(column.name);
+    }
+
+    return " " + result + " ";
+  }
+
+  /**
+   * Binds a column to a field with a different name.
+   *
+   * @param column
+   * @param fieldName
+   * @return
+   */
+  public RowMapping<T> alias(String column, String fieldName) {
+    var field = fields.get(fieldName.toLowerCase());
+    if (field == null) {
+      throw new IllegalArgumentException("Unknown field " + fieldName + " of " + type.getName());
+    }
+
+    var old = findColumn(column);
+    columns.set(columns.indexOf(old), new FieldColumn(old.name, old.sqlType, old.generated, field));
+    return this;
+  }
+
+  /**
+   * Sets a custom accessor of an integer column.
+   *
+   * @param column
+   * @param getter
+   * @param setter
+   * @return
+   */
+  public RowMapping<T> intColumn(String column, ToIntFunction<T> getter, ObjIntConsumer<T> setter) {
+    var old = findColumn(column);
+    columns.set(columns.indexOf(old), new Column(old.name, old.sqlType, old.generated) {
+      @Override
+      @SuppressWarnings("unchecked")
+      void bind(PreparedStatement stmt, int col, Object row) throws SQLException {
+        stmt.setInt(col, getter.applyAsInt((T) row));
+      }
+
+      @Override
+      @SuppressWarnings("unchecked")
+      void read(ResultSet rows, int col, Object row) throws SQLException {
+        setter.accept((T) row, rows.getInt(col));
+      }
+    });
+    return this;
+  }
+
+  /**
+   * Sets a custom accessor of a VARCHAR column.
+   *
+   * @param column
+   * @param getter
+   * @param setter
+   * @return
+   */
+  public RowMapping<T> stringColumn(String column, Function<T, String> getter, BiConsumer<T, String> setter) {
+    var old = findColumn(column);
+    columns.set(columns.indexOf(old), new Column(old.name, old.sqlType, old.generated) {
+      @Override
+      @SuppressWarnings("unchecked")
+      void bind(PreparedStatement stmt, int col, Object row) throws SQLException {
+        stmt.setString(col, getter.apply((T) row));
+      }
+
+      @Override
+      @SuppressWarnings("unchecked")
+      void read(ResultSet rows, int col, Object row) throws SQLException {
+        setter.accept((T) row, rows.getString(col));
+      }
+    });
+    return this;
+  }
+
+  /**
+   * Creates a data object from the current row.
+   *
+   * The columns must be selected in definition order.
+   *
+   * @param rows
+   * @return
+   * @throws SQLException
+   */
+  @SuppressWarnings("unchecked")
+  public T map(ResultSet rows) throws SQLException {
+    Object result;
+    try {
+      result = (Object) constructor.invokeExact();
+    } catch (Throwable ex) {
+      throw new IllegalStateException("Cannot create " + type.getName(), ex);
+    }
+
+    int col = 1;
+    for (var column: columns) {
+      column.read(rows, col++, result);
+    }
+
+    return (T) result;
+  }
+
+  /**
+   * Sets the insert or update parameters of the data object.
+   *
+   * @param stmt
+   * @param row
+   * @return index of the next parameter
+   * @throws SQLException
+   */
+  public int bind(PreparedStatement stmt, T row) throws SQLException {
+    int col = 1;
+    for (var column: columns) {
+      if (!column.generated) {
+        column.bind(stmt, col++, row);
+      }
+    }
+
+    return col;
+  }
+
+  private Column findColumn(String name) {
+    for (var column: columns) {
+      if (column.name.equals(name)) {
+        return column;
+      }
+    }
+
+    throw new IllegalArgumentException("Unknown column " + name);
+  }
+
+  private static Class<?> expectedType(String sqlType) {
+    return switch (sqlType) {
+      case "I" -> int.class;
+      case "L" -> long.class;
+      case "B" -> boolean.class;
+      default -> String.class;
+    };
+  }
+
+  /**
+   * Column without a field, must be replaced by an alias
+   * or a custom accessor before use.
+   */
+  private static final class Unmapped extends Column {
+    Unmapped(String name, String sqlType, boolean generated) {
+      super(name, sqlType, generated);
+    }
+
+    @Override
+    void bind(PreparedStatement stmt, int col, Object row) {
+      throw new IllegalStateException("No field for column " + name);
+    }
+
+    @Override
+    void read(ResultSet rows, int col, Object row) {
+      throw new IllegalStateException("No field for column " + name);
+    }
+  }
+}
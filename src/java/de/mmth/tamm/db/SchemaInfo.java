@@ -0,0 +1,118 @@
+/*
+ * (c) 2024 by Matthias Thiele
+ * GNU General Public License v3.0
+ */
+package de.mmth.tamm.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Snapshot of the tables, columns and indexes of the schema.
+ *
+ * The catalog is read with a single query when the tables are
+ * opened, instead of several queries per table. The snapshot
+ * also contains the schema fingerprint of each table, a table
+ * with an unchanged fingerprint needs no verification.
+ *
+ * Each table entry can be taken only once. The table may change
+ * its schema afterwards, so later opens of the same table read
+ * the catalog again.
+ *
+ * @author matthias
+ */
+public class SchemaInfo {
+  private static final String READ_CATALOG =
+          "SELECT c.relname, c.relkind::text, a.attname::text FROM pg_catalog.pg_class c "
+          + "JOIN pg_catalog.pg_namespace n ON n.oid = c.relnamespace "
+          + "LEFT JOIN pg_catalog.pg_attribute a ON a.attrelid = c.oid AND a.attnum > 0 AND NOT a.attisdropped "
+          + "WHERE n.nspname = current_schema() AND c.relkind IN ('r', 'p') "
+          + "UNION ALL "
+          + "SELECT tablename, 'i', indexname FROM pg_catalog.pg_indexes WHERE schemaname = current_schema()";
+
+  private final Map<String, TableInfo> tables = new HashMap<>();
+  private final Set<String> taken = new HashSet<>();
+
+  /**
+   * Catalog information of one table.
+   */
+  public static class TableInfo {
+    /** r: plain table, p: partitioned table, null: table does not exist */
+    String kind;
+    final Set<String> columns = new HashSet<>();
+    final Set<String> indexes = new HashSet<>();
+    String fingerprint;
+
+    boolean exists() {
+      return kind != null;
+    }
+  }
+
+  private SchemaInfo() {
+  }
+
+  /**
+   * Reads the catalog and the schema fingerprints.
+   *
+   * Creates the schema version table if it does not exist.
+   *
+   * @param dbc
+   * @return
+   * @throws SQLException
+   */
+  static SchemaInfo load(Connection dbc) throws SQLException {
+    var result = new SchemaInfo();
+    try (var stmt = dbc.createStatement()) {
+      var rows = stmt.executeQuery(READ_CATALOG);
+      while (rows.next()) {
+        var table = result.tables.computeIfAbsent(rows.getString(1), name -> new TableInfo());
+        var kind = rows.getString(2);
+        if (kind.equals("i")) {
+          table.indexes.add(rows.getString(3));
+        } else {
+          table.kind = kind;
+          if (rows.getString(3) != null) {
+            table.columns.add(rows.getString(3));
+          }
+        }
+      }
+
+      var versions = result.tables.get(DBTable.VERSION_TABLE);
+      if ((versions == null) || !versions.exists()) {
+        stmt.execute("CREATE TABLE IF NOT EXISTS " + DBTable.VERSION_TABLE + " (tablename VARCHAR(100) PRIMARY KEY, version INTEGER NOT NULL)");
+      }
+      if ((versions == null) || !versions.columns.contains("fingerprint")) {
+        stmt.execute("ALTER TABLE " + DBTable.VERSION_TABLE + " ADD COLUMN IF NOT EXISTS fingerprint VARCHAR(64)");
+      }
+
+      rows = stmt.executeQuery("SELECT tablename, fingerprint FROM " + DBTable.VERSION_TABLE);
+      while (rows.next()) {
+        var table = result.tables.get(rows.getString(1));
+        if (table != null) {
+          table.fingerprint = rows.getString(2);
+        }
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Returns the catalog information of the table.
+   *
+   * @param tableName
+   * @return null if already taken
+   */
+  synchronized TableInfo take(String tableName) {
+    if (!taken.add(tableName)) {
+      return null;
+    }
+
+    var table = tables.remove(tableName);
+    return (table == null) ? new TableInfo() : table;
+  }
+}
@@ -0,0 +1,278 @@
+/*
+ * (c) 2024 by Matthias Thiele
+ * GNU General Public License v3.0
+ */
+package de.mmth.tamm.db;
+
+import de.mmth.tamm.TammLogger;
+import de.mmth.tamm.data.SlowQueryData;
+import de.mmth.tamm.utils.DateUtils;
+import java.sql.Array;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Log of the statements exceeding the slow query threshold.
+ *
+ * Each slow execution is captured with its bound parameters.
+ * The query plan is read with EXPLAIN on a separate pool
+ * connection in the background, so the request is not delayed.
+ * If the plan queue is full, the entry is kept without plan.
+ *
+ * The entries are kept in a ring buffer of the latest slow
+ * queries and written to the logger of this class, which can
+ * be routed to its own appender in log4j2.xml.
+ *
+ * Parameters of password, mail and free text columns (names and
+ * descriptions), text parameters of unknown columns (e.g. the
+ * full text search) and values looking like mail addresses are
+ * redacted.
+ *
+ * @author matthias
+ */
+public class SlowQueryLog {
+  private static final Logger logger = TammLogger.prepareLogger(SlowQueryLog.class);
+  private static final int CAPACITY = 100;
+  private static final int PLAN_QUEUE = 10;
+  private static final int MAX_PARAM_LENGTH = 100;
+  private static final String REDACTED = "***";
+  private static final Set<String> SENSITIVE_COLUMNS = Set.of("pwd", "password", "mail", "mailaddress", "name", "description");
+  private static final Pattern INSERT_COLUMNS = Pattern.compile("INSERT INTO \\S+\\s*\\(([^)]*)\\)\\s*values", Pattern.CASE_INSENSITIVE);
+  private static final Pattern COMPARED_COLUMN = Pattern.compile("(\\w+)\\s*(?:=\\s*ANY\\s*\\(|=|<>|!=|<=|>=|<|>|I?LIKE)\\s*$", Pattern.CASE_INSENSITIVE);
+
+  private final DBConnect conn;
+  private final SlowQueryData[] entries = new SlowQueryData[CAPACITY];
+  private long written = 0;
+  private volatile long thresholdMicros = 0;
+  private final Map<String, String[]> paramColumns = new ConcurrentHashMap<>();
+  private final ThreadPoolExecutor planner = new ThreadPoolExecutor(1, 1, 1, TimeUnit.MINUTES, new ArrayBlockingQueue<>(PLAN_QUEUE),
+          runnable -> {
+            var thread = new Thread(runnable, "SlowQueryPlanner");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  /**
+   * Array parameter, copied from the connection of the statement.
+   */
+  private record ArrayParam(String baseType, Object[] elements) {
+    @Override
+    public String toString() {
+      return Arrays.toString(elements);
+    }
+  }
+
+  SlowQueryLog(DBConnect conn) {
+    this.conn = conn;
+    planner.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Sets the threshold of slow statements.
+   *
+   * @param millis 0: no slow query log
+   */
+  public void setThreshold(int millis) {
+    thresholdMicros = Math.max(0, millis) * 1000L;
+  }
+
+  /**
+   * Indicates if the parameters of statements must be recorded.
+   *
+   * @return
+   */
+  boolean isEnabled() {
+    return thresholdMicros > 0;
+  }
+
+  /**
+   * Indicates if the execution time exceeds the threshold.
+   *
+   * @param micros
+   * @return
+   */
+  boolean isSlow(long micros) {
+    long threshold = thresholdMicros;
+    return (threshold > 0) && (micros >= threshold);
+  }
+
+  /**
+   * Captures a slow statement execution.
+   *
+   * Called while the connection of the statement is still
+   * in use, array parameters are copied.
+   *
+   * @param name table and statement name
+   * @param sql
+   * @param params bound parameters, index 0 is the first parameter
+   * @param micros
+   */
+  void capture(String name, String sql, List<Object> params, long micros) {
+    var entry = new SlowQueryData();
+    entry.time = DateUtils.formatZ(null);
+    entry.statement = name;
+    entry.sql = sql;
+    entry.micros = micros;
+
+    var values = new Object[params.size()];
+    for (int i = 0; i < values.length; i++) {
+      var value = params.get(i);
+      if (value instanceof Array array) {
+        try {
+          value = new ArrayParam(array.getBaseTypeName(), (Object[]) array.getArray());
+        } catch (SQLException | ClassCastException ex) {
+          value = null;
+        }
+      }
+      values[i] = value;
+    }
+    entry.params = redact(sql, values);
+
+    try {
+      planner.execute(() -> {
+        entry.plan = explain(sql, values);
+        add(entry);
+      });
+    } catch (java.util.concurrent.RejectedExecutionException ex) {
+      add(entry);
+    }
+  }
+
+  /**
+   * Returns the captured slow queries, latest first.
+   *
+   * @return
+   */
+  public synchronized List<SlowQueryData> getEntries() {
+    List<SlowQueryData> result = new ArrayList<>();
+    for (long i = written - 1; (i >= 0) && (i >= written - CAPACITY); i--) {
+      result.add(entries[(int)(i % CAPACITY)]);
+    }
+
+    return result;
+  }
+
+  /**
+   * Removes all captured slow queries.
+   */
+  public synchronized void clear() {
+    Arrays.fill(entries, null);
+    written = 0;
+  }
+
+  private synchronized void add(SlowQueryData entry) {
+    entries[(int)(written % CAPACITY)] = entry;
+    written++;
+    logger.warn("Slow query " + entry.statement + " " + (entry.micros / 1000) + " ms, params " + entry.params
+            + "\n" + entry.sql + "\n" + entry.plan);
+  }
+
+  /**
+   * Reads the query plan with the bound parameters.
+   *
+   * @param sql
+   * @param values
+   * @return
+   */
+  private String explain(String sql, Object[] values) {
+    try (var dbc = conn.getConnection(); var stmt = dbc.prepareStatement("EXPLAIN (ANALYZE off) " + sql)) {
+      for (int i = 0; i < values.length; i++) {
+        if (values[i] instanceof ArrayParam array) {
+          stmt.setArray(i + 1, dbc.createArrayOf(array.baseType(), array.elements()));
+        } else {
+          stmt.setObject(i + 1, values[i]);
+        }
+      }
+
+      var plan = new StringBuilder();
+      var rows = stmt.executeQuery();
+      while (rows.next()) {
+        plan.append(rows.getString(1)).append('\n');
+      }
+      return plan.toString();
+    } catch (SQLException ex) {
+      logger.warn("Cannot explain slow query.", ex);
+      return "EXPLAIN failed: " + ex.getMessage();
+    }
+  }
+
+  /**
+   * Returns the printable parameters of the statement.
+   *
+   * @param sql
+   * @param values
+   * @return
+   */
+  private List<String> redact(String sql, Object[] values) {
+    return redact(paramColumns.computeIfAbsent(sql, SlowQueryLog::findParamColumns), values);
+  }
+
+  /**
+   * Returns the printable parameters, values of sensitive
+   * columns, text of unknown columns and mail addresses
+   * are redacted.
+   *
+   * @param columns parameter columns, see findParamColumns
+   * @param values
+   * @return
+   */
+  static List<String> redact(String[] columns, Object[] values) {
+    List<String> result = new ArrayList<>();
+    for (int i = 0; i < values.length; i++) {
+      var column = (i < columns.length) ? columns[i] : null;
+      var text = String.valueOf(values[i]);
+      boolean isSensitive = (column == null) ? (values[i] instanceof String) : SENSITIVE_COLUMNS.contains(column);
+      if (isSensitive || text.contains("@")) {
+        text = REDACTED;
+      } else if (text.length() > MAX_PARAM_LENGTH) {
+        text = text.substring(0, MAX_PARAM_LENGTH) + "...";
+      }
+      result.add(text);
+    }
+
+    return result;
+  }
+
+  /**
+   * Finds the column of each parameter of the statement.
+   *
+   * Known are the columns of single row inserts and of
+   * comparisons with a column, other parameters have no
+   * column.
+   *
+   * @param sql
+   * @return lower case column names, null if unknown
+   */
+  static String[] findParamColumns(String sql) {
+    List<String> result = new ArrayList<>();
+    var insert = INSERT_COLUMNS.matcher(sql);
+    String[] insertColumns = insert.find() ? insert.group(1).split(",") : null;
+    int valuesStart = (insertColumns != null) ? insert.end() : Integer.MAX_VALUE;
+
+    int insertParam = 0;
+    for (int i = sql.indexOf('?'); i >= 0; i = sql.indexOf('?', i + 1)) {
+      String column = null;
+      if ((i > valuesStart) && (insertParam < insertColumns.length)) {
+        column = insertColumns[insertParam++].trim();
+      } else {
+        var compared = COMPARED_COLUMN.matcher(sql.substring(0, i));
+        if (compared.find()) {
+          column = compared.group(1);
+        }
+      }
+      result.add((column == null) ? null : column.toLowerCase());
+    }
+
+    return result.toArray(String[]::new);
+  }
+}
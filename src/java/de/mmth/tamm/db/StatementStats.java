@@ -0,0 +1,222 @@
+/*
+ * (c) 2024 by Matthias Thiele
+ * GNU General Public License v3.0
+ */
+package de.mmth.tamm.db;
+
+import de.mmth.tamm.data.StatementStatsData;
+import de.mmth.tamm.utils.LatencyHistogram;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Execution statistics of the registered statements.
+ *
+ * The prepared statements are wrapped by a proxy which measures
+ * the latency of each execution and counts the rows and errors
+ * per statement name. Recording is lock-free, so it is always
+ * active.
+ *
+ * The row count is the update count of modifying statements and
+ * the number of rows read from the result set of queries.
+ *
+ * Executions exceeding the slow query threshold are passed to
+ * the slow query log, with the bound parameters.
+ *
+ * @author matthias
+ */
+public class StatementStats {
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+  private final SlowQueryLog slowQueries;
+
+  /**
+   * Statistics of one statement.
+   */
+  private static class Entry {
+    final LatencyHistogram latency = new LatencyHistogram();
+    final LongAdder rows = new LongAdder();
+    final LongAdder errors = new LongAdder();
+  }
+
+  /**
+   * Creates the statistics.
+   *
+   * @param slowQueries receives the slow statements
+   */
+  StatementStats(SlowQueryLog slowQueries) {
+    this.slowQueries = slowQueries;
+  }
+
+  /**
+   * Returns a statement handle which records the executions
+   * of the given statement.
+   *
+   * @param name table and statement name
+   * @param sql
+   * @param stmt
+   * @return
+   */
+  PreparedStatement wrap(String name, String sql, PreparedStatement stmt) {
+    var entry = entries.computeIfAbsent(name, key -> new Entry());
+    var handler = new StatementHandler(stmt, entry, name, sql, slowQueries.isEnabled() ? slowQueries : null);
+    return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+            new Class<?>[] {PreparedStatement.class}, handler);
+  }
+
+  /**
+   * Returns the statistics of all statements, the
+   * statements with the largest total time first.
+   *
+   * @return
+   */
+  public List<StatementStatsData> snapshot() {
+    List<StatementStatsData> result = new ArrayList<>();
+    entries.forEach((name, entry) -> {
+      var data = new StatementStatsData();
+      data.statement = name;
+      data.count = entry.latency.getCount();
+      data.errors = entry.errors.sum();
+      data.rows = entry.rows.sum();
+      data.totalMillis = entry.latency.getSum() / 1000;
+      data.mean = entry.latency.getMean();
+      data.p50 = entry.latency.getPercentile(50);
+      data.p90 = entry.latency.getPercentile(90);
+      data.p99 = entry.latency.getPercentile(99);
+      data.max = entry.latency.getMax();
+      result.add(data);
+    });
+
+    result.sort(Comparator.comparingLong((StatementStatsData data) -> data.totalMillis).reversed());
+    return result;
+  }
+
+  /**
+   * Clears the statistics of all statements.
+   */
+  public void reset() {
+    entries.clear();
+  }
+
+  /**
+   * Forwards all calls to the prepared statement and
+   * measures the execute calls.
+   *
+   * With slow query log, the parameters are recorded.
+   */
+  private static class StatementHandler implements InvocationHandler {
+    private final PreparedStatement stmt;
+    private final Entry entry;
+    private final String name;
+    private final String sql;
+    private final SlowQueryLog slowQueries;
+    private final List<Object> params = new ArrayList<>();
+
+    StatementHandler(PreparedStatement stmt, Entry entry, String name, String sql, SlowQueryLog slowQueries) {
+      this.stmt = stmt;
+      this.entry = entry;
+      this.name = name;
+      this.sql = sql;
+      this.slowQueries = slowQueries;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      if (!method.getName().startsWith("execute")) {
+        if (slowQueries != null) {
+          recordParam(method, args);
+        }
+        return forward(stmt, method, args);
+      }
+
+      long start = System.nanoTime();
+      Object result;
+      try {
+        result = forward(stmt, method, args);
+      } catch (Throwable ex) {
+        entry.errors.increment();
+        throw ex;
+      } finally {
+        long micros = (System.nanoTime() - start) / 1000;
+        entry.latency.record(micros);
+        if ((slowQueries != null) && slowQueries.isSlow(micros)) {
+          slowQueries.capture(name, sql, params, micros);
+        }
+      }
+
+      if (result instanceof ResultSet rows) {
+        return Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] {ResultSet.class}, new ResultSetHandler(rows, entry));
+      } else if (result instanceof Integer count) {
+        entry.rows.add(Math.max(0, count));
+      } else if (result instanceof Long count) {
+        entry.rows.add(Math.max(0, count));
+      } else if (result instanceof int[] counts) {
+        for (int count: counts) {
+          entry.rows.add((count == Statement.SUCCESS_NO_INFO) ? 1 : Math.max(0, count));
+        }
+      }
+
+      return result;
+    }
+
+    /**
+     * Keeps the value of a parameter setter.
+     *
+     * @param method
+     * @param args
+     */
+    private void recordParam(Method method, Object[] args) {
+      var methodName = method.getName();
+      if (methodName.equals("clearParameters")) {
+        params.clear();
+      } else if (methodName.startsWith("set") && (args != null) && (args.length >= 2) && (args[0] instanceof Integer index)) {
+        while (params.size() < index) {
+          params.add(null);
+        }
+        params.set(index - 1, methodName.equals("setNull") ? null : args[1]);
+      }
+    }
+  }
+
+  /**
+   * Forwards all calls to the result set and
+   * counts the rows.
+   */
+  private static class ResultSetHandler implements InvocationHandler {
+    private final ResultSet rows;
+    private final Entry entry;
+
+    ResultSetHandler(ResultSet rows, Entry entry) {
+      this.rows = rows;
+      this.entry = entry;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      var result = forward(rows, method, args);
+      if ((result == Boolean.TRUE) && method.getName().equals("next")) {
+        entry.rows.increment();
+      }
+
+      return result;
+    }
+  }
+
+  private static Object forward(Object target, Method method, Object[] args) throws Throwable {
+    try {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException ex) {
+      throw ex.getCause();
+    }
+  }
+}
@@ -6,10 +6,13 @@ package de.mmth.tamm.db;
 
 import de.mmth.tamm.TammError;
 import de.mmth.tamm.TammLogger;
+import de.mmth.tamm.data.FindData;
 import de.mmth.tamm.data.TaskData;
-import java.sql.ResultSet;
+import de.mmth.tamm.utils.IdGenerator;
+import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import org.apache.logging.log4j.Logger;
 
@@ -27,30 +30,114 @@ public class TaskTable extends DBTable {
     name V 100
     description V 2000
     creator I
-    createdate V 20
-    lastchanged V 20
+    createdate T
+    lastchanged T
     owner I
-    startdate V 20
-    nextduedate V 20
+    startdate D
+    nextduedate D
     interval V 2000
     """;
   
+  protected static final String MIGRATION_CONFIG = 
+    """
+    1 createdate T
+    1 lastchanged T
+    1 startdate D
+    1 nextduedate D
+    """;
+  
   protected static final String INDEX_CONFIG = 
     """
     create unique index if not exists ixtaskids on tasklist (lid);
-    create index if not exists ixduedate on tasklist (nextduedate);
+    drop index if exists ixduedate;
+    drop index if exists {[tablename]}_client_owner_due;
+    drop index if exists {[tablename]}_client_due;
+    create index if not exists {[tablename]}_client_owner_duekey on {[tablename]} (clientid, owner, coalesce(nextduedate, 'infinity'::date), coalesce(createdate, 'infinity'::timestamptz), lid);
+    create index if not exists {[tablename]}_client_duekey on {[tablename]} (clientid, coalesce(nextduedate, 'infinity'::date), coalesce(createdate, 'infinity'::timestamptz), lid);
+    drop index if exists {[tablename]}_client_lid;
+    drop index if exists {[tablename]}_client_changed;
+    create extension if not exists pg_trgm;
+    create index if not exists {[tablename]}_name_trgm on {[tablename]} using gin (name gin_trgm_ops);
+    create index if not exists {[tablename]}_description_trgm on {[tablename]} using gin (description gin_trgm_ops);
+    create index if not exists {[tablename]}_fulltext on {[tablename]} using gin (to_tsvector('simple', coalesce(name, '') || ' ' || coalesce(description, '')));
     """;
   
+  // must match the expression of the fulltext index.
+  private static final String SEARCH_VECTOR = "to_tsvector('simple', coalesce(name, '') || ' ' || coalesce(description, ''))";
+  private static final String SEARCH_QUERY = "websearch_to_tsquery('simple', ?)";
+  
+  // columns of the task list, the sort keys are needed for paging.
+  // missing dates are sorted last, must match the list and history indexes.
+  private static final String DUE_KEY = "coalesce(nextduedate, 'infinity'::date), coalesce(createdate, 'infinity'::timestamptz), lid";
+  private static final String DUE_CURSOR = "coalesce(CAST(? AS date), 'infinity'::date), coalesce(CAST(? AS timestamptz), 'infinity'::timestamptz), ?";
+  private static final String HISTORY_KEY = "coalesce(lastchanged, '-infinity'::timestamptz), coalesce(createdate, '-infinity'::timestamptz), lid";
+  private static final String HISTORY_ORDER = "coalesce(lastchanged, '-infinity'::timestamptz) desc, coalesce(createdate, '-infinity'::timestamptz) desc, lid desc";
+  private static final String HISTORY_CURSOR = "coalesce(CAST(? AS timestamptz), '-infinity'::timestamptz), coalesce(CAST(? AS timestamptz), '-infinity'::timestamptz), ?";
+  private static final String SUMMARY_COLUMNS = "lid, clientid, name, owner, createdate, lastchanged, nextduedate";
+  
+  private static final String UPDATE_TASK = "updateTask";
+  private static final String READ_TASK = "readTask";
+  protected static final int HISTORY_LIMIT = 100;
+  private static final String REMOVE_TASK = "removeTask";
+  private static final String MOVE_OWNER = "moveTasksOwner";
+  private static final String DELETE_OF_OWNER = "deleteTasksOfOwner";
+  
+  private RoleAssignmentTable assignments;
+  private IdGenerator idGenerator = new IdGenerator(0);
+  protected final RowMapping<TaskData> mapping = createMapping(TaskData.class);
+  private final RowMapping<TaskData> summaryMapping = mapping.project(SUMMARY_COLUMNS);
+  
   public TaskTable(DBConnect conn, String tableName) {
-    super(conn, tableName, TABLE_CONFIG, INDEX_CONFIG);
+    this(conn, tableName, INDEX_CONFIG, "");
+  }
+  
+  /**
+   * Opens a task table with its own indexes, optionally
+   * partitioned by the given column.
+   * 
+   * @param conn
+   * @param tableName
+   * @param indexConfig
+   * @param partitionKey empty: unpartitioned table
+   */
+  protected TaskTable(DBConnect conn, String tableName, String indexConfig, String partitionKey) {
+    super(conn, tableName, TABLE_CONFIG, indexConfig, MIGRATION_CONFIG, partitionKey);
+    
+    registerStatement(UPDATE_TASK, "UPDATE " + tableName + " SET " + updateNames + " WHERE lid = ?");
+    registerStatement(READ_TASK, "SELECT " + selectNames + " FROM " + tableName + " WHERE clientId = ? and lid = ?");
+    registerStatement(REMOVE_TASK, "DELETE FROM " + tableName + " where lId = ?");
+    registerStatement(MOVE_OWNER, "UPDATE " + tableName + " set owner = ?, lastchanged = now() where owner = ? and clientid = ?");
+    registerStatement(DELETE_OF_OWNER, "DELETE FROM " + tableName + " where owner = ? and clientid = ?");
+    registerQueryVariants("listTasks");
+    registerQueryVariants("listHistory");
+    setIncremental("lastchanged", "lid", true);
+  }
+  
+  /**
+   * Sets the role assignments used to find the
+   * role tasks of an user.
+   * 
+   * @param assignments 
+   */
+  public void setAssignments(RoleAssignmentTable assignments) {
+    this.assignments = assignments;
+  }
+  
+  /**
+   * Sets the generator of new task ids.
+   * 
+   * @param idGenerator 
+   */
+  public void setIdGenerator(IdGenerator idGenerator) {
+    this.idGenerator = idGenerator;
   }
   
   /**
    * Write task data into database.
    * 
    * Create a new Task with task.lId == -1. The lId
-   * will be build from the nanoTime, this should
-   * be pretty random.
+   * is taken from the id generator, it is unique
+   * across all application instances.
    * 
    * @param task
    * @param insertAlways
@@ -58,31 +145,17 @@ public class TaskTable extends DBTable {
    * @throws TammError 
    */
   public long writeTask(TaskData task, boolean insertAlways) throws TammError {
-    String cmd;
-    if (task.lId == -1 || insertAlways) {
-      cmd = "INSERT INTO " + tableName + " (" + insertNames + ") values " + paramPlaceholders;
-      if (task.lId < 1) {
-        task.lId = System.nanoTime();
-      }
-    } else {
-      cmd = "UPDATE " + tableName + " SET " + updateNames + " WHERE lid = " + task.lId;
+    boolean isInsert = task.lId == -1 || insertAlways;
+    if (isInsert && task.lId < 1) {
+      task.lId = idGenerator.nextId();
     }
-    logger.debug("SQL: " + cmd);
     
     try {
-      try (var stmt = conn.getConnection().prepareStatement(cmd)) {
-        var col = 1;
-        stmt.setLong(col++, task.lId);
-        stmt.setInt(col++, task.clientId);
-        stmt.setString(col++, task.name);
-        stmt.setString(col++, task.description);
-        stmt.setInt(col++, task.creator);
-        stmt.setString(col++, task.createDate);
-        stmt.setString(col++, task.lastChanged);
-        stmt.setInt(col++, task.owner);
-        stmt.setString(col++, task.startDate);
-        stmt.setString(col++, task.nextDueDate);
-        stmt.setString(col++, task.interval);
+      try (var dbc = conn.getConnection(); var stmt = prepare(dbc, isInsert ? INSERT : UPDATE_TASK)) {
+        var col = mapping.bind(stmt, task);
+        if (!isInsert) {
+          stmt.setLong(col, task.lId);
+        }
 
         stmt.execute();
       }
@@ -104,11 +177,9 @@ public class TaskTable extends DBTable {
    */
   public TaskData readTask(int clientId, long byId) throws TammError {
     TaskData result = null;
-    var cmd = "SELECT " + this.selectNames + " FROM " + tableName + " WHERE clientId = ? and lid = ?";
-    logger.debug("SQL: " + cmd);
     
     try {
-      try (var stmt = conn.getConnection().prepareStatement(cmd)) {
+      try (var dbc = conn.getConnection(); var stmt = prepare(dbc, READ_TASK)) {
         stmt.setInt(1, clientId);
         stmt.setLong(2, byId);
          
@@ -118,7 +189,7 @@ public class TaskTable extends DBTable {
           throw new TammError("Task not found.");
         }
         
-        result = getData(taskRows);
+        result = mapping.map(taskRows);
       }
     } catch (SQLException ex) {
       logger.warn("Error writing user data.", ex);
@@ -140,64 +211,131 @@ public class TaskTable extends DBTable {
    * @throws TammError 
    */
   public List<TaskData> listTasks(int clientId, int ownerId, String filter, boolean withRoleTasks) throws TammError {
-    boolean hasId = ownerId != -1;
-    boolean hasFilter = filter != null;
-    
+    return listTasks(clientId, ownerId, filter, withRoleTasks, null);
+  }
+  
+  /**
+   * Returns one page of the tasks of the given user matching the filter.
+   * 
+   * The list is ordered by nextduedate, createdate and lid, missing
+   * dates last. The next page starts after the values of the last
+   * row of the previous page (afterKey, afterKey2 and afterId of FindData).
+   * 
+   * With the fullText flag of FindData, the filter is a search
+   * text for name and description. The result is ordered by
+   * rank and only limited to the page size, there is no next page.
+   * 
+   * With the summary flag of FindData, only the list columns are
+   * read. Description and interval stay empty, the complete task
+   * is read by readTask.
+   * 
+   * @param clientId
+   * @param ownerId optional, -1: all tasks of all users
+   * @param filter optional null: no filter
+   * @param withRoleTasks
+   * @param page optional null: complete list
+   * @return
+   * @throws TammError 
+   */
+  public List<TaskData> listTasks(int clientId, int ownerId, String filter, boolean withRoleTasks, FindData page) throws TammError {
     List<TaskData> result = new ArrayList<>();
-    
-    var cmd = "SELECT " + this.selectNames + " FROM " + tableName + " WHERE clientid = ? ";
-    
-    if (hasId || hasFilter) {
-      cmd += " AND ";
+    try {
+      queryTasks(clientId, ownerId, filter, withRoleTasks, page, result::add);
+    } catch (SQLException | IOException ex) {
+      logger.warn("Error reading task list.", ex);
+      throw new TammError("Error reading task list.");
     }
-    
-    if (hasId) {
-      if (withRoleTasks) {
-        cmd += " owner in ( select ? union select roleid from roleassignments r  where r.userid = ? )";
-      } else {
-        cmd += "owner = ? ";
-      }
-      if (hasFilter) {
-        cmd += "AND ";
-      }
+    return result;
+  }
+  
+  /**
+   * Passes the tasks of the given user matching the filter to the handler.
+   * 
+   * Same as listTasks but without collecting the rows.
+   * 
+   * @param clientId
+   * @param ownerId optional, -1: all tasks of all users
+   * @param filter optional null: no filter
+   * @param withRoleTasks
+   * @param page optional null: complete list
+   * @param handler
+   * @throws TammError
+   * @throws IOException 
+   */
+  public void streamTasks(int clientId, int ownerId, String filter, boolean withRoleTasks, FindData page, RowHandler<TaskData> handler) throws TammError, IOException {
+    try {
+      queryTasks(clientId, ownerId, filter, withRoleTasks, page, handler);
+    } catch (SQLException ex) {
+      logger.warn("Error reading task list.", ex);
+      throw new TammError("Error reading task list.");
     }
+  }
+  
+  /**
+   * Executes the task list query.
+   * 
+   * @param clientId
+   * @param ownerId
+   * @param filter
+   * @param withRoleTasks
+   * @param page
+   * @param handler
+   * @throws TammError
+   * @throws SQLException
+   * @throws IOException 
+   */
+  private void queryTasks(int clientId, int ownerId, String filter, boolean withRoleTasks, FindData page, RowHandler<TaskData> handler) throws TammError, SQLException, IOException {
+    boolean hasId = ownerId != -1;
+    boolean fullText = (filter != null) && (page != null) && page.fullText;
+    boolean hasFilter = (filter != null) && !fullText;
+    boolean hasCursor = hasCursor(page) && !fullText;
+    boolean hasLimit = hasLimit(page);
+    var rowMapping = ((page != null) && page.summary) ? summaryMapping : mapping;
     
-    if (hasFilter) {
-      cmd += "( name ILIKE ? ) ";
+    var variant = "listTasks" + (hasId ? (withRoleTasks ? "R" : "O") : "") + (hasFilter ? "F" : "") 
+            + (fullText ? "T" : "") + (hasCursor ? "S" : "") + (hasLimit ? "L" : "") + ((rowMapping == summaryMapping) ? "M" : "");
+    // the role assignments may be read from the database, resolve them
+    // before borrowing the connection of the list query.
+    Integer[] owners = null;
+    if (hasId && withRoleTasks) {
+      owners = (assignments == null) ? new Integer[] {ownerId} : Arrays.stream(assignments.getEffectiveOwners(ownerId)).boxed().toArray(Integer[]::new);
     }
     
-    cmd += " ORDER BY nextduedate, createdate";
-    
-    logger.debug("SQL: " + cmd);
-    
-    try {
-      try (var stmt = conn.getConnection().prepareStatement(cmd)) {
-        int paramCol = 1;
-        stmt.setInt(paramCol++, clientId);
-        
-        if (hasId) {
+    try (var dbc = connect(variant); var stmt = prepare(dbc, variant, () -> buildListCmd(rowMapping.getSelectNames(), hasId, hasFilter, fullText, withRoleTasks, hasCursor, hasLimit))) {
+      int paramCol = 1;
+      stmt.setInt(paramCol++, clientId);
+      
+      if (hasId) {
+        if (withRoleTasks) {
+          stmt.setArray(paramCol++, dbc.createArrayOf("integer", owners));
+        } else {
           stmt.setInt(paramCol++, ownerId);
-          if (withRoleTasks) {
-            stmt.setInt(paramCol++, ownerId);
-          }
-        }
-        
-        if (hasFilter) {
-          stmt.setString(paramCol++, filter);
-        }
-        
-        var taskRows = stmt.executeQuery();
-        while (taskRows.next()) {
-          var task = getData(taskRows);
-          logger.debug("Task found: " + task.name);
-          result.add(task);
         }
       }
-    } catch (SQLException ex) {
-      logger.warn("Error reading task list.", ex);
-      throw new TammError("Error reading task list.");
+      
+      if (hasFilter) {
+        stmt.setString(paramCol++, filter);
+      }
+      
+      if (fullText) {
+        // the web page adds SQL wildcards to the filter text.
+        var searchText = filter.replace("%", " ").trim();
+        stmt.setString(paramCol++, searchText);
+        stmt.setString(paramCol++, searchText);
+      }
+      
+      if (hasCursor) {
+        setDate(stmt, paramCol++, page.afterKey);
+        setTimestamp(stmt, paramCol++, page.afterKey2);
+        stmt.setLong(paramCol++, page.afterId);
+      }
+      
+      if (hasLimit) {
+        stmt.setInt(paramCol++, page.pageSize);
+      }
+      
+      readRows(dbc, stmt, rowMapping::map, handler);
     }
-    return result;
   }
   
   /**
@@ -209,65 +347,161 @@ public class TaskTable extends DBTable {
    * @throws TammError 
    */
   public List<TaskData> listTasks(int clientId, long taskId) throws TammError {
+    return listTasks(clientId, taskId, null);
+  }
+  
+  /**
+   * Read one page of the task history list of the given task.
+   * 
+   * The list is ordered by lastchanged, createdate and lid descending,
+   * missing dates last.
+   * The next page starts after the values of the last row of the
+   * previous page (afterKey, afterKey2 and afterId of FindData).
+   * Without paging, only the latest 100 entries are returned.
+   * 
+   * @param clientId
+   * @param taskId optional -1: history of all tasks
+   * @param page optional null: latest entries
+   * @return
+   * @throws TammError 
+   */
+  public List<TaskData> listTasks(int clientId, long taskId, FindData page) throws TammError {
     List<TaskData> result = new ArrayList<>();
-    
-    var cmd = "SELECT " + this.selectNames + " FROM " + tableName + " WHERE clientid = ? ";
-    if (taskId > 0) {
-      cmd += "AND lid = ? ";
+    try {
+      queryHistory(clientId, taskId, page, result::add);
+    } catch (SQLException | IOException ex) {
+      logger.warn("Error reading task list.", ex);
+      throw new TammError("Error reading task list.");
     }
-    
-    cmd += "ORDER BY lastchanged desc, createdate LIMIT 100";
-    
-    logger.debug("SQL: " + cmd);
-    
+    return result;
+  }
+  
+  /**
+   * Passes one page of the task history list to the handler.
+   * 
+   * Same as listTasks but without collecting the rows.
+   * 
+   * @param clientId
+   * @param taskId optional -1: history of all tasks
+   * @param page optional null: latest entries
+   * @param handler
+   * @throws TammError
+   * @throws IOException 
+   */
+  public void streamTasks(int clientId, long taskId, FindData page, RowHandler<TaskData> handler) throws TammError, IOException {
     try {
-      try (var stmt = conn.getConnection().prepareStatement(cmd)) {
-        int paramCol = 1;
-        stmt.setInt(paramCol++, clientId);
-        if (taskId > 0) {
-          stmt.setLong(paramCol++, taskId);
-        }
-        
-        var taskRows = stmt.executeQuery();
-        while (taskRows.next()) {
-          var task = getData(taskRows);
-          logger.debug("Task found: " + task.startDate);
-          result.add(task);
-        }
-      }
+      queryHistory(clientId, taskId, page, handler);
     } catch (SQLException ex) {
       logger.warn("Error reading task list.", ex);
       throw new TammError("Error reading task list.");
     }
-    return result;
   }
   
   /**
-   * Copies the ResultSet task data into an TaskData object.
+   * Executes the history list query.
    * 
-   * @param taskRows
-   * @return
-   * @throws SQLException 
+   * @param clientId
+   * @param taskId
+   * @param page
+   * @param handler
+   * @throws SQLException
+   * @throws IOException 
    */
-  private TaskData getData(ResultSet taskRows) throws SQLException {
-    var result = new TaskData();
+  protected void queryHistory(int clientId, long taskId, FindData page, RowHandler<TaskData> handler) throws SQLException, IOException {
+    boolean hasTask = taskId > 0;
+    boolean hasCursor = hasCursor(page);
     
-    int col = 1;
-    result.lId = taskRows.getLong(col++);
-    result.clientId = taskRows.getInt(col++);
-    result.name = taskRows.getString(col++);
-    result.description = taskRows.getString(col++);
-    result.creator = taskRows.getInt(col++);
-    result.createDate = taskRows.getString(col++);
-    result.lastChanged = taskRows.getString(col++);
-    result.owner = taskRows.getInt(col++);
-    result.startDate = taskRows.getString(col++);
-    result.nextDueDate = taskRows.getString(col++);
-    result.interval = taskRows.getString(col++);
+    var variant = "listHistory" + (hasTask ? "T" : "") + (hasCursor ? "S" : "");
+    try (var dbc = connect(variant); var stmt = prepare(dbc, variant, () -> buildHistoryCmd(hasTask, hasCursor))) {
+      int paramCol = 1;
+      stmt.setInt(paramCol++, clientId);
+      if (hasTask) {
+        stmt.setLong(paramCol++, taskId);
+      }
+      
+      if (hasCursor) {
+        setTimestamp(stmt, paramCol++, page.afterKey);
+        setTimestamp(stmt, paramCol++, page.afterKey);
+        setTimestamp(stmt, paramCol++, page.afterKey2);
+        stmt.setLong(paramCol++, page.afterId);
+      }
+      
+      stmt.setInt(paramCol++, hasLimit(page) ? page.pageSize : HISTORY_LIMIT);
+      
+      readRows(dbc, stmt, mapping::map, handler);
+    }
+  }
+  
+  /**
+   * Builds the SQL text of a task list query variant.
+   * 
+   * @param columns select list
+   * @param hasId
+   * @param hasFilter
+   * @param fullText
+   * @param withRoleTasks
+   * @param hasCursor
+   * @param hasLimit
+   * @return 
+   */
+  private String buildListCmd(String columns, boolean hasId, boolean hasFilter, boolean fullText, boolean withRoleTasks, boolean hasCursor, boolean hasLimit) {
+    var cmd = "SELECT " + columns + " FROM " + tableName + " WHERE clientid = ? ";
     
-    return result;
+    if (hasId) {
+      if (withRoleTasks) {
+        cmd += " AND owner = ANY(?) ";
+      } else {
+        cmd += " AND owner = ? ";
+      }
+    }
+    
+    if (hasFilter) {
+      cmd += " AND ( name ILIKE ? ) ";
+    }
+    
+    if (fullText) {
+      cmd += " AND " + SEARCH_VECTOR + " @@ " + SEARCH_QUERY;
+    }
+    
+    if (hasCursor) {
+      cmd += " AND (" + DUE_KEY + ") > (" + DUE_CURSOR + ") ";
+    }
+    
+    if (fullText) {
+      cmd += " ORDER BY ts_rank(" + SEARCH_VECTOR + ", " + SEARCH_QUERY + ") desc, " + DUE_KEY;
+    } else {
+      cmd += " ORDER BY " + DUE_KEY;
+    }
+    if (hasLimit) {
+      cmd += " LIMIT ?";
+    }
+    
+    return cmd;
   }
-
+  
+  /**
+   * Builds the SQL text of a history list query variant.
+   * 
+   * @param hasTask
+   * @param hasCursor
+   * @return 
+   */
+  private String buildHistoryCmd(boolean hasTask, boolean hasCursor) {
+    var cmd = "SELECT " + this.selectNames + " FROM " + tableName + " WHERE clientid = ? ";
+    
+    if (hasTask) {
+      cmd += " AND lid = ? ";
+    }
+    
+    if (hasCursor) {
+      // the plain column condition allows partition pruning.
+      cmd += " AND (lastchanged <= ? OR lastchanged IS NULL) AND (" + HISTORY_KEY + ") < (" + HISTORY_CURSOR + ") ";
+    }
+    
+    cmd += " ORDER BY " + HISTORY_ORDER + " LIMIT ?";
+    return cmd;
+  }
+  
   /**
    * Removes task from database.
    * 
@@ -278,12 +512,8 @@ public class TaskTable extends DBTable {
    * @throws TammError 
    */
   public void removeTask(TaskData taskData) throws TammError {
-    String cmd;
-    cmd = "DELETE FROM " + tableName + " where lId = ?";
-    logger.debug("SQL: " + cmd);
-    
     try {
-      try (var stmt = conn.getConnection().prepareStatement(cmd)) {
+      try (var dbc = conn.getConnection(); var stmt = prepare(dbc, REMOVE_TASK)) {
         var col = 1;
         stmt.setLong(col++, taskData.lId);
 
@@ -298,7 +528,8 @@ public class TaskTable extends DBTable {
   /**
    * Move all tasks of oldOwnerId to newOwnerId.
    * 
-   * newOwnerId can be a role id.
+   * newOwnerId can be a role id. The change time is set, so
+   * the incremental backup contains the moved tasks.
    * 
    * @param clientId
    * @param oldOwnerId
@@ -307,13 +538,9 @@ public class TaskTable extends DBTable {
    * @throws TammError 
    */
   public int moveTasksOwner(int clientId, int oldOwnerId, int newOwnerId) throws TammError {
-    String cmd;
-    cmd = "UPDATE " + tableName + " set owner = ? where owner = ? and clientid = ?";
-    logger.debug("SQL: " + cmd);
-    
     int count = 0;
     try {
-      try (var stmt = conn.getConnection().prepareStatement(cmd)) {
+      try (var dbc = conn.getConnection(); var stmt = prepare(dbc, MOVE_OWNER)) {
         var col = 1;
         stmt.setInt(col++, newOwnerId);
         stmt.setInt(col++, oldOwnerId);
@@ -337,12 +564,8 @@ public class TaskTable extends DBTable {
    * @throws TammError 
    */
   public void deleteTasksOfOwner(int clientId, int id) throws TammError {
-    String cmd;
-    cmd = "DELETE FROM " + tableName + " where owner = ? and clientid = ?";
-    logger.debug("SQL: " + cmd);
-    
     try {
-      try (var stmt = conn.getConnection().prepareStatement(cmd)) {
+      try (var dbc = conn.getConnection(); var stmt = prepare(dbc, DELETE_OF_OWNER)) {
         var col = 1;
         stmt.setInt(col++, id);
         stmt.setInt(col++, clientId);
@@ -7,14 +7,22 @@ package de.mmth.tamm.db;
 
 import de.mmth.tamm.TammError;
 import de.mmth.tamm.TammLogger;
+import de.mmth.tamm.data.FindData;
 import de.mmth.tamm.data.KeyValue;
 import de.mmth.tamm.data.UserData;
 import de.mmth.tamm.utils.PasswordUtils;
-import java.sql.ResultSet;
+import de.mmth.tamm.utils.UserCache;
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.logging.log4j.Logger;
+import org.postgresql.copy.CopyManager;
 
 /**
  * Read/ Write access to the user table.
@@ -34,15 +42,42 @@ public final class UserTable extends DBTable {
     flags I
     supervisor I
     administrator I
-    lastlogin V 20
+    lastlogin T
+    """;
+  
+  protected static final String MIGRATION_CONFIG = 
+    """
+    1 lastlogin T
     """;
   
   protected static final String INDEX_CONFIG = 
     """
     create unique index if not exists ixuserids on {[tablename]} (id);
-    create index if not exists ixclientid on {[tablename]} (clientid);
+    drop index if exists ixclientid;
+    create index if not exists {[tablename]}_client_name on {[tablename]} (clientid, name, id);
+    create index if not exists {[tablename]}_client_mail on {[tablename]} (clientid, mail);
     """;
   
+  private static final String READ_BY_ID = "readUserById";
+  private static final String READ_BY_NAME = "readUserByName";
+  private static final String UPDATE_USER = "updateUser";
+  private static final String LAST_ID = "lastId";
+  private static final String UPDATE_LOGIN = "updateLoginDate";
+  private static final String DELETE_USER = "deleteUser";
+  private static final String LIST_NAMES = "listUserNames";
+  private static final String USER_COUNT = "userCount";
+  private static final int CACHE_SIZE = 2000;
+  private static final long CACHE_TIME_TO_LIVE = 10 * 60000;
+  
+  private final UserCache cache = new UserCache(CACHE_SIZE, CACHE_TIME_TO_LIVE);
+  // last login dates not yet written, key: client id and user id
+  private final Map<Long, String> pendingLogins = new ConcurrentHashMap<>();
+  private final RowMapping<UserData> mapping = createMapping(UserData.class)
+          .stringColumn("name", user -> user.name.trim(), (user, name) -> user.name = name)
+          .intColumn("flags", UserData::getFlags, UserData::setFlags)
+          .alias("supervisor", "supervisorId")
+          .alias("administrator", "administratorId");
+  
   /**
    * Open and create if needed the user table
    * 
@@ -50,7 +85,17 @@ public final class UserTable extends DBTable {
    * @param tableName 
    */
   public UserTable(DBConnect conn, String tableName) {
-    super(conn, tableName, TABLE_CONFIG, INDEX_CONFIG);
+    super(conn, tableName, TABLE_CONFIG, INDEX_CONFIG, MIGRATION_CONFIG);
+    
+    registerStatement(READ_BY_ID, "SELECT " + selectNames + " FROM " + tableName + " WHERE clientid = ? AND id = ?");
+    registerStatement(READ_BY_NAME, "SELECT " + selectNames + " FROM " + tableName + " WHERE clientid = ? AND (name = ? OR mail = ?)");
+    registerStatement(UPDATE_USER, "UPDATE " + tableName + " SET " + updateNames + " WHERE id = ?");
+    registerStatement(LAST_ID, "SELECT LASTVAL()");
+    registerStatement(UPDATE_LOGIN, "UPDATE " + tableName + " SET lastlogin = ? WHERE clientid = ? AND id = ?");
+    registerStatement(DELETE_USER, "DELETE FROM " + tableName + " where clientid = ? and id = ? ");
+    registerQuery(LIST_NAMES, "SELECT id, name FROM " + tableName + " WHERE clientid = ? ORDER BY name");
+    registerStatement(USER_COUNT, "SELECT count(*) FROM " + tableName + " WHERE clientid = ?");
+    registerQueryVariants("listUsers");
   }
   
   /**
@@ -78,6 +123,8 @@ public final class UserTable extends DBTable {
   /**
    * Read a user by id or by name or mail address.
    * 
+   * Users read by id are served from the user cache.
+   * 
    * @param clientId
    * @param byId ignored if other parameter is not null
    * @param byNameOrMail null if read by id
@@ -85,18 +132,17 @@ public final class UserTable extends DBTable {
    * @throws TammError 
    */
   public UserData readUser(int clientId, int byId, String byNameOrMail) throws TammError {
-    UserData result = null;
-    var cmd = "SELECT " + this.selectNames + " FROM " + tableName + " WHERE clientid = ? AND ";
-    
-    if (byNameOrMail != null) {
-      cmd += " (name = ? OR mail = ?)";
-    } else {
-      cmd += " id = ?";
+    if (byNameOrMail == null) {
+      var cached = cache.get(clientId, byId);
+      if (cached != null) {
+        return cached;
+      }
     }
-    logger.debug("SQL: " + cmd);
     
+    UserData result = null;
+    long cacheVersion = cache.getVersion();
     try {
-      try (var stmt = conn.getConnection().prepareStatement(cmd)) {
+      try (var dbc = conn.getConnection(); var stmt = prepare(dbc, (byNameOrMail == null) ? READ_BY_ID : READ_BY_NAME)) {
         stmt.setInt(1, clientId);
         if (byNameOrMail == null) {
           stmt.setInt(2, byId);
@@ -111,7 +157,12 @@ public final class UserTable extends DBTable {
           throw new TammError("User not found.");
         }
         
-        result = getData(userRows);
+        result = mapping.map(userRows);
+        var pendingLogin = pendingLogins.get(loginKey(clientId, result.id));
+        if (pendingLogin != null) {
+          result.lastLogin = pendingLogin;
+        }
+        cache.put(result, cacheVersion);
       }
     } catch (SQLException ex) {
       logger.warn("Error reading user data.", ex);
@@ -131,31 +182,21 @@ public final class UserTable extends DBTable {
    * @throws TammError 
    */
   public int writeUser(UserData user) throws TammError {
-    String cmd;
-    if (user.id == -1) {
-      cmd = "INSERT INTO " + tableName + " (" + insertNames + ") values " + paramPlaceholders;
-    } else {
-      cmd = "UPDATE " + tableName + " SET " + updateNames + " WHERE id = " + user.id;
-    }
-    logger.debug("SQL: " + cmd);
+    boolean isInsert = user.id == -1;
     
-    try {
-      try (var stmt = conn.getConnection().prepareStatement(cmd)) {
-        var col = 1;
-        stmt.setInt(col++, user.clientId);
-        stmt.setString(col++, user.name.trim());
-        stmt.setString(col++, user.pwd);
-        stmt.setString(col++, user.mail);
-        stmt.setInt(col++, user.getFlags());
-        stmt.setInt(col++, user.supervisorId);
-        stmt.setInt(col++, user.administratorId);
-        stmt.setString(col++, user.lastLogin);
+    try (var dbc = conn.getConnection()) {
+      try (var stmt = prepare(dbc, isInsert ? INSERT : UPDATE_USER)) {
+        var col = mapping.bind(stmt, user);
+        if (!isInsert) {
+          stmt.setInt(col, user.id);
+        }
 
         stmt.execute();
-        }
+      }
 
-      if (user.id == -1) {
-        try (var stmt = conn.getConnection().prepareStatement("SELECT LASTVAL()")) {
+      if (isInsert) {
+        // LASTVAL is session based, use the same connection as the insert.
+        try (var stmt = prepare(dbc, LAST_ID)) {
           var result = stmt.executeQuery();
           result.next();
           user.id = result.getInt(1);
@@ -164,6 +205,10 @@ public final class UserTable extends DBTable {
     } catch (SQLException ex) {
       logger.warn("Error writing user data.", ex);
       throw new TammError("Error writing user data.");
+    } finally {
+      if (!isInsert) {
+        cache.remove(user.clientId, user.id);
+      }
     }
     
     return user.id;
@@ -172,33 +217,55 @@ public final class UserTable extends DBTable {
   /**
    * Update last login date of the given user.
    * 
-   * Create a new User with user.id == -1
+   * The date is only buffered, the last date of each
+   * user is written by flushLoginDates.
    * 
    * @param clientId
    * @param userId
    * @param loginDate
-   * @throws TammError 
    */
-  public void updateLoginDate(int clientId, int userId, String loginDate) throws TammError {
-    String cmd;
-    cmd = "UPDATE " + tableName + " SET lastlogin = ? WHERE clientid = ? AND id = ?";
-    logger.debug("SQL: " + cmd);
+  public void updateLoginDate(int clientId, int userId, String loginDate) {
+    pendingLogins.put(loginKey(clientId, userId), loginDate);
+    cache.updateLoginDate(clientId, userId, loginDate);
+  }
+  
+  /**
+   * Writes the buffered last login dates in one batch.
+   * 
+   * Called regularly from the background worker and
+   * on shutdown.
+   */
+  public void flushLoginDates() {
+    if (pendingLogins.isEmpty()) {
+      return;
+    }
+    
+    var logins = new HashMap<Long, String>();
+    for (var key: pendingLogins.keySet()) {
+      var loginDate = pendingLogins.remove(key);
+      if (loginDate != null) {
+        logins.put(key, loginDate);
+      }
+    }
     
     try {
-      try (var stmt = conn.getConnection().prepareStatement(cmd)) {
+      writeBatch(UPDATE_LOGIN, logins.entrySet(), (stmt, login) -> {
         var col = 1;
-        stmt.setString(col++, loginDate);
-        stmt.setInt(col++, clientId);
-        stmt.setInt(col++, userId);
-        
-        stmt.execute();
-      }
+        setTimestamp(stmt, col++, login.getValue());
+        stmt.setInt(col++, (int)(login.getKey() >> 32));
+        stmt.setInt(col++, (int)(long)login.getKey());
+      });
     } catch (SQLException ex) {
-      logger.warn("Error updating login date.", ex);
-      throw new TammError("Error updating login date.");
+      logger.warn("Error updating login dates.", ex);
+      // keep the dates for the next try unless there are newer ones.
+      logins.forEach(pendingLogins::putIfAbsent);
     }
   }
   
+  private static long loginKey(int clientId, int userId) {
+    return ((long)clientId << 32) | (userId & 0xffffffffL);
+  }
+  
   /**
    * Deletes the given user from the users table.
    * 
@@ -207,12 +274,8 @@ public final class UserTable extends DBTable {
    * @throws TammError 
    */
   public void deleteUser(int clientId, int userId) throws TammError {
-    String cmd;
-    cmd = "DELETE FROM " + tableName + " where clientid = ? and id = ? ";
-    logger.debug("SQL: " + cmd);
-    
     try {
-      try (var stmt = conn.getConnection().prepareStatement(cmd)) {
+      try (var dbc = conn.getConnection(); var stmt = prepare(dbc, DELETE_USER)) {
         var col = 1;
         stmt.setInt(col++, clientId);
         stmt.setInt(col++, userId);
@@ -222,6 +285,8 @@ public final class UserTable extends DBTable {
     } catch (SQLException ex) {
       logger.warn("Error deleting user data.", ex);
       throw new TammError("Error deleting user data.");
+    } finally {
+      cache.remove(clientId, userId);
     }
   }
   
@@ -236,75 +301,151 @@ public final class UserTable extends DBTable {
    * @throws TammError 
    */
   public List<UserData> listUsers(int clientId, int administratorId, String filter, boolean onlyAdmins) throws TammError {
+    return listUsers(clientId, administratorId, filter, onlyAdmins, null);
+  }
+  
+  /**
+   * Returns one page of the user list.
+   * 
+   * The list is ordered by name and id. The next page starts
+   * after the name (afterKey) and id (afterId) of the last
+   * row of the previous page.
+   * 
+   * @param clientId
+   * @param administratorId
+   * @param filter
+   * @param onlyAdmins
+   * @param page optional null: complete list
+   * @return
+   * @throws TammError 
+   */
+  public List<UserData> listUsers(int clientId, int administratorId, String filter, boolean onlyAdmins, FindData page) throws TammError {
+    List<UserData> result = new ArrayList<>();
+    try {
+      queryUsers(clientId, administratorId, filter, onlyAdmins, page, result::add);
+    } catch (SQLException | IOException ex) {
+      logger.warn("Error reading user list.", ex);
+      throw new TammError("Error reading user list.");
+    }
+    return result;
+  }
+  
+  /**
+   * Passes one page of the user list to the handler.
+   * 
+   * Same as listUsers but without collecting the rows.
+   * 
+   * @param clientId
+   * @param administratorId
+   * @param filter
+   * @param onlyAdmins
+   * @param page optional null: complete list
+   * @param handler
+   * @throws TammError
+   * @throws IOException 
+   */
+  public void streamUsers(int clientId, int administratorId, String filter, boolean onlyAdmins, FindData page, RowHandler<UserData> handler) throws TammError, IOException {
+    try {
+      queryUsers(clientId, administratorId, filter, onlyAdmins, page, handler);
+    } catch (SQLException ex) {
+      logger.warn("Error reading user list.", ex);
+      throw new TammError("Error reading user list.");
+    }
+  }
+  
+  /**
+   * Executes the user list query.
+   * 
+   * @param clientId
+   * @param administratorId
+   * @param filter
+   * @param onlyAdmins
+   * @param page
+   * @param handler
+   * @throws SQLException
+   * @throws IOException 
+   */
+  private void queryUsers(int clientId, int administratorId, String filter, boolean onlyAdmins, FindData page, RowHandler<UserData> handler) throws SQLException, IOException {
     boolean hasClientId = clientId > 0;
     boolean hasId = administratorId > 0;
     boolean hasFilter = filter != null && !filter.isBlank();
+    boolean hasCursor = hasCursor(page);
+    boolean hasLimit = hasLimit(page);
     
-    List<UserData> result = new ArrayList<>();
-    
-    var cmd = "SELECT " + this.selectNames + " FROM " + tableName;
-    
-    if (hasClientId || hasId || hasFilter || onlyAdmins) {
-      cmd += " WHERE ";
+    var variant = "listUsers" + (hasClientId ? "C" : "") + (hasId ? "A" : "") + (hasFilter ? "F" : "") + (onlyAdmins ? "M" : "")
+            + (hasCursor ? "S" : "") + (hasLimit ? "L" : "");
+    try (var dbc = connect(variant); var stmt = prepare(dbc, variant, () -> buildListCmd(hasClientId, hasId, hasFilter, onlyAdmins, hasCursor, hasLimit))) {
+      int paramCol = 1;
+      if (hasClientId) {
+        stmt.setInt(paramCol++, clientId);
+      }
+      
+      if (hasId) {
+        stmt.setInt(paramCol++, administratorId);
+      }
+      
+      if (hasFilter) {
+        stmt.setString(paramCol++, filter);
+        stmt.setString(paramCol++, filter);
+      }
+      
+      if (hasCursor) {
+        stmt.setString(paramCol++, page.afterKey);
+        stmt.setInt(paramCol++, (int)page.afterId);
+      }
+      
+      if (hasLimit) {
+        stmt.setInt(paramCol++, page.pageSize);
+      }
+      
+      readRows(dbc, stmt, mapping::map, handler);
     }
-    
+  }
+  
+  /**
+   * Builds the SQL text of a user list query variant.
+   * 
+   * @param hasClientId
+   * @param hasId
+   * @param hasFilter
+   * @param onlyAdmins
+   * @param hasCursor
+   * @param hasLimit
+   * @return 
+   */
+  private String buildListCmd(boolean hasClientId, boolean hasId, boolean hasFilter, boolean onlyAdmins, boolean hasCursor, boolean hasLimit) {
+    List<String> conditions = new ArrayList<>();
     if (hasClientId) {
-      cmd += "clientid = ? ";
-      if (hasId || hasFilter || onlyAdmins) {
-        cmd += " AND ";
-      }
+      conditions.add("clientid = ?");
     }
     
     if (hasId) {
-      cmd += "administrator = ? ";
-      if (hasFilter || onlyAdmins) {
-        cmd += "AND ";
-      }
+      conditions.add("administrator = ?");
     }
     
     if (hasFilter) {
-      cmd += "( name ILIKE ? or mail ILIKE ? ) ";
-      if (onlyAdmins) {
-        cmd += "AND ";
-      }
+      conditions.add("( name ILIKE ? or mail ILIKE ? )");
     }
     
     if (onlyAdmins) {
-      cmd += " ((flags & 3) <> 0) ";
+      conditions.add("((flags & 3) <> 0)");
     }
     
-    cmd += " ORDER BY name";
+    if (hasCursor) {
+      conditions.add("(name, id) > (?, ?)");
+    }
     
-    logger.debug("SQL: " + cmd);
+    var cmd = "SELECT " + this.selectNames + " FROM " + tableName;
+    if (!conditions.isEmpty()) {
+      cmd += " WHERE " + String.join(" AND ", conditions);
+    }
     
-    try {
-      try (var stmt = conn.getConnection().prepareStatement(cmd)) {
-        int paramCol = 1;
-        if (hasClientId) {
-          stmt.setInt(paramCol++, clientId);
-        }
-        
-        if (hasId) {
-          stmt.setInt(paramCol++, administratorId);
-        }
-        
-        if (hasFilter) {
-          stmt.setString(paramCol++, filter);
-          stmt.setString(paramCol++, filter);
-        }
-        
-        var userRows = stmt.executeQuery();
-        while (userRows.next()) {
-          var user = getData(userRows);
-          logger.debug("User found: " + user.name);
-          result.add(user);
-        }
-      }
-    } catch (SQLException ex) {
-      logger.warn("Error reading user list.", ex);
-      throw new TammError("Error reading user list.");
+    cmd += " ORDER BY name, id";
+    if (hasLimit) {
+      cmd += " LIMIT ?";
     }
-    return result;
+    
+    return cmd;
   }
   
   /**
@@ -317,11 +458,8 @@ public final class UserTable extends DBTable {
   public List<KeyValue> listUserNames(int clientId) throws TammError {
     List<KeyValue> result = new ArrayList<>();
     
-    var cmd = "SELECT id, name FROM " + tableName + " WHERE clientid = ? ORDER BY name";
-    logger.debug("SQL: " + cmd);
-    
     try {
-      try (var stmt = conn.getConnection().prepareStatement(cmd)) {
+      try (var dbc = connect(LIST_NAMES); var stmt = prepare(dbc, LIST_NAMES)) {
         stmt.setInt(1, clientId);
         
         var userRows = stmt.executeQuery();
@@ -349,11 +487,8 @@ public final class UserTable extends DBTable {
   public int getUserCount(int clientId) throws TammError {
     int result = 0;
     
-    var cmd = "SELECT count(*) FROM " + tableName + " WHERE clientid = ?";
-    logger.debug("SQL: " + cmd);
-    
     try {
-      try (var stmt = conn.getConnection().prepareStatement(cmd)) {
+      try (var dbc = conn.getConnection(); var stmt = prepare(dbc, USER_COUNT)) {
         stmt.setInt(1, clientId);
         
         var userRows = stmt.executeQuery();
@@ -369,26 +504,12 @@ public final class UserTable extends DBTable {
     return result;
   }
   
-  /**
-   * Copies the ResultSet user data into an UserData object.
-   * 
-   * @param userRows
-   * @return
-   * @throws SQLException 
-   */
-  private UserData getData(ResultSet userRows) throws SQLException {
-    UserData result = new UserData();
-    
-    result.id = userRows.getInt(1);
-    result.clientId = userRows.getInt(2);
-    result.name = userRows.getString(3);
-    result.pwd = userRows.getString(4);
-    result.mail = userRows.getString(5);
-    result.setFlags(userRows.getInt(6));
-    result.supervisorId = userRows.getInt(7);
-    result.administratorId = userRows.getInt(8);
-    result.lastLogin = userRows.getString(9);
-    
-    return result;
+  @Override
+  public File restore(Connection dbc, CopyManager manager, File sourceDir) {
+    try {
+      return super.restore(dbc, manager, sourceDir);
+    } finally {
+      cache.clear();
+    }
   }
 }
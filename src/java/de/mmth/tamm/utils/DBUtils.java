@@ -30,7 +30,7 @@ public class DBUtils {
     cmd = "DELETE FROM " + attachmentTableName + " where lid in (SELECT lid FROM " + taskTableName + " where owner = ?)";
     
     try {
-      try (var stmt = conn.getConnection().prepareStatement(cmd)) {
+      try (var dbc = conn.getConnection(); var stmt = dbc.prepareStatement(cmd)) {
         var col = 1;
         stmt.setInt(col++, userId);
 
@@ -7,6 +7,8 @@ package de.mmth.tamm.utils;
 import java.text.SimpleDateFormat;
 import java.time.DateTimeException;
 import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.Date;
@@ -113,4 +115,26 @@ public class DateUtils {
     
     return LocalDate.of(year, month, day);
   }
+  
+  /**
+   * Converts an ISO date time String into a ZonedDateTime object.
+   * 
+   * Accepts the formatZ format and plain ISO dates (start of the
+   * day). The local time zone is used.
+   * 
+   * @param isoDateTime
+   * @return 
+   */
+  public static ZonedDateTime fromIsoTime(String isoDateTime) {
+    if ((isoDateTime == null) || ((isoDateTime.length() != 10) && (isoDateTime.length() < 19))) {
+      throw new DateTimeException("Invalid ISO date time length.");
+    }
+    
+    if (isoDateTime.length() == 10) {
+      return fromIso(isoDateTime).atStartOfDay(ZoneId.systemDefault());
+    }
+    
+    var localTime = LocalDateTime.parse(isoDateTime.substring(0, 19).replace(' ', 'T'), timeformatter);
+    return localTime.atZone(ZoneId.systemDefault());
+  }
 }
@@ -0,0 +1,260 @@
+/*
+ * (c) 2024 by Matthias Thiele
+ * GNU General Public License v3.0
+ */
+package de.mmth.tamm.utils;
+
+import com.google.gson.Gson;
+import de.mmth.tamm.TammLogger;
+import de.mmth.tamm.data.TaskData;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Append-only archive of old task history records.
+ *
+ * Each archive run writes one segment file. Inside a segment
+ * the records of a task are stored as a separate gzip member,
+ * so the history of a single task can be read without
+ * decompressing the whole segment. The index file of a
+ * segment contains one line per task:
+ * clientid lid offset length
+ *
+ * Segments are written into temporary files and renamed when
+ * complete, incomplete segments are never read.
+ *
+ * @author matthias
+ */
+public class HistoryArchive {
+  private static final Logger logger = TammLogger.prepareLogger(HistoryArchive.class);
+  private static final DateTimeFormatter SEGMENT_NAME = DateTimeFormatter.ofPattern("yyyyMMddHHmmssSSS");
+  private static final String SEGMENT_EXT = ".seg";
+  private static final String INDEX_EXT = ".idx";
+  private static final String TEMP_EXT = ".tmp";
+
+  private final File archiveDir;
+  private final Gson gson = new Gson();
+  private final Map<String, Map<String, long[]>> indexCache = new ConcurrentHashMap<>();
+
+  /**
+   * Opens the archive in the given directory.
+   *
+   * @param archiveDir
+   */
+  public HistoryArchive(File archiveDir) {
+    this.archiveDir = archiveDir;
+  }
+
+  /**
+   * Starts a new segment.
+   *
+   * The records must be appended ordered by client and task.
+   *
+   * @return
+   * @throws IOException
+   */
+  public SegmentWriter createSegment() throws IOException {
+    Files.createDirectories(archiveDir.toPath());
+    return new SegmentWriter("history-" + LocalDateTime.now().format(SEGMENT_NAME));
+  }
+
+  /**
+   * Reads all archived records of the given task.
+   *
+   * @param clientId
+   * @param lid
+   * @return records of all segments, unordered
+   * @throws IOException
+   */
+  public List<TaskData> readTask(int clientId, long lid) throws IOException {
+    List<TaskData> result = new ArrayList<>();
+    var indexFiles = archiveDir.listFiles((dir, name) -> name.endsWith(INDEX_EXT));
+    if (indexFiles == null) {
+      return result;
+    }
+
+    Arrays.sort(indexFiles);
+    String key = clientId + " " + lid;
+    for (var indexFile: indexFiles) {
+      var position = getIndex(indexFile).get(key);
+      if (position == null) {
+        continue;
+      }
+
+      String segmentName = indexFile.getName().replace(INDEX_EXT, SEGMENT_EXT);
+      byte[] member = new byte[(int)position[1]];
+      try (var segment = new RandomAccessFile(new File(archiveDir, segmentName), "r")) {
+        segment.seek(position[0]);
+        segment.readFully(member);
+      }
+
+      try (var reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(new ByteArrayInputStream(member)), StandardCharsets.UTF_8))) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          result.add(gson.fromJson(line, TaskData.class));
+        }
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Returns the index of a segment, the index files
+   * never change after the segment has been written.
+   *
+   * @param indexFile
+   * @return
+   * @throws IOException
+   */
+  private Map<String, long[]> getIndex(File indexFile) throws IOException {
+    var index = indexCache.get(indexFile.getName());
+    if (index != null) {
+      return index;
+    }
+
+    index = new HashMap<>();
+    for (var line: Files.readAllLines(indexFile.toPath(), StandardCharsets.UTF_8)) {
+      var parts = line.split(" ");
+      if (parts.length == 4) {
+        index.put(parts[0] + " " + parts[1], new long[] {Long.parseLong(parts[2]), Long.parseLong(parts[3])});
+      }
+    }
+
+    indexCache.put(indexFile.getName(), index);
+    return index;
+  }
+
+  /**
+   * Writes the records of one segment.
+   */
+  public class SegmentWriter implements Closeable {
+    private final File segmentFile;
+    private final File indexFile;
+    private final File segmentTemp;
+    private final File indexTemp;
+    private final FileOutputStream segment;
+    private final FileOutputStream indexStream;
+    private final Writer index;
+    private final ByteArrayOutputStream member = new ByteArrayOutputStream();
+    private Writer memberWriter;
+    private String currentKey;
+    private long offset = 0;
+    private int count = 0;
+    private boolean committed = false;
+
+    private SegmentWriter(String name) throws IOException {
+      segmentFile = new File(archiveDir, name + SEGMENT_EXT);
+      indexFile = new File(archiveDir, name + INDEX_EXT);
+      segmentTemp = new File(archiveDir, name + SEGMENT_EXT + TEMP_EXT);
+      indexTemp = new File(archiveDir, name + INDEX_EXT + TEMP_EXT);
+      segment = new FileOutputStream(segmentTemp);
+      indexStream = new FileOutputStream(indexTemp);
+      index = new OutputStreamWriter(indexStream, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Appends a record to the segment.
+     *
+     * @param task
+     * @throws IOException
+     */
+    public void append(TaskData task) throws IOException {
+      String key = task.clientId + " " + task.lId;
+      if (!key.equals(currentKey)) {
+        flushMember();
+        currentKey = key;
+        memberWriter = new OutputStreamWriter(new GZIPOutputStream(member), StandardCharsets.UTF_8);
+      }
+
+      memberWriter.write(gson.toJson(task));
+      memberWriter.write('\n');
+      count++;
+    }
+
+    /**
+     * Returns the number of appended records.
+     *
+     * @return
+     */
+    public int getCount() {
+      return count;
+    }
+
+    /**
+     * Writes the gzip member of the current task.
+     *
+     * @throws IOException
+     */
+    private void flushMember() throws IOException {
+      if (currentKey == null) {
+        return;
+      }
+
+      memberWriter.close();
+      member.writeTo(segment);
+      index.write(currentKey + " " + offset + " " + member.size() + "\n");
+      offset += member.size();
+      member.reset();
+      currentKey = null;
+    }
+
+    /**
+     * Completes the segment, it is visible to readers afterwards.
+     *
+     * @throws IOException
+     */
+    public void commit() throws IOException {
+      flushMember();
+      index.flush();
+      indexStream.getFD().sync();
+      segment.getFD().sync();
+      segment.close();
+      index.close();
+
+      Files.move(segmentTemp.toPath(), segmentFile.toPath());
+      Files.move(indexTemp.toPath(), indexFile.toPath());
+      committed = true;
+      logger.info("Archive segment " + segmentFile.getName() + " written with " + count + " records.");
+    }
+
+    /**
+     * Removes the temporary files of an uncommitted segment.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+      if (committed) {
+        return;
+      }
+
+      segment.close();
+      index.close();
+      Files.deleteIfExists(segmentTemp.toPath());
+      Files.deleteIfExists(indexTemp.toPath());
+    }
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * (c) 2024 by Matthias Thiele
+ * GNU General Public License v3.0
+ */
+package de.mmth.tamm.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generator of unique, time ordered 64 bit ids.
+ *
+ * Each id contains the milliseconds since 2024-01-01 (41 bits),
+ * the node id (10 bits) and a sequence number (12 bits). Ids of
+ * one node are strictly increasing, application instances with
+ * different node ids never create the same id. The node id must
+ * be unique among the running instances, this is not guaranteed
+ * for ids derived from the host name.
+ *
+ * If more than 4096 ids are requested within one millisecond or
+ * the system clock goes back, the generator continues with the
+ * following milliseconds, so the ids stay increasing.
+ *
+ * @author matthias
+ */
+public class IdGenerator {
+  public static final int MAX_NODE_ID = 1023;
+  private static final long EPOCH = 1704067200000L; // 2024-01-01T00:00:00Z
+  private static final int NODE_BITS = 10;
+  private static final int SEQUENCE_BITS = 12;
+  private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+  private final long node;
+  // milliseconds since epoch and sequence of the last id
+  private final AtomicLong last = new AtomicLong();
+
+  /**
+   * Creates a generator for the given node.
+   *
+   * @param nodeId 0 to 1023
+   */
+  public IdGenerator(int nodeId) {
+    if ((nodeId < 0) || (nodeId > MAX_NODE_ID)) {
+      throw new IllegalArgumentException("Node id out of range: " + nodeId);
+    }
+
+    this.node = (long)nodeId << SEQUENCE_BITS;
+  }
+
+  /**
+   * Returns the next id.
+   *
+   * @return
+   */
+  public long nextId() {
+    long now = (System.currentTimeMillis() - EPOCH) << SEQUENCE_BITS;
+    long next = last.accumulateAndGet(now, (previous, time) -> Math.max(previous + 1, time));
+    long time = next >>> SEQUENCE_BITS;
+    return (time << (NODE_BITS + SEQUENCE_BITS)) | node | (next & SEQUENCE_MASK);
+  }
+
+  /**
+   * Returns the node id of an id.
+   *
+   * @param id
+   * @return
+   */
+  public static int getNodeId(long id) {
+    return (int)((id >>> SEQUENCE_BITS) & MAX_NODE_ID);
+  }
+
+  /**
+   * Returns the creation time of an id.
+   *
+   * @param id
+   * @return epoch milliseconds
+   */
+  public static long getTime(long id) {
+    return (id >>> (NODE_BITS + SEQUENCE_BITS)) + EPOCH;
+  }
+
+  /**
+   * Derives a node id from the host name, used if no
+   * node id has been configured or assigned. Different
+   * hosts may get the same node id.
+   *
+   * @param hostName
+   * @return
+   */
+  public static int deriveNodeId(String hostName) {
+    return Math.floorMod(hostName.hashCode(), MAX_NODE_ID + 1);
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * (c) 2024 by Matthias Thiele
+ * GNU General Public License v3.0
+ */
+package de.mmth.tamm.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of latency values.
+ *
+ * The buckets grow exponentially, each power of two is split
+ * into 8 linear sub-buckets. So the percentiles have a
+ * precision of 12.5 percent for any value, independent of the
+ * value range. Recording only increments atomic counters and
+ * can be called from any thread.
+ *
+ * @author matthias
+ */
+public class LatencyHistogram {
+  private static final int SUB_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+  private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Adds a value to the histogram.
+   *
+   * @param value negative values are counted as 0
+   */
+  public void record(long value) {
+    value = Math.max(0, value);
+    counts.incrementAndGet(bucketIndex(value));
+    count.increment();
+    sum.add(value);
+    max.accumulateAndGet(value, Math::max);
+  }
+
+  /**
+   * Returns the number of recorded values.
+   *
+   * @return
+   */
+  public long getCount() {
+    return count.sum();
+  }
+
+  /**
+   * Returns the sum of all recorded values.
+   *
+   * @return
+   */
+  public long getSum() {
+    return sum.sum();
+  }
+
+  /**
+   * Returns the largest recorded value.
+   *
+   * @return
+   */
+  public long getMax() {
+    return max.get();
+  }
+
+  /**
+   * Returns the mean of the recorded values.
+   *
+   * @return 0 if empty
+   */
+  public long getMean() {
+    long n = getCount();
+    return (n == 0) ? 0 : getSum() / n;
+  }
+
+  /**
+   * Returns the value below or equal to which the given
+   * percentage of the recorded values falls.
+   *
+   * The result is the upper bound of the bucket, but not
+   * larger than the maximum value.
+   *
+   * @param percentile 0 to 100
+   * @return 0 if empty
+   */
+  public long getPercentile(double percentile) {
+    long total = 0;
+    long[] snapshot = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+
+    if (total == 0) {
+      return 0;
+    }
+
+    long rank = Math.max(1, (long)Math.ceil(total * Math.min(100, percentile) / 100.0));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        return Math.min(upperBound(i), getMax());
+      }
+    }
+
+    return getMax();
+  }
+
+  /**
+   * Clears all recorded values.
+   */
+  public void reset() {
+    for (int i = 0; i < BUCKETS; i++) {
+      counts.set(i, 0);
+    }
+    count.reset();
+    sum.reset();
+    max.set(0);
+  }
+
+  static int bucketIndex(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int)value;
+    }
+
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int)(value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+  }
+
+  static long upperBound(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+
+    int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+    long sub = index % SUB_BUCKETS;
+    int shift = exponent - SUB_BITS;
+    long lower = (SUB_BUCKETS + sub) << shift;
+    return lower + (1L << shift) - 1;
+  }
+}
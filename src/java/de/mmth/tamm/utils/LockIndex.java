@@ -0,0 +1,205 @@
+/*
+ * (c) 2024 by Matthias Thiele
+ * GNU General Public License v3.0
+ */
+package de.mmth.tamm.utils;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory index of the mail lock list.
+ *
+ * Locked addresses are kept in a hash map, locked domains
+ * (entries starting with "@") in a trie of the reversed
+ * domain labels. A domain lock also matches all subdomains,
+ * "@example.com" locks "user@mail.example.com".
+ *
+ * Hits on locked entries are counted in memory and written
+ * into the database in batches.
+ *
+ * A reload builds a new index and swaps it in at once, so
+ * lock checks never see a partially loaded index.
+ *
+ * @author matthias
+ */
+public class LockIndex {
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private Map<String, Integer> addresses = new HashMap<>();
+  private DomainNode domains = new DomainNode();
+  private final Map<String, AtomicInteger> hits = new ConcurrentHashMap<>();
+
+  /**
+   * Trie node of one domain label.
+   */
+  private static class DomainNode {
+    final Map<String, DomainNode> children = new HashMap<>();
+    int count = 0;
+  }
+
+  /**
+   * Adds a lock entry, an address or a domain.
+   *
+   * @param entry
+   */
+  public void add(String entry) {
+    lock.writeLock().lock();
+    try {
+      add(addresses, domains, entry);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Replaces all lock entries.
+   *
+   * The new index is built without lock and swapped in,
+   * the old entries stay valid until then.
+   *
+   * @param entries
+   */
+  public void replaceAll(Collection<String> entries) {
+    Map<String, Integer> newAddresses = new HashMap<>();
+    var newDomains = new DomainNode();
+    for (var entry: entries) {
+      add(newAddresses, newDomains, entry);
+    }
+
+    lock.writeLock().lock();
+    try {
+      addresses = newAddresses;
+      domains = newDomains;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Removes a lock entry. An entry added more than
+   * once stays locked until all are removed.
+   *
+   * @param entry
+   */
+  public void remove(String entry) {
+    entry = entry.toLowerCase();
+    lock.writeLock().lock();
+    try {
+      if (isDomain(entry)) {
+        var node = domains;
+        for (var label: reversedLabels(entry)) {
+          node = node.children.get(label);
+          if (node == null) {
+            return;
+          }
+        }
+        node.count = Math.max(0, node.count - 1);
+      } else {
+        addresses.computeIfPresent(entry, (key, count) -> (count > 1) ? count - 1 : null);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the lock entry matching the mail address.
+   *
+   * An address lock is preferred, otherwise the lock of
+   * the shortest matching domain is returned.
+   *
+   * @param mail
+   * @return lock entry or null if not locked
+   */
+  public String findLock(String mail) {
+    mail = mail.toLowerCase();
+    lock.readLock().lock();
+    try {
+      if (addresses.containsKey(mail)) {
+        return mail;
+      }
+
+      int pos = mail.indexOf('@');
+      var domain = (pos >= 0) ? mail.substring(pos) : "@" + mail;
+      var node = domains;
+      var match = new StringBuilder();
+      for (var label: reversedLabels(domain)) {
+        node = node.children.get(label);
+        if (node == null) {
+          return null;
+        }
+
+        match.insert(0, match.isEmpty() ? label : label + ".");
+        if (node.count > 0) {
+          return "@" + match;
+        }
+      }
+
+      return null;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Counts a hit on the given lock entry.
+   *
+   * @param entry
+   */
+  public void countHit(String entry) {
+    hits.computeIfAbsent(entry, e -> new AtomicInteger()).incrementAndGet();
+  }
+
+  /**
+   * Returns and resets the counted hits.
+   *
+   * The counters are kept and reset atomically, so no
+   * increment of a concurrent countHit is lost.
+   *
+   * @return map of lock entry and number of hits
+   */
+  public Map<String, Integer> drainHits() {
+    var result = new HashMap<String, Integer>();
+    hits.forEach((entry, counter) -> {
+      int count = counter.getAndSet(0);
+      if (count > 0) {
+        result.put(entry, count);
+      }
+    });
+
+    return result;
+  }
+
+  private static void add(Map<String, Integer> addresses, DomainNode domains, String entry) {
+    entry = entry.toLowerCase();
+    if (isDomain(entry)) {
+      var node = domains;
+      for (var label: reversedLabels(entry)) {
+        node = node.children.computeIfAbsent(label, l -> new DomainNode());
+      }
+      node.count++;
+    } else {
+      addresses.merge(entry, 1, Integer::sum);
+    }
+  }
+
+  private static boolean isDomain(String entry) {
+    return entry.startsWith("@");
+  }
+
+  private static String[] reversedLabels(String domain) {
+    var labels = domain.substring(1).split("\\.");
+    for (int i = 0, j = labels.length - 1; i < j; i++, j--) {
+      var label = labels[i];
+      labels[i] = labels[j];
+      labels[j] = label;
+    }
+
+    return labels;
+  }
+}
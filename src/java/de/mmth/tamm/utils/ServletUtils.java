@@ -5,6 +5,7 @@
 package de.mmth.tamm.utils;
 
 import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
 import de.mmth.tamm.ApplicationData;
 import de.mmth.tamm.TammError;
 import de.mmth.tamm.TammLogger;
@@ -12,7 +13,9 @@ import de.mmth.tamm.data.AttachmentData;
 import de.mmth.tamm.data.JsonResult;
 import de.mmth.tamm.data.KeyValue;
 import de.mmth.tamm.data.SessionData;
+import de.mmth.tamm.db.DBTable;
 import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import jakarta.servlet.http.HttpSession;
 import java.io.File;
 import java.io.IOException;
@@ -30,6 +33,16 @@ import java.util.Locale;
 public class ServletUtils {
   private static final org.apache.logging.log4j.Logger logger = TammLogger.prepareLogger(ServletUtils.class);
   
+  /**
+   * Produces the rows of a streamed list result.
+   * 
+   * @param <T> type of the row data
+   */
+  @FunctionalInterface
+  public interface RowSource<T> {
+    void stream(DBTable.RowHandler<T> handler) throws TammError, IOException;
+  }
+  
   /**
    * Extract the client IP address.
    * 
@@ -118,6 +131,82 @@ public class ServletUtils {
     }
   }
   
+  /**
+   * Streams a list as JSON result object to the OutputStream.
+   * 
+   * Each row is serialized as soon as it is read from the
+   * database. The data array is written before the result
+   * status, so an error while reading still ends with a
+   * valid result object with the error message.
+   * 
+   * @param <T>
+   * @param resultData
+   * @param nextPageOk
+   * @param nextPageError
+   * @param source
+   * @throws IOException 
+   */
+  public static <T> void streamResult(OutputStream resultData, String nextPageOk, String nextPageError, RowSource<T> source) throws IOException {
+    var gson = new Gson();
+    var writer = new JsonWriter(new OutputStreamWriter(resultData));
+    String message = "";
+    
+    writer.beginObject();
+    writer.name("data").beginArray();
+    try {
+      source.stream(row -> gson.toJson(row, row.getClass(), writer));
+    } catch (TammError ex) {
+      message = ex.getMessage();
+    }
+    writer.endArray();
+    
+    writer.name("result").value(message.isEmpty() ? "ok" : "error");
+    writer.name("message").value(message);
+    writer.name("nextPage").value(message.isEmpty() ? nextPageOk : nextPageError);
+    writer.endObject();
+    writer.close();
+  }
+  
+  /**
+   * Streams a list as plain JSON array to the OutputStream.
+   * 
+   * The array is started with the first row. If reading fails
+   * before, the TammError is passed to the caller and nothing
+   * has been written. Later errors end the array early.
+   * 
+   * @param <T>
+   * @param resultData
+   * @param gson
+   * @param source
+   * @throws IOException
+   * @throws TammError 
+   */
+  public static <T> void streamList(OutputStream resultData, Gson gson, RowSource<T> source) throws IOException, TammError {
+    var writer = new JsonWriter(new OutputStreamWriter(resultData));
+    var started = new boolean[1];
+    
+    try {
+      source.stream(row -> {
+        if (!started[0]) {
+          writer.beginArray();
+          started[0] = true;
+        }
+        gson.toJson(row, row.getClass(), writer);
+      });
+    } catch (TammError ex) {
+      if (!started[0]) {
+        throw ex;
+      }
+      logger.warn("List truncated after read error.", ex);
+    }
+    
+    if (!started[0]) {
+      writer.beginArray();
+    }
+    writer.endArray();
+    writer.close();
+  }
+  
   /**
    * Returns the session data object.
    * 
@@ -149,6 +238,10 @@ public class ServletUtils {
       }
     }  
 
+    if (application.db != null) {
+      application.db.bindSession(sd.lastWrite);
+    }
+    
     if (sd.user == null) {
       // check keep alive status
       var cookies = request.getCookies();
@@ -163,7 +256,6 @@ public class ServletUtils {
               sd.loginTime = DateUtils.formatZ(null); 
               sd.user.pwd = ""; // do not leak password hash to the outer world.
               application.users.updateLoginDate(sd.client.id, userId, sd.loginTime);
-              sd.myRoles = application.assignments.listRoleAssignments(userId);
               logger.info("Re-login via cookie of user " + userId);
             } catch (TammError ex) {
               logger.warn("Cannot read keep alive user " + userId, ex);
@@ -176,6 +268,37 @@ public class ServletUtils {
     return sd;
   }
 
+  /**
+   * Releases the session bound to the current thread
+   * by prepareSession, called at the end of each request.
+   * 
+   * @param application 
+   */
+  public static void releaseSession(ApplicationData application) {
+    if ((application != null) && (application.db != null)) {
+      application.db.bindSession(null);
+    }
+  }
+  
+  /**
+   * Aborts a binary response after an error.
+   * 
+   * If nothing has been sent yet, the response is replaced
+   * by an error status. Otherwise the response is closed, so
+   * no JSON result is appended to the partial content.
+   * 
+   * @param response
+   * @throws IOException 
+   */
+  public static void abortResponse(HttpServletResponse response) throws IOException {
+    if (!response.isCommitted()) {
+      response.reset();
+      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    } else {
+      response.getOutputStream().close();
+    }
+  }
+
   /**
    * Send result with error marker and link to error page.
    * 
@@ -221,19 +344,17 @@ public class ServletUtils {
    */
   public static String checkLocked(ApplicationData application, String mail, String lang) throws TammError {
     String message = null;
-    if (application.locks.checkLock(mail)) {
-      message = Txt.get(lang, "mail_locked");
-      application.locks.incrementLockCount(mail);
+    var lockEntry = application.locks.findLock(mail);
+    if (lockEntry != null) {
+      message = Txt.get(lang, lockEntry.startsWith("@") ? "mail_domain_locked" : "mail_locked");
+      application.locks.incrementLockCount(lockEntry);
     } else {
       String domain = mail;
       int pos = domain.indexOf('@');
       if (pos > 0) {
         domain = domain.substring(pos);
       }
-      if (application.locks.checkLock(domain)) {
-        message = Txt.get(lang, "mail_domain_locked");
-        application.locks.incrementLockCount(domain);
-      } else if (!application.mailCounter.checkMaySend(domain)) {
+      if (!application.mailCounter.checkMaySend(domain)) {
         message = Txt.get(lang, "total_mail_limit_reached");
       }
     }
@@ -247,7 +368,6 @@ public class ServletUtils {
       SessionData sd = (SessionData) session.getAttribute("TAMM");
       sd.user = null;
       sd.client = null;
-      sd.myRoles = null;
       sd.userNames = null;
       sd.roleNames = null;
       session.removeAttribute("TAMM");
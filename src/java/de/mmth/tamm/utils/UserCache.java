@@ -0,0 +1,165 @@
+/*
+ * (c) 2024 by Matthias Thiele
+ * GNU General Public License v3.0
+ */
+package de.mmth.tamm.utils;
+
+import de.mmth.tamm.data.UserData;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of user records by client and user id.
+ *
+ * The least recently used entry is removed if the cache is
+ * full, entries expire after the given time to live. The
+ * callers get a copy of the cached record, so changes of
+ * the returned object do not change the cache.
+ *
+ * Each removal increments the cache version. A record read
+ * from the database before a concurrent change is not stored
+ * if the version has changed in the meantime.
+ *
+ * @author matthias
+ */
+public class UserCache {
+  private final int maxSize;
+  private final long timeToLive;
+  private final Map<Long, Entry> cache;
+  private long version = 0;
+
+  /**
+   * Cache entry with its expiration time.
+   */
+  private static class Entry {
+    final UserData user;
+    final long expiration;
+
+    Entry(UserData user, long expiration) {
+      this.user = user;
+      this.expiration = expiration;
+    }
+  }
+
+  /**
+   * Creates an empty cache.
+   *
+   * @param maxSize max number of cached users
+   * @param timeToLive expiration time in milliseconds
+   */
+  public UserCache(int maxSize, long timeToLive) {
+    this.maxSize = maxSize;
+    this.timeToLive = timeToLive;
+    this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+        return size() > UserCache.this.maxSize;
+      }
+    };
+  }
+
+  /**
+   * Returns a copy of the cached user.
+   *
+   * @param clientId
+   * @param userId
+   * @return null if not cached or expired
+   */
+  public synchronized UserData get(int clientId, int userId) {
+    var key = key(clientId, userId);
+    var entry = cache.get(key);
+    if (entry == null) {
+      return null;
+    }
+
+    if (entry.expiration < System.currentTimeMillis()) {
+      cache.remove(key);
+      return null;
+    }
+
+    return copy(entry.user);
+  }
+
+  /**
+   * Returns the current cache version, must be read
+   * before the user is read from the database.
+   *
+   * @return
+   */
+  public synchronized long getVersion() {
+    return version;
+  }
+
+  /**
+   * Stores a copy of the user.
+   *
+   * @param user
+   * @param readVersion cache version before the user has been read
+   */
+  public synchronized void put(UserData user, long readVersion) {
+    if (readVersion == version) {
+      cache.put(key(user.clientId, user.id), new Entry(copy(user), System.currentTimeMillis() + timeToLive));
+    }
+  }
+
+  /**
+   * Changes the last login date of a cached user.
+   *
+   * @param clientId
+   * @param userId
+   * @param loginDate
+   */
+  public synchronized void updateLoginDate(int clientId, int userId, String loginDate) {
+    var entry = cache.get(key(clientId, userId));
+    if (entry != null) {
+      entry.user.lastLogin = loginDate;
+    }
+  }
+
+  /**
+   * Removes the user from the cache.
+   *
+   * @param clientId
+   * @param userId
+   */
+  public synchronized void remove(int clientId, int userId) {
+    version++;
+    cache.remove(key(clientId, userId));
+  }
+
+  /**
+   * Removes all users from the cache.
+   */
+  public synchronized void clear() {
+    version++;
+    cache.clear();
+  }
+
+  /**
+   * Returns the number of cached users.
+   *
+   * @return
+   */
+  public synchronized int size() {
+    return cache.size();
+  }
+
+  private static long key(int clientId, int userId) {
+    return ((long)clientId << 32) | (userId & 0xffffffffL);
+  }
+
+  private static UserData copy(UserData user) {
+    var result = new UserData();
+    result.id = user.id;
+    result.clientId = user.clientId;
+    result.name = user.name;
+    result.pwd = user.pwd;
+    result.mail = user.mail;
+    result.lastLogin = user.lastLogin;
+    result.mainAdmin = user.mainAdmin;
+    result.subAdmin = user.subAdmin;
+    result.supervisorId = user.supervisorId;
+    result.administratorId = user.administratorId;
+    return result;
+  }
+}
@@ -5,6 +5,7 @@
 package de.mmth.tamm.db;
 
 import de.mmth.tamm.data.AttachmentData;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 import org.junit.AfterClass;
@@ -92,4 +93,36 @@ public class AttachmentTableTest {
     assertEquals("The only one item should have been deleted.", 0, result5.size());
   }
   
+  /**
+   * Test of writeAttachments method, of class AttachmentTable.
+   * @throws java.lang.Exception
+   */
+  @Test
+  public void testWriteAttachmentsBatch() throws Exception {
+    System.out.println("Write attachment batch.");
+    int clientId = 98;
+    long taskId = 1234567891;
+    
+    AttachmentTable instance = new AttachmentTable(con, "testattachments");
+    
+    List<AttachmentData> batch = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      AttachmentData att = new AttachmentData();
+      att.clientId = clientId;
+      att.fileName = "batchfile" + i + ".something";
+      att.guid = UUID.randomUUID().toString();
+      att.taskId = taskId;
+      batch.add(att);
+    }
+    instance.writeAttachments(batch);
+    
+    List<AttachmentData> result = instance.listAttachments(clientId, taskId);
+    assertEquals("All items of the batch stored.", 3, result.size());
+    assertEquals("Ordered by file name", "batchfile0.something", result.get(0).fileName);
+    
+    for (var att: batch) {
+      instance.removeAttachment(att);
+    }
+  }
+  
 }
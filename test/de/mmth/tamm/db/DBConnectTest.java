@@ -5,6 +5,7 @@
 
 package de.mmth.tamm.db;
 
+import java.sql.SQLException;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import org.junit.Test;
@@ -18,7 +19,7 @@ import org.junit.Test;
 public class DBConnectTest {
   
   @Test
-  public void testDatabaseCreation() {
+  public void testDatabaseCreation() throws SQLException {
     DBConnect con = new DBConnect("jdbc:postgresql://localhost:5432/postgres", "test", "postgres", "postgres");
     assertTrue("Error creating/ connecting database", con.isValid());
     assertTrue("Error dropping database", con.dropDB());
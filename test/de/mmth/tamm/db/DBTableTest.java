@@ -69,5 +69,34 @@ public class DBTableTest {
     assertTrue(ixResult.next());
     assertEquals("1", ixResult.getString(1));
   }
+
+  /**
+   * The fingerprint of a verified table is stored, a changed
+   * definition is verified again on the next start.
+   * @throws SQLException 
+   */
+  @Test
+  public void testSchemaFingerprint() throws SQLException {
+    String tableDefinition = "col1 V 20\ncol2 I";
+    String check = "SELECT fingerprint FROM schemaversions WHERE tablename = 'fptable'";
+    new DBTable(con, "fptable", tableDefinition, "");
+    var result = DBHelper.readLine(con.getConnection(), check);
+    assertTrue("Fingerprint stored", result.next());
+    String fingerprint = result.getString(1);
+    assertNotNull(fingerprint);
+    
+    var restarted = new DBConnect("jdbc:postgresql://localhost:5432/postgres", "test", "postgres", "postgres");
+    try {
+      new DBTable(restarted, "fptable", tableDefinition + "\ncol3 I", "");
+      DBHelper.readLine(restarted.getConnection(), "select col3 from fptable");
+      // no exception - col3 exists
+      
+      result = DBHelper.readLine(restarted.getConnection(), check);
+      assertTrue(result.next());
+      assertNotEquals("Fingerprint changed", fingerprint, result.getString(1));
+    } finally {
+      restarted.close();
+    }
+  }
   
 }
@@ -0,0 +1,72 @@
+/*
+ * (c) 2024 by Matthias Thiele
+ * GNU General Public License v3.0
+ */
+package de.mmth.tamm.db;
+
+import de.mmth.tamm.data.FindData;
+import de.mmth.tamm.data.TaskData;
+import de.mmth.tamm.utils.DateUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author matthias
+ */
+public class HistoryTableTest {
+  
+  private static DBConnect con;
+  
+  @BeforeClass
+  public static void setUpClass() {
+    con = new DBConnect("jdbc:postgresql://localhost:5432/postgres", "test", "postgres", "postgres");
+  }
+  
+  @AfterClass
+  public static void tearDownClass() {
+    con.dropDB();
+    con.close();
+  }
+
+  /**
+   * Writes history records into current and old months
+   * and reads them back in pages.
+   * @throws java.lang.Exception
+   */
+  @Test
+  public void testPartitionedHistory() throws Exception {
+    System.out.println("partitioned history");
+    int clientId = 97;
+    HistoryTable instance = new HistoryTable(con, "testhistory");
+    
+    String[] changed = {DateUtils.formatZ(null), "2020-05-01T10:00:00", "2019-03-02T11:00:00"};
+    for (String lastChanged: changed) {
+      TaskData task = new TaskData();
+      task.lId = 4711;
+      task.clientId = clientId;
+      task.name = "History task";
+      task.createDate = "2019-01-01T08:00:00";
+      task.lastChanged = lastChanged;
+      task.nextDueDate = DateUtils.formatL(null);
+      instance.writeTask(task, true);
+    }
+    
+    assertEquals("All rows stored", changed.length, instance.getRowCount());
+    
+    FindData page = new FindData();
+    page.pageSize = 2;
+    var result = instance.listTasks(clientId, 4711, page);
+    assertEquals("First page", 2, result.size());
+    
+    var last = result.get(result.size() - 1);
+    page.afterKey = last.lastChanged;
+    page.afterKey2 = last.createDate;
+    page.afterId = last.lId;
+    result = instance.listTasks(clientId, 4711, page);
+    assertEquals("Second page with the oldest row", 1, result.size());
+    assertTrue("Oldest row", result.get(0).lastChanged.startsWith("2019-03-02"));
+  }
+}
@@ -5,7 +5,9 @@
 package de.mmth.tamm.db;
 
 import de.mmth.tamm.TammError;
+import de.mmth.tamm.data.FindData;
 import de.mmth.tamm.data.LockData;
+import java.util.ArrayList;
 import java.util.List;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
@@ -51,7 +53,7 @@ public class LockTableTest {
     LockTable instance = new LockTable(con, "testlocks");
     LockData lock = new LockData();
     lock.mailAddress = "someaddress@test.de";
-    lock.lockDate = "20240102";
+    lock.lockDate = "2024-01-02T10:11:12";
     lock.lockIP = "192.168.1.1";
     
     instance.writeLock(lock);
@@ -83,5 +85,41 @@ public class LockTableTest {
     assertEquals("No match for deleted item expected.", 0, result4.size());
   }
 
-  
+  /**
+   * Locks without date are listed last within their
+   * address and paging continues after them.
+   * @throws TammError
+   */
+  @Test
+  public void testListLocksPagedWithoutDate() throws TammError {
+    System.out.println("listLocks paged without date");
+    LockTable instance = new LockTable(con, "testlocks");
+    String[][] locks = {{"a@paged.de", "2024-01-02T10:11:12"}, {"a@paged.de", null}, {"b@paged.de", null}, {"c@paged.de", "2024-01-03T10:11:12"}};
+    for (var entry: locks) {
+      LockData lock = new LockData();
+      lock.mailAddress = entry[0];
+      lock.lockDate = entry[1];
+      lock.lockIP = "192.168.1.1";
+      instance.writeLock(lock);
+    }
+    
+    FindData page = new FindData();
+    page.pageSize = 1;
+    List<LockData> seen = new ArrayList<>();
+    List<LockData> result;
+    do {
+      result = instance.listLocks("%@paged.de", page);
+      if (!result.isEmpty()) {
+        var last = result.get(result.size() - 1);
+        page.afterKey = last.mailAddress;
+        page.afterKey2 = last.lockDate;
+        seen.addAll(result);
+      }
+    } while (result.size() == page.pageSize);
+    
+    assertEquals("All locks must be returned exactly once", locks.length, seen.size());
+    assertNotNull("Lock with date first", seen.get(0).lockDate);
+    assertNull("Lock without date last", seen.get(1).lockDate);
+    assertEquals("Lock without date followed by next address", "b@paged.de", seen.get(2).mailAddress);
+  }
 }
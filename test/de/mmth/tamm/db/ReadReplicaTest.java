@@ -0,0 +1,109 @@
+/*
+ * (c) 2024 by Matthias Thiele
+ * GNU General Public License v3.0
+ */
+package de.mmth.tamm.db;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the query routing to the read replica, no
+ * database is needed.
+ *
+ * @author matthias
+ */
+public class ReadReplicaTest {
+  private final TestPool primary = new TestPool("primary");
+  private final TestPool replica = new TestPool("replica");
+  private final DBConnect instance = new DBConnect(primary, replica);
+
+  /**
+   * Pool returning connection stubs named after the pool.
+   */
+  private static class TestPool extends ConnectionPool {
+    private final String name;
+    boolean fail = false;
+
+    TestPool(String name) {
+      super("jdbc:test", "", "", 0, 1);
+      this.name = name;
+    }
+
+    @Override
+    public Connection borrow() throws SQLException {
+      if (fail) {
+        throw new SQLException("Pool " + name + " not available.");
+      }
+
+      return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {Connection.class},
+              (proxy, method, args) -> method.getName().equals("toString") ? name : null);
+    }
+  }
+
+  @After
+  public void tearDown() {
+    instance.bindSession(null);
+  }
+
+  /**
+   * Threads without session always read from the primary.
+   *
+   * @throws SQLException
+   */
+  @Test
+  public void testUnboundThread() throws SQLException {
+    System.out.println("unboundThread");
+    assertEquals("No session", "primary", instance.getReadConnection().toString());
+    instance.markWrite();
+    assertEquals("Write without session", "primary", instance.getReadConnection().toString());
+  }
+
+  /**
+   * A session reads from the replica, but from the primary
+   * within the read your writes period after a write.
+   *
+   * @throws SQLException
+   */
+  @Test
+  public void testReadYourWrites() throws SQLException {
+    System.out.println("readYourWrites");
+    var lastWrite = new AtomicLong();
+    instance.bindSession(lastWrite);
+    assertEquals("Session without writes", "replica", instance.getReadConnection().toString());
+
+    instance.markWrite();
+    assertTrue("Write time set", lastWrite.get() > 0);
+    assertEquals("After write", "primary", instance.getReadConnection().toString());
+
+    lastWrite.set(System.currentTimeMillis() - DBConnect.READ_YOUR_WRITES_MILLIS - 1);
+    assertEquals("After read your writes period", "replica", instance.getReadConnection().toString());
+
+    instance.bindSession(null);
+    assertEquals("Session released", "primary", instance.getReadConnection().toString());
+  }
+
+  /**
+   * The primary is used if the replica is not available
+   * or not configured.
+   *
+   * @throws SQLException
+   */
+  @Test
+  public void testFallback() throws SQLException {
+    System.out.println("fallback");
+    instance.bindSession(new AtomicLong());
+    replica.fail = true;
+    assertEquals("Replica failed", "primary", instance.getReadConnection().toString());
+
+    var noReplica = new DBConnect(primary, null);
+    noReplica.bindSession(new AtomicLong());
+    assertEquals("No replica", "primary", noReplica.getReadConnection().toString());
+    noReplica.bindSession(null);
+  }
+}
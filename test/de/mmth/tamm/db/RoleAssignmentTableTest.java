@@ -78,4 +78,32 @@ public class RoleAssignmentTableTest {
     assertEquals("List has been cleared, should be empty.", 0, reread4.roles.length);
   }
 
+  
+  /**
+   * Test of getEffectiveOwners method, of class RoleAssignmentTable.
+   * @throws java.lang.Exception
+   */
+  @Test
+  public void testEffectiveOwners() throws Exception {
+    System.out.println("getEffectiveOwners");
+    RoleAssignmentTable instance = new RoleAssignmentTable(con, "testownerassignments");
+    
+    RoleAssignmentData roles = new RoleAssignmentData();
+    roles.user = 22345;
+    roles.roles = new int[] {200, 201};
+    instance.writeRoleAssignments(roles);
+    
+    var owners = instance.getEffectiveOwners(roles.user);
+    assertArrayEquals("User and roles", new int[] {22345, 200, 201}, owners);
+    assertTrue("Role owner", instance.isEffectiveOwner(roles.user, 201));
+    assertFalse("Foreign owner", instance.isEffectiveOwner(roles.user, 202));
+    
+    roles.roles = new int[] {202};
+    instance.writeRoleAssignments(roles);
+    assertTrue("Cache invalidated after write", instance.isEffectiveOwner(roles.user, 202));
+    assertFalse("Old role removed", instance.isEffectiveOwner(roles.user, 201));
+    
+    instance.clearRoleAssignments(202, false);
+    assertArrayEquals("Cache invalidated after role removal", new int[] {22345}, instance.getEffectiveOwners(roles.user));
+  }
 }
@@ -0,0 +1,127 @@
+/*
+ * (c) 2024 by Matthias Thiele
+ * GNU General Public License v3.0
+ */
+package de.mmth.tamm.db;
+
+import de.mmth.tamm.data.UserData;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.time.OffsetDateTime;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the row mapping without database, the ResultSet
+ * and PreparedStatement are simple proxies.
+ *
+ * @author matthias
+ */
+public class RowMappingTest {
+
+  private static RowMapping<UserData> createUserMapping() {
+    return new RowMapping<>(UserData.class, UserTable.TABLE_CONFIG)
+          .stringColumn("name", user -> user.name.trim(), (user, name) -> user.name = name)
+          .intColumn("flags", UserData::getFlags, UserData::setFlags)
+          .alias("supervisor", "supervisorId")
+          .alias("administrator", "administratorId");
+  }
+
+  /**
+   * Test of map method, of class RowMapping.
+   * @throws java.lang.Exception
+   */
+  @Test
+  public void testMap() throws Exception {
+    System.out.println("map");
+    Object[] values = {7, 1, "name", "pwd", "mail@test.de", 3, 4, 5, null};
+    var rows = (ResultSet) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {ResultSet.class},
+            (proxy, method, args) -> values[(int) args[0] - 1]);
+
+    var user = createUserMapping().map(rows);
+    assertEquals("id", 7, user.id);
+    assertEquals("clientId", 1, user.clientId);
+    assertEquals("name", "name", user.name);
+    assertEquals("pwd", "pwd", user.pwd);
+    assertEquals("mail", "mail@test.de", user.mail);
+    assertTrue("mainAdmin", user.mainAdmin);
+    assertTrue("subAdmin", user.subAdmin);
+    assertEquals("supervisor", 4, user.supervisorId);
+    assertEquals("administrator", 5, user.administratorId);
+    assertNull("lastLogin", user.lastLogin);
+  }
+
+  /**
+   * Test of bind method, of class RowMapping.
+   * @throws java.lang.Exception
+   */
+  @Test
+  public void testBind() throws Exception {
+    System.out.println("bind");
+    Map<Integer, Object> params = new HashMap<>();
+    var stmt = (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {PreparedStatement.class},
+            (proxy, method, args) -> params.put((int) args[0], method.getName().equals("setNull") ? null : args[1]));
+
+    var user = new UserData();
+    user.id = 7;
+    user.clientId = 1;
+    user.name = " name ";
+    user.mail = "mail@test.de";
+    user.mainAdmin = true;
+    user.supervisorId = 4;
+    user.administratorId = 5;
+    user.lastLogin = "2024-03-01T10:00:00Z";
+
+    int next = createUserMapping().bind(stmt, user);
+    assertEquals("Generated id is skipped", 9, next);
+    assertEquals("clientId", 1, params.get(1));
+    assertEquals("trimmed name", "name", params.get(2));
+    assertNull("pwd", params.get(3));
+    assertEquals("mail", "mail@test.de", params.get(4));
+    assertEquals("flags", user.getFlags(), params.get(5));
+    assertEquals("supervisor", 4, params.get(6));
+    assertEquals("administrator", 5, params.get(7));
+    assertTrue("lastLogin", params.get(8) instanceof OffsetDateTime);
+  }
+
+  /**
+   * Test of project method, of class RowMapping.
+   * @throws java.lang.Exception
+   */
+  @Test
+  public void testProject() throws Exception {
+    System.out.println("project");
+    var projection = createUserMapping().project("id, name, supervisor");
+    assertEquals("Select list", " id,name,supervisor ", projection.getSelectNames());
+
+    Object[] values = {7, "name", 4};
+    var rows = (ResultSet) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {ResultSet.class},
+            (proxy, method, args) -> values[(int) args[0] - 1]);
+    var user = projection.map(rows);
+    assertEquals("id", 7, user.id);
+    assertEquals("name", "name", user.name);
+    assertEquals("supervisor", 4, user.supervisorId);
+    assertNull("mail not selected", user.mail);
+  }
+
+  /**
+   * Columns without field are rejected on use.
+   * @throws java.lang.Exception
+   */
+  @Test
+  public void testUnmappedColumn() throws Exception {
+    System.out.println("unmappedColumn");
+    var mapping = new RowMapping<>(UserData.class, UserTable.TABLE_CONFIG);
+    var rows = (ResultSet) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {ResultSet.class},
+            (proxy, method, args) -> method.getReturnType() == int.class ? 0 : null);
+    try {
+      mapping.map(rows);
+      fail("Column flags has no field.");
+    } catch (IllegalStateException ex) {
+      // expected
+    }
+  }
+}
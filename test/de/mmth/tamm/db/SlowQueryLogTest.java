@@ -0,0 +1,49 @@
+/*
+ * (c) 2024 by Matthias Thiele
+ * GNU General Public License v3.0
+ */
+package de.mmth.tamm.db;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author matthias
+ */
+public class SlowQueryLogTest {
+
+  /**
+   * Test of findParamColumns method, of class SlowQueryLog.
+   */
+  @Test
+  public void testFindParamColumns() {
+    System.out.println("findParamColumns");
+    var columns = SlowQueryLog.findParamColumns("INSERT INTO userlist ( clientid,name,pwd,mail ) values (?,?,?,?) ");
+    assertArrayEquals("Insert columns", new String[] {"clientid", "name", "pwd", "mail"}, columns);
+
+    columns = SlowQueryLog.findParamColumns("UPDATE userlist SET  clientid=?,name=?,pwd=?  WHERE id = ?");
+    assertArrayEquals("Update columns", new String[] {"clientid", "name", "pwd", "id"}, columns);
+
+    columns = SlowQueryLog.findParamColumns("SELECT lid FROM tasklist WHERE clientid = ? AND owner = ANY(?) AND ( name ILIKE ? ) "
+            + "AND (nextduedate, createdate, lid) > (?, ?, ?) ORDER BY nextduedate LIMIT ?");
+    assertArrayEquals("Query columns", new String[] {"clientid", "owner", "name", null, null, null, null}, columns);
+  }
+
+  /**
+   * Test of redact method, of class SlowQueryLog.
+   */
+  @Test
+  public void testRedact() {
+    System.out.println("redact");
+    var columns = new String[] {"clientid", "name", "description", "owner", null, null};
+    var values = new Object[] {97, "Steuer", "Erklaerung abgeben", "info@example.com", "fenster garten", 4711L};
+    var result = SlowQueryLog.redact(columns, values);
+    assertEquals("Id kept", "97", result.get(0));
+    assertEquals("Name redacted", "***", result.get(1));
+    assertEquals("Description redacted", "***", result.get(2));
+    assertEquals("Mail address redacted", "***", result.get(3));
+    assertEquals("Text of unknown column redacted", "***", result.get(4));
+    assertEquals("Number of unknown column kept", "4711", result.get(5));
+  }
+}
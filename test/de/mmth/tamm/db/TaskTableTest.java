@@ -5,12 +5,22 @@
 package de.mmth.tamm.db;
 
 import de.mmth.tamm.TammError;
+import de.mmth.tamm.data.FindData;
 import de.mmth.tamm.data.TaskData;
 import de.mmth.tamm.utils.DateUtils;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.postgresql.copy.CopyManager;
+import org.postgresql.core.BaseConnection;
 import static org.junit.Assert.*;
 
 /**
@@ -59,8 +69,8 @@ public class TaskTableTest {
     task.lastChanged = DateUtils.formatZ(DateUtils.now().plusMinutes(2));
     task.creator = 123;
     ZonedDateTime dueDate = DateUtils.now().plusDays(1);
-    task.nextDueDate = DateUtils.formatZ(dueDate);
-    task.startDate = DateUtils.formatZ(DateUtils.now().plusDays(3));
+    task.nextDueDate = DateUtils.formatL(dueDate.toLocalDate());
+    task.startDate = DateUtils.formatL(DateUtils.now().plusDays(3).toLocalDate());
     task.owner = 456;
     task.interval = "single|1|2024-01-02";
     
@@ -117,5 +127,277 @@ public class TaskTableTest {
       // as expected
     }
   }
+  
+  /**
+   * Test of the paged listTasks method, of class TaskTable.
+   */
+  @Test
+  public void testListTasksPaged() throws Exception {
+    System.out.println("listTasks paged");
+    int clientId = 97;
+    int owner = 321;
+    
+    TaskTable instance = new TaskTable(con, "testtasks");
+    for (int i = 0; i < 5; i++) {
+      TaskData task = new TaskData();
+      task.lId = -1;
+      task.clientId = clientId;
+      task.name = "Paged task " + i;
+      task.createDate = DateUtils.formatZ(null);
+      task.lastChanged = task.createDate;
+      task.nextDueDate = DateUtils.formatL(DateUtils.now().plusDays(i).toLocalDate());
+      task.startDate = task.nextDueDate;
+      task.owner = owner;
+      task.interval = "single|1|2024-01-02";
+      instance.writeTask(task, false);
+    }
+    
+    FindData page = new FindData();
+    page.pageSize = 2;
+    List<TaskData> seen = new ArrayList<>();
+    List<TaskData> result;
+    do {
+      result = instance.listTasks(clientId, owner, null, false, page);
+      assertTrue("Page size exceeded", result.size() <= page.pageSize);
+      if (!result.isEmpty()) {
+        var last = result.get(result.size() - 1);
+        page.afterKey = last.nextDueDate;
+        page.afterKey2 = last.createDate;
+        page.afterId = last.lId;
+        seen.addAll(result);
+      }
+    } while (result.size() == page.pageSize);
+    
+    assertEquals("All tasks must be returned exactly once", 5, seen.size());
+    assertEquals("First page starts with the first due task", "Paged task 0", seen.get(0).name);
+    assertEquals("Last page ends with the last due task", "Paged task 4", seen.get(4).name);
+    
+    instance.deleteTasksOfOwner(clientId, owner);
+  }
+  
+  /**
+   * Tasks without due date are listed last and
+   * paging continues after them.
+   */
+  @Test
+  public void testListTasksPagedWithoutDate() throws Exception {
+    System.out.println("listTasks paged without date");
+    int clientId = 93;
+    int owner = 325;
+    
+    TaskTable instance = new TaskTable(con, "testtasks");
+    for (int i = 0; i < 5; i++) {
+      TaskData task = new TaskData();
+      task.lId = -1;
+      task.clientId = clientId;
+      task.name = "Paged task " + i;
+      task.createDate = DateUtils.formatZ(null);
+      task.lastChanged = task.createDate;
+      if (i < 3) {
+        task.nextDueDate = DateUtils.formatL(DateUtils.now().plusDays(i).toLocalDate());
+        task.startDate = task.nextDueDate;
+      }
+      task.owner = owner;
+      task.interval = "single|1|2024-01-02";
+      instance.writeTask(task, false);
+    }
+    
+    FindData page = new FindData();
+    page.pageSize = 2;
+    List<TaskData> seen = new ArrayList<>();
+    List<TaskData> result;
+    do {
+      result = instance.listTasks(clientId, owner, null, false, page);
+      if (!result.isEmpty()) {
+        var last = result.get(result.size() - 1);
+        page.afterKey = last.nextDueDate;
+        page.afterKey2 = last.createDate;
+        page.afterId = last.lId;
+        seen.addAll(result);
+      }
+    } while (result.size() == page.pageSize);
+    
+    assertEquals("All tasks must be returned exactly once", 5, seen.size());
+    assertEquals("Tasks with due date first", "Paged task 2", seen.get(2).name);
+    assertNull("Tasks without due date last", seen.get(3).nextDueDate);
+    assertNull("Tasks without due date last", seen.get(4).nextDueDate);
+    
+    instance.deleteTasksOfOwner(clientId, owner);
+  }
+  
+  /**
+   * The summary list contains the list columns only,
+   * readTask returns the complete task.
+   */
+  @Test
+  public void testListTasksSummary() throws Exception {
+    System.out.println("listTasks summary");
+    int clientId = 95;
+    int owner = 323;
+    
+    TaskTable instance = new TaskTable(con, "testtasks");
+    TaskData task = new TaskData();
+    task.lId = -1;
+    task.clientId = clientId;
+    task.name = "Summary task";
+    task.description = "Long description";
+    task.createDate = DateUtils.formatZ(null);
+    task.lastChanged = task.createDate;
+    task.nextDueDate = DateUtils.formatL(DateUtils.now().plusDays(1).toLocalDate());
+    task.startDate = task.nextDueDate;
+    task.owner = owner;
+    task.interval = "single|1|2024-01-02";
+    long lid = instance.writeTask(task, false);
+    
+    FindData page = new FindData();
+    page.summary = true;
+    List<TaskData> result = instance.listTasks(clientId, owner, null, false, page);
+    assertEquals("One task", 1, result.size());
+    var summary = result.get(0);
+    assertEquals("Task id", lid, summary.lId);
+    assertEquals("Task name", task.name, summary.name);
+    assertEquals("Task owner", owner, summary.owner);
+    assertEquals("Task due date", task.nextDueDate, summary.nextDueDate);
+    assertNull("No description in summary", summary.description);
+    assertNull("No interval in summary", summary.interval);
+    
+    var detail = instance.readTask(clientId, summary.lId);
+    assertEquals("Description of detail", task.description, detail.description);
+    assertEquals("Interval of detail", task.interval, detail.interval);
+    
+    instance.deleteTasksOfOwner(clientId, owner);
+  }
+  
+  /**
+   * Test of the full text search of listTasks, of class TaskTable.
+   */
+  @Test
+  public void testListTasksFullText() throws Exception {
+    System.out.println("listTasks full text");
+    int clientId = 96;
+    int owner = 322;
+    
+    TaskTable instance = new TaskTable(con, "testtasks");
+    String[][] texts = {{"Rasen maehen", "Vorgarten und Garten"}, {"Fenster putzen", "Garten Fenster"}, {"Steuer", "Erklaerung abgeben"}};
+    for (var text: texts) {
+      TaskData task = new TaskData();
+      task.lId = -1;
+      task.clientId = clientId;
+      task.name = text[0];
+      task.description = text[1];
+      task.createDate = DateUtils.formatZ(null);
+      task.lastChanged = task.createDate;
+      task.nextDueDate = DateUtils.formatL(DateUtils.now().plusDays(1).toLocalDate());
+      task.startDate = task.nextDueDate;
+      task.owner = owner;
+      task.interval = "single|1|2024-01-02";
+      instance.writeTask(task, false);
+    }
+    
+    FindData search = new FindData();
+    search.fullText = true;
+    List<TaskData> result = instance.listTasks(clientId, owner, "%fenster garten%", false, search);
+    assertEquals("Only the task containing both words", 1, result.size());
+    assertEquals("Task name mismatch", "Fenster putzen", result.get(0).name);
+    
+    result = instance.listTasks(clientId, owner, "garten", false, search);
+    assertEquals("Both garden tasks found in name or description", 2, result.size());
+    
+    instance.deleteTasksOfOwner(clientId, owner);
+  }
+
+  /**
+   * Tasks moved to another owner are part of the
+   * next incremental backup.
+   * @throws java.lang.Exception
+   */
+  @Test
+  public void testMoveOwnerBackup() throws Exception {
+    System.out.println("moveTasksOwner backup");
+    int clientId = 94;
+    int owner = 324;
+    
+    TaskTable instance = new TaskTable(con, "testtasks");
+    TaskData task = new TaskData();
+    task.lId = -1;
+    task.clientId = clientId;
+    task.name = "Moved task";
+    task.description = "";
+    task.createDate = "2020-01-02T10:00:00";
+    task.lastChanged = task.createDate;
+    task.owner = owner;
+    task.interval = "single|1|2024-01-02";
+    instance.writeTask(task, false);
+    
+    long since = System.currentTimeMillis() - 1000;
+    assertEquals("One task moved", 1, instance.moveTasksOwner(clientId, owner, owner + 1));
+    
+    var os = new ByteArrayOutputStream();
+    try (var dbc = con.getConnection()) {
+      var manager = new CopyManager(dbc.unwrap(BaseConnection.class));
+      instance.backupChanges(manager, os, since, false);
+    }
+    assertTrue("Moved task in incremental backup", os.toString(StandardCharsets.UTF_8).contains("Moved task"));
+    
+    instance.deleteTasksOfOwner(clientId, owner + 1);
+  }
+
+  /**
+   * An incremental restore brings back changed and deleted
+   * tasks and removes tasks missing in the key list.
+   * @throws java.lang.Exception
+   */
+  @Test
+  public void testIncrementalRestore() throws Exception {
+    System.out.println("restoreIncremental");
+    int clientId = 97;
+    TaskTable instance = new TaskTable(con, "testincrtasks");
+    TaskData[] tasks = new TaskData[3];
+    for (int i = 0; i < tasks.length; i++) {
+      tasks[i] = new TaskData();
+      tasks[i].lId = -1;
+      tasks[i].clientId = clientId;
+      tasks[i].name = "Task " + i;
+      tasks[i].description = "";
+      tasks[i].createDate = DateUtils.formatZ(null);
+      tasks[i].lastChanged = tasks[i].createDate;
+      tasks[i].owner = 1;
+      tasks[i].interval = "single|1|2024-01-02";
+    }
+    tasks[0].lId = instance.writeTask(tasks[0], false);
+    tasks[1].lId = instance.writeTask(tasks[1], false);
+    
+    var backupDir = Files.createTempDirectory("incrbackup").toFile();
+    try (var dbc = con.getConnection()) {
+      var manager = new CopyManager(dbc.unwrap(BaseConnection.class));
+      try (var os = new FileOutputStream(new File(backupDir, "testincrtasks.bin"))) {
+        instance.backupChanges(manager, os, 0, true);
+      }
+      try (var os = new FileOutputStream(new File(backupDir, "testincrtasks.keys"))) {
+        instance.backupKeys(manager, os);
+      }
+      
+      instance.removeTask(tasks[0]);
+      tasks[1].name = "Changed";
+      instance.writeTask(tasks[1], false);
+      tasks[2].lId = instance.writeTask(tasks[2], false);
+      
+      assertNotNull("Restore done", instance.restoreIncremental(dbc, manager, backupDir));
+    }
+    
+    assertEquals("Deleted task restored", "Task 0", instance.readTask(clientId, tasks[0].lId).name);
+    assertEquals("Changed task restored", "Task 1", instance.readTask(clientId, tasks[1].lId).name);
+    try {
+      instance.readTask(clientId, tasks[2].lId);
+      fail("Task missing in the key list should be removed.");
+    } catch (TammError ex) {
+      // expected
+    }
+    
+    for (var file: backupDir.listFiles()) {
+      file.delete();
+    }
+    backupDir.delete();
+  }
 
 }
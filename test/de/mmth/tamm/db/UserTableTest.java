@@ -70,7 +70,7 @@ public class UserTableTest {
     user.mainAdmin = true;
     user.supervisorId = 12345;
     user.administratorId = 9999;
-    user.lastLogin = "20231231112233";
+    user.lastLogin = "2023-12-31T11:22:33";
     
     int userid = instance.writeUser(user);
     
@@ -84,7 +84,7 @@ public class UserTableTest {
     assertEquals("Administrator mismatch", user.administratorId, user2.administratorId);
     assertEquals("Last login date mismatch", user.lastLogin, user2.lastLogin);
     
-    String newLoginDate = "2024010122334";
+    String newLoginDate = "2024-01-01T22:33:44";
     instance.updateLoginDate(clientId, user2.id, newLoginDate);
     UserData user3 = instance.readUser(clientId, user2.id, null);
     assertEquals("User name mismatch", user3.name, user2.name);
@@ -96,6 +96,12 @@ public class UserTableTest {
     UserData user4 = instance.readUser(clientId, user2.id, null);
     assertEquals("Update error.", user3.name, user4.name);
     
+    String bufferedLoginDate = "2024-01-02T08:09:10";
+    instance.updateLoginDate(clientId, user2.id, bufferedLoginDate);
+    instance.flushLoginDates();
+    UserData user4b = new UserTable(con, "testusers").readUser(clientId, user2.id, null);
+    assertEquals("Buffered login date written", bufferedLoginDate, user4b.lastLogin);
+    
     try {
       instance.readUser(clientId, -1, "Unknown user");
       fail("Reading an unknown user should have raised an exception.");
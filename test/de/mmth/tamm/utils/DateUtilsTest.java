@@ -4,6 +4,7 @@
  */
 package de.mmth.tamm.utils;
 
+import java.time.DateTimeException;
 import java.time.LocalDate;
 import java.time.ZonedDateTime;
 import java.util.Date;
@@ -50,4 +51,34 @@ public class DateUtilsTest {
     assertEquals(31, result.getDayOfMonth());
   }
   
+  /**
+   * Test of fromIsoTime method, of class DateUtils.
+   */
+  @Test
+  public void testFromIsoTime() {
+    System.out.println("fromIsoTime");
+    var now = DateUtils.formatZ(null);
+    assertEquals("Round trip", now, DateUtils.formatZ(DateUtils.fromIsoTime(now)));
+    
+    var dayStart = DateUtils.fromIsoTime("2024-12-31");
+    assertEquals("2024-12-31T00:00:00", DateUtils.formatZ(dayStart));
+    
+    var withBlank = DateUtils.fromIsoTime("2024-12-31 10:11:12");
+    assertEquals("2024-12-31T10:11:12", DateUtils.formatZ(withBlank));
+    
+    try {
+      DateUtils.fromIsoTime("2024");
+      fail("Invalid length should raise an exception.");
+    } catch (DateTimeException ex) {
+      // as expected
+    }
+    
+    try {
+      DateUtils.fromIsoTime("2024-12-31T10:11");
+      fail("Incomplete time should raise an exception.");
+    } catch (DateTimeException ex) {
+      // as expected
+    }
+  }
+  
 }
@@ -0,0 +1,94 @@
+/*
+ * (c) 2024 by Matthias Thiele
+ * GNU General Public License v3.0
+ */
+package de.mmth.tamm.utils;
+
+import de.mmth.tamm.data.TaskData;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author matthias
+ */
+public class HistoryArchiveTest {
+  
+  private File archiveDir;
+  
+  @Before
+  public void setUp() throws IOException {
+    archiveDir = Files.createTempDirectory("archive-test").toFile();
+  }
+  
+  @After
+  public void tearDown() {
+    var files = archiveDir.listFiles();
+    if (files != null) {
+      for (var file: files) {
+        file.delete();
+      }
+    }
+    archiveDir.delete();
+  }
+
+  /**
+   * Test of createSegment and readTask methods, of class HistoryArchive.
+   * @throws java.lang.Exception
+   */
+  @Test
+  public void testWriteReadSegments() throws Exception {
+    System.out.println("writeReadSegments");
+    var instance = new HistoryArchive(archiveDir);
+    
+    try (var segment = instance.createSegment()) {
+      segment.append(task(1, 10, "2020-01-03T10:00:00"));
+      segment.append(task(1, 10, "2020-01-02T10:00:00"));
+      segment.append(task(1, 11, "2020-01-02T10:00:00"));
+      segment.append(task(2, 10, "2020-01-01T10:00:00"));
+      segment.commit();
+    }
+    
+    Thread.sleep(5); // unique segment name
+    try (var segment = instance.createSegment()) {
+      segment.append(task(1, 10, "2021-01-01T10:00:00"));
+      segment.commit();
+    }
+    
+    assertEquals("Task of both segments", 3, instance.readTask(1, 10).size());
+    assertEquals("Single task", "2020-01-02T10:00:00", instance.readTask(1, 11).get(0).lastChanged);
+    assertEquals("Other client", 1, instance.readTask(2, 10).size());
+    assertEquals("Unknown task", 0, instance.readTask(3, 10).size());
+  }
+  
+  /**
+   * Uncommitted segments must not be visible.
+   * @throws java.lang.Exception
+   */
+  @Test
+  public void testUncommittedSegment() throws Exception {
+    System.out.println("uncommittedSegment");
+    var instance = new HistoryArchive(archiveDir);
+    
+    try (var segment = instance.createSegment()) {
+      segment.append(task(1, 10, "2020-01-03T10:00:00"));
+    }
+    
+    assertEquals("Nothing archived", 0, instance.readTask(1, 10).size());
+    assertEquals("Temporary files removed", 0, archiveDir.listFiles().length);
+  }
+  
+  private static TaskData task(int clientId, long lid, String lastChanged) {
+    var task = new TaskData();
+    task.clientId = clientId;
+    task.lId = lid;
+    task.name = "Task " + lid;
+    task.lastChanged = lastChanged;
+    return task;
+  }
+}
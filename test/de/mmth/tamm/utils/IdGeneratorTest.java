@@ -0,0 +1,88 @@
+/*
+ * (c) 2024 by Matthias Thiele
+ * GNU General Public License v3.0
+ */
+package de.mmth.tamm.utils;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author matthias
+ */
+public class IdGeneratorTest {
+
+  /**
+   * Test of nextId method, of class IdGenerator.
+   */
+  @Test
+  public void testNextId() {
+    System.out.println("nextId");
+    var instance = new IdGenerator(5);
+    long before = System.currentTimeMillis();
+    long previous = 0;
+    for (int i = 0; i < 10000; i++) {
+      long id = instance.nextId();
+      assertTrue("Ids must increase", id > previous);
+      assertEquals("Node id", 5, IdGenerator.getNodeId(id));
+      previous = id;
+    }
+
+    long time = IdGenerator.getTime(instance.nextId());
+    assertTrue("Creation time", time >= before);
+  }
+
+  /**
+   * Ids of concurrent threads and of different nodes never collide.
+   * @throws java.lang.Exception
+   */
+  @Test
+  public void testConcurrentIds() throws Exception {
+    System.out.println("concurrentIds");
+    Set<Long> ids = ConcurrentHashMap.newKeySet();
+    var nodes = new IdGenerator[] {new IdGenerator(1), new IdGenerator(2)};
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      var generator = nodes[t % 2];
+      var thread = new Thread(() -> {
+        for (int i = 0; i < 5000; i++) {
+          ids.add(generator.nextId());
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+
+    for (var thread: threads) {
+      thread.join();
+    }
+
+    assertEquals("All ids unique", 20000, ids.size());
+    Set<Integer> nodeIds = new HashSet<>();
+    ids.forEach(id -> nodeIds.add(IdGenerator.getNodeId(id)));
+    assertEquals("Both nodes", Set.of(1, 2), nodeIds);
+  }
+
+  /**
+   * Test of the node id range.
+   */
+  @Test
+  public void testNodeIdRange() {
+    System.out.println("nodeIdRange");
+    try {
+      new IdGenerator(IdGenerator.MAX_NODE_ID + 1);
+      fail("Node id out of range should be rejected.");
+    } catch (IllegalArgumentException ex) {
+      // expected
+    }
+
+    int derived = IdGenerator.deriveNodeId("server1.example.com");
+    assertTrue("Derived node id in range", derived >= 0 && derived <= IdGenerator.MAX_NODE_ID);
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * (c) 2024 by Matthias Thiele
+ * GNU General Public License v3.0
+ */
+package de.mmth.tamm.utils;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author matthias
+ */
+public class LatencyHistogramTest {
+
+  /**
+   * Test of getPercentile method, of class LatencyHistogram.
+   */
+  @Test
+  public void testPercentiles() {
+    System.out.println("percentiles");
+    var instance = new LatencyHistogram();
+    assertEquals("Empty histogram", 0, instance.getPercentile(50));
+    for (int i = 1; i <= 1000; i++) {
+      instance.record(i);
+    }
+
+    assertEquals("Count", 1000, instance.getCount());
+    assertEquals("Max", 1000, instance.getMax());
+    assertEquals("Mean", 500, instance.getMean());
+    assertWithin("p50", 500, instance.getPercentile(50));
+    assertWithin("p90", 900, instance.getPercentile(90));
+    assertWithin("p99", 990, instance.getPercentile(99));
+    assertEquals("p100 is max", 1000, instance.getPercentile(100));
+
+    instance.reset();
+    assertEquals("Count after reset", 0, instance.getCount());
+    assertEquals("Max after reset", 0, instance.getMax());
+  }
+
+  /**
+   * Each value lies within the bounds of its bucket.
+   */
+  @Test
+  public void testBuckets() {
+    System.out.println("buckets");
+    long[] values = {0, 1, 7, 8, 15, 16, 17, 1000, 123456789L, Long.MAX_VALUE};
+    for (long value: values) {
+      int index = LatencyHistogram.bucketIndex(value);
+      assertTrue("Upper bound of " + value, LatencyHistogram.upperBound(index) >= value);
+      if (index > 0) {
+        assertTrue("Lower bound of " + value, LatencyHistogram.upperBound(index - 1) < value);
+      }
+    }
+  }
+
+  private static void assertWithin(String message, long expected, long actual) {
+    assertTrue(message + ": " + actual, (actual >= expected) && (actual <= expected + expected / 8));
+  }
+}
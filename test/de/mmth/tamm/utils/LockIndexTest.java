@@ -0,0 +1,101 @@
+/*
+ * (c) 2024 by Matthias Thiele
+ * GNU General Public License v3.0
+ */
+package de.mmth.tamm.utils;
+
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author matthias
+ */
+public class LockIndexTest {
+
+  /**
+   * Test of findLock method with address locks, of class LockIndex.
+   */
+  @Test
+  public void testAddressLock() {
+    System.out.println("addressLock");
+    var instance = new LockIndex();
+    instance.add("Spam@Example.com");
+    
+    assertEquals("Address locked", "spam@example.com", instance.findLock("spam@example.COM"));
+    assertNull("Other address", instance.findLock("info@example.com"));
+    
+    instance.add("spam@example.com");
+    instance.remove("spam@example.com");
+    assertNotNull("Still locked by second entry", instance.findLock("spam@example.com"));
+    instance.remove("spam@example.com");
+    assertNull("Lock removed", instance.findLock("spam@example.com"));
+  }
+  
+  /**
+   * Test of findLock method with domain locks, of class LockIndex.
+   */
+  @Test
+  public void testDomainLock() {
+    System.out.println("domainLock");
+    var instance = new LockIndex();
+    instance.add("@example.com");
+    
+    assertEquals("Domain locked", "@example.com", instance.findLock("info@example.com"));
+    assertEquals("Subdomain locked", "@example.com", instance.findLock("info@mail.example.com"));
+    assertNull("Parent domain not locked", instance.findLock("info@com"));
+    assertNull("Other domain", instance.findLock("info@example.org"));
+    assertNull("Similar domain", instance.findLock("info@badexample.com"));
+    
+    instance.remove("@example.com");
+    assertNull("Lock removed", instance.findLock("info@example.com"));
+  }
+  
+  /**
+   * Test of countHit and drainHits methods, of class LockIndex.
+   */
+  @Test
+  public void testHits() {
+    System.out.println("hits");
+    var instance = new LockIndex();
+    instance.countHit("@example.com");
+    instance.countHit("@example.com");
+    instance.countHit("spam@example.org");
+    
+    var hits = instance.drainHits();
+    assertEquals("Domain hits", 2, (int)hits.get("@example.com"));
+    assertEquals("Address hits", 1, (int)hits.get("spam@example.org"));
+    assertTrue("Hits reset", instance.drainHits().isEmpty());
+  }
+  
+  /**
+   * Test of replaceAll method, of class LockIndex.
+   */
+  @Test
+  public void testReplaceAll() {
+    System.out.println("replaceAll");
+    var instance = new LockIndex();
+    instance.add("old@example.com");
+    instance.replaceAll(List.of("Spam@Example.com", "@example.org"));
+    
+    assertNull("Old entry removed", instance.findLock("old@example.com"));
+    assertEquals("New address", "spam@example.com", instance.findLock("spam@example.com"));
+    assertEquals("New domain", "@example.org", instance.findLock("info@mail.example.org"));
+  }
+  
+  /**
+   * Hits counted after a drain are kept for the next drain.
+   */
+  @Test
+  public void testHitsAfterDrain() {
+    System.out.println("hitsAfterDrain");
+    var instance = new LockIndex();
+    instance.countHit("@example.com");
+    assertEquals("First drain", 1, (int)instance.drainHits().get("@example.com"));
+    
+    instance.countHit("@example.com");
+    instance.countHit("@example.com");
+    assertEquals("Second drain", 2, (int)instance.drainHits().get("@example.com"));
+  }
+}
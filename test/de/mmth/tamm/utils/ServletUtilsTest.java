@@ -0,0 +1,87 @@
+/*
+ * (c) 2024 by Matthias Thiele
+ * GNU General Public License v3.0
+ */
+package de.mmth.tamm.utils;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParser;
+import de.mmth.tamm.TammError;
+import de.mmth.tamm.data.KeyValue;
+import java.io.ByteArrayOutputStream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author matthias
+ */
+public class ServletUtilsTest {
+
+  /**
+   * Test of streamResult method, of class ServletUtils.
+   * @throws java.lang.Exception
+   */
+  @Test
+  public void testStreamResult() throws Exception {
+    System.out.println("streamResult");
+    var out = new ByteArrayOutputStream();
+    ServletUtils.<KeyValue>streamResult(out, "next.html", "error.html", handler -> {
+      handler.handle(new KeyValue(1, "one"));
+      handler.handle(new KeyValue(2, "two"));
+    });
+
+    var result = new JsonParser().parse(out.toString()).getAsJsonObject();
+    assertEquals("Result status", "ok", result.get("result").getAsString());
+    assertEquals("Next page", "next.html", result.get("nextPage").getAsString());
+    assertEquals("Number of rows", 2, result.get("data").getAsJsonArray().size());
+    assertEquals("Row content", "two", result.get("data").getAsJsonArray().get(1).getAsJsonObject().get("name").getAsString());
+  }
+
+  /**
+   * A read error must still end with a valid error result.
+   * @throws java.lang.Exception
+   */
+  @Test
+  public void testStreamResultError() throws Exception {
+    System.out.println("streamResult with error");
+    var out = new ByteArrayOutputStream();
+    ServletUtils.<KeyValue>streamResult(out, "next.html", "error.html", handler -> {
+      handler.handle(new KeyValue(1, "one"));
+      throw new TammError("read error");
+    });
+
+    var result = new JsonParser().parse(out.toString()).getAsJsonObject();
+    assertEquals("Result status", "error", result.get("result").getAsString());
+    assertEquals("Error message", "read error", result.get("message").getAsString());
+    assertEquals("Error page", "error.html", result.get("nextPage").getAsString());
+  }
+
+  /**
+   * Test of streamList method, of class ServletUtils.
+   * @throws java.lang.Exception
+   */
+  @Test
+  public void testStreamList() throws Exception {
+    System.out.println("streamList");
+    var out = new ByteArrayOutputStream();
+    ServletUtils.<KeyValue>streamList(out, new Gson(), handler -> {
+      handler.handle(new KeyValue(1, "one"));
+    });
+    assertEquals("One row array", 1, new JsonParser().parse(out.toString()).getAsJsonArray().size());
+
+    var empty = new ByteArrayOutputStream();
+    ServletUtils.<KeyValue>streamList(empty, new Gson(), handler -> {});
+    assertEquals("Empty array", "[]", empty.toString());
+
+    var failed = new ByteArrayOutputStream();
+    try {
+      ServletUtils.<KeyValue>streamList(failed, new Gson(), handler -> {
+        throw new TammError("read error");
+      });
+      fail("Error before the first row should be passed to the caller.");
+    } catch (TammError ex) {
+      assertEquals("Nothing written", 0, failed.size());
+    }
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * (c) 2024 by Matthias Thiele
+ * GNU General Public License v3.0
+ */
+package de.mmth.tamm.utils;
+
+import de.mmth.tamm.data.UserData;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author matthias
+ */
+public class UserCacheTest {
+
+  /**
+   * Test of put and get methods, of class UserCache.
+   */
+  @Test
+  public void testPutGet() {
+    System.out.println("putGet");
+    var instance = new UserCache(10, 60000);
+    instance.put(user(1, 5, "Anna"), instance.getVersion());
+    
+    var cached = instance.get(1, 5);
+    assertEquals("Cached user", "Anna", cached.name);
+    assertNull("Other client", instance.get(2, 5));
+    
+    cached.pwd = "";
+    assertEquals("Cache returns copies", "hash", instance.get(1, 5).pwd);
+    
+    instance.updateLoginDate(1, 5, "2024-01-01T10:00:00");
+    assertEquals("Login date updated", "2024-01-01T10:00:00", instance.get(1, 5).lastLogin);
+    
+    instance.remove(1, 5);
+    assertNull("Removed user", instance.get(1, 5));
+  }
+  
+  /**
+   * The least recently used entry is removed if the cache is full.
+   */
+  @Test
+  public void testMaxSize() {
+    System.out.println("maxSize");
+    var instance = new UserCache(2, 60000);
+    instance.put(user(1, 1, "A"), instance.getVersion());
+    instance.put(user(1, 2, "B"), instance.getVersion());
+    instance.get(1, 1);
+    instance.put(user(1, 3, "C"), instance.getVersion());
+    
+    assertEquals("Bounded size", 2, instance.size());
+    assertNotNull("Recently used", instance.get(1, 1));
+    assertNull("Least recently used", instance.get(1, 2));
+  }
+  
+  /**
+   * A record read before a concurrent change must not be stored.
+   */
+  @Test
+  public void testStaleRead() {
+    System.out.println("staleRead");
+    var instance = new UserCache(10, 60000);
+    long readVersion = instance.getVersion();
+    instance.remove(1, 5);
+    instance.put(user(1, 5, "Old"), readVersion);
+    assertNull("Stale record ignored", instance.get(1, 5));
+  }
+  
+  /**
+   * Expired entries are not returned.
+   * @throws java.lang.Exception
+   */
+  @Test
+  public void testExpiration() throws Exception {
+    System.out.println("expiration");
+    var instance = new UserCache(10, 1);
+    instance.put(user(1, 5, "Anna"), instance.getVersion());
+    Thread.sleep(5);
+    assertNull("Expired user", instance.get(1, 5));
+  }
+  
+  private static UserData user(int clientId, int id, String name) {
+    var user = new UserData();
+    user.clientId = clientId;
+    user.id = id;
+    user.name = name;
+    user.pwd = "hash";
+    return user;
+  }
+}
@@ -63,6 +63,27 @@ function fillForm(taskData) {
     document.getElementById("name").focus();
 }
 
+/**
+ * Reads the complete task data of a task list entry
+ * and displays it in the form area.
+ * 
+ * The task list contains only summary rows without
+ * description and interval.
+ * 
+ * @param {type} task
+ * @returns {undefined}
+ */
+async function openTask(task) {
+    const fetchtask = await fetch("system/readtask", {'method': 'POST', 'body': JSON.stringify({"lId": task.lId})});
+    const response = await fetchtask.json();
+    if (response.result === "error") {
+        statusMsg(Txt.errorloadingtask);
+        return;
+    }
+    
+    fillForm(response);
+}
+
 /**
  * Create a new attachment download link element.
  * 
@@ -338,7 +359,7 @@ function listTasks(tasklist, isHistoryList, visibleRoles) {
             newItem.appendChild(taskName);
             newItem.appendChild(dueDate);
             newItem.userData = task;
-            newItem.onclick = function() {fillForm(task);};
+            newItem.onclick = function() {isHistoryList ? fillForm(task) : openTask(task);};
             list.appendChild(newItem);
         }
     });
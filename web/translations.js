@@ -37,6 +37,7 @@ TxtDe.clientsaved = "Mandant gespeichert.";
 TxtDe.systemadministration = "System Administration";
 TxtDe.dbconnect = "Datenbankverbindung";
 TxtDe.dburl = "Datenbank URL";
+TxtDe.replicaurl = "Replikat URL";
 TxtDe.dbadminname = "DB Admin Name";
 TxtDe.dbadminpwd = "DB Passwort";
 TxtDe.files = "Dateisystem";
@@ -74,6 +75,7 @@ TxtDe.selecttask = "Wählen Sie zuerst eine Aufgabe aus.";
 TxtDe.usersaved = "Anwenderdaten gespeichert, id: ";
 TxtDe.errorsearch = "Unbekannter Fehler beim Suchen.";
 TxtDe.errorloadingroles = "Liste der Rollen konnte nicht geladen werden.";
+TxtDe.errorloadingtask = "Aufgabe konnte nicht geladen werden.";
 TxtDe.onlyadmins = "Nur Administratoren";
 TxtDe.supervisor = "Vorgesetzter";
 TxtDe.admin = "Admininstrator";
@@ -140,6 +142,11 @@ TxtDe.dlgdeleteuserchoice2a = "Ja, den akutellen Anwender löschen und seine Auf
 TxtDe.dlgdeleteuserchoice2b = " übertragen";
 TxtDe.dlgdeleteuserchoice3 = "Ja, den aktuellen Anwender und alle Aufgaben die ihm zugeordnet sind löschen.";
 TxtDe.dobackup = "Datensicherung";
+TxtDe.doincrementalbackup = "Inkrementelle Sicherung";
+TxtDe.indexadvice = "Indexanalyse";
+TxtDe.dbstats = "Datenbankstatistik";
+TxtDe.slowqueries = "Langsame Abfragen";
+TxtDe.restorestatus = "Wiederherstellung";
 
 var TxtFr = {};
 TxtFr.home = "Liste des tâches" ;
@@ -174,6 +181,7 @@ TxtFr.clientsaved = "Client enregistré.";
 TxtFr.systemadministration = "Administration système" ;
 TxtFr.dbconnect = "Connexion à la base de données";
 TxtFr.dburl = "URL de la base de données" ;
+TxtFr.replicaurl = "URL de la réplique" ;
 TxtFr.dbadminname = "Nom de l'administrateur de la base de données" ;
 TxtFr.dbadminpwd = "Mot de passe BD" ;
 TxtFr.files = "Système de fichiers" ;
@@ -212,6 +220,7 @@ TxtFr.selecttask = "Sélectionnez d'abord une tâche.";
 TxtFr.usersaved = "Données utilisateur enregistrées, identifiant : ";
 TxtFr.errorsearch = "Erreur inconnue dans la recherche.";
 TxtFr.errorloadingroles = "Échec du chargement de la liste des rôles.";
+TxtFr.errorloadingtask = "Échec du chargement de la tâche.";
 TxtFr.onlyadmins = "Administrateurs uniquement" ;
 TxtFr.supervisor = "Superviseur";
 TxtFr.admin = "Administrateur";
@@ -277,6 +286,11 @@ TxtFr.dlgdeleteuserchoice2a = "Oui, supprimer l'utilisateur actuel et attribuer
 TxtFr.dlgdeleteuserchoice2b = "transfert" ;
 TxtFr.dlgdeleteuserchoice3 = "Oui, supprime l'utilisateur actuel et toutes les tâches qui lui sont assignées.";
 TxtFr.dobackup = "Backup";
+TxtFr.doincrementalbackup = "Sauvegarde incrémentielle";
+TxtFr.indexadvice = "Analyse des index";
+TxtFr.dbstats = "Statistiques de la base de données";
+TxtFr.slowqueries = "Requêtes lentes";
+TxtFr.restorestatus = "État de la restauration";
 
 
 var TxtEn = {};
@@ -312,6 +326,7 @@ TxtEn.clientsaved = "Client saved.";
 TxtEn.systemadministration = "System Administration";
 TxtEn.dbconnect = "Database connection";
 TxtEn.dburl = "Database URL";
+TxtEn.replicaurl = "Replica URL";
 TxtEn.dbadminname = "DB Admin Name";
 TxtEn.dbadminpwd = "DB password";
 TxtEn.files = "Filesystem";
@@ -350,6 +365,7 @@ TxtEn.selecttask = "First select a task.";
 TxtEn.usersaved = "User data saved, id: ";
 TxtEn.errorsearch = "Unknown error searching.";
 TxtEn.errorloadingroles = "Failed to load list of roles.";
+TxtEn.errorloadingtask = "Failed to load task.";
 TxtEn.onlyadmins = "Administrators Only";
 TxtEn.supervisor = "Supervisor";
 TxtEn.admin = "Admininstrator";
@@ -415,6 +431,11 @@ TxtEn.dlgdeleteuserchoice2a = "Yes, delete the current user and assign his tasks
 TxtEn.dlgdeleteuserchoice2b = "";
 TxtEn.dlgdeleteuserchoice3 = "Yes, delete the current user and all tasks assigned to him.";
 TxtEn.dobackup = "Backup";
+TxtEn.doincrementalbackup = "Incremental backup";
+TxtEn.indexadvice = "Index analysis";
+TxtEn.dbstats = "Database statistics";
+TxtEn.slowqueries = "Slow queries";
+TxtEn.restorestatus = "Restore status";
 
 var Txt;
 